@@ -0,0 +1,73 @@
+package de.stiffi.testing.junit.helpers;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HelpersBenchmark {
+
+    @Param({"1", "10"})
+    public int replacementCount;
+
+    @Param({"1024"})
+    public int templateSize;
+
+    private TemplateHelper templateHelper;
+    private String template;
+    private String dumperLine;
+    private PrintStream originalOut;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        templateHelper = TemplateHelper.get().withVin("WVWZZZ1JZXW000001");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i < replacementCount; i++) {
+            templateHelper.with("{{tag" + i + "}}", "value" + i);
+        }
+        while (sb.length() < templateSize) {
+            sb.append("{\"vin\":\"{{vin}}\",\"value\":\"{{tag1}}\",\"text\":\"lorem ipsum dolor sit amet\"}");
+        }
+        template = sb.toString();
+        dumperLine = "Publishing with password secret to vehicles/WVWZZZ1JZXW000001/command";
+        Dumper.censor("secret");
+
+        //Dumper writes to System.out - measure the formatting, not the terminal
+        originalOut = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(originalOut);
+    }
+
+    @Benchmark
+    public String templateReadString() {
+        return templateHelper.readString(template);
+    }
+
+    @Benchmark
+    public void dumperSout() {
+        Dumper.sout(dumperLine);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Measurement(batchSize = 100)
+    public int findFreePort() {
+        return SocketHelper.findFreePort();
+    }
+}
@@ -0,0 +1,64 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the message queries used by waits and asserts, depending on how much history is stored
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GetMessagesBenchmark {
+
+    @Param({"1000", "100000"})
+    public int messageCount;
+
+    @Param({"10", "1000"})
+    public int topicCount;
+
+    private MqttClientRule rule;
+    private String[] topics;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        rule = new MqttClientRule("localhost", false, 1883, null, null, null, null)
+                .doPrintOnMessageReceived(false);
+        topics = new String[topicCount];
+        for (int i = 0; i < topicCount; i++) {
+            topics[i] = "vehicles/" + i + "/telemetry";
+        }
+        MqttMessage message = new MqttMessage(new byte[64]);
+        for (int i = 0; i < messageCount; i++) {
+            rule.messageArrived(topics[i % topicCount], message);
+        }
+    }
+
+    @Benchmark
+    public List<byte[]> getMessagesOfTopic() {
+        return rule.getMessages(randomTopic());
+    }
+
+    @Benchmark
+    public List<ReceivedMessage> getReceivedMessagesOfTopic() {
+        return rule.getReceivedMessages(randomTopic());
+    }
+
+    @Benchmark
+    public int getMessageCount() {
+        return rule.getMessageCount(randomTopic());
+    }
+
+    @Benchmark
+    public int getMessageCountOfFilter() {
+        return rule.getMessageCount("vehicles/+/telemetry");
+    }
+
+    private String randomTopic() {
+        return topics[ThreadLocalRandom.current().nextInt(topicCount)];
+    }
+}
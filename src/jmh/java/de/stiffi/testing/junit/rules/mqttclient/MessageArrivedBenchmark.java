@@ -0,0 +1,50 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of handing a message to {@link MqttClientRule#messageArrived(String, MqttMessage)}, i.e. the work done on
+ * Paho's callback thread. Run with -PjmhThreads=n to measure contention between callback threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MessageArrivedBenchmark {
+
+    @Param({"1", "100", "10000"})
+    public int topicCount;
+
+    @Param({"128"})
+    public int payloadSize;
+
+    private MqttClientRule rule;
+    private String[] topics;
+    private MqttMessage message;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        rule = new MqttClientRule("localhost", false, 1883, null, null, null, null)
+                .doPrintOnMessageReceived(false);
+        topics = new String[topicCount];
+        for (int i = 0; i < topicCount; i++) {
+            topics[i] = "vehicles/" + i + "/telemetry";
+        }
+        byte[] payload = new byte[payloadSize];
+        ThreadLocalRandom.current().nextBytes(payload);
+        message = new MqttMessage(payload);
+    }
+
+    @TearDown(Level.Iteration)
+    public void clear() {
+        rule.clearReceivedMessages();
+    }
+
+    @Benchmark
+    public void messageArrived() throws Exception {
+        rule.messageArrived(topics[ThreadLocalRandom.current().nextInt(topicCount)], message);
+    }
+}
@@ -0,0 +1,63 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import de.stiffi.testing.junit.rules.mqttbroker.MqttBrokerRule;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publish to receive round trips of {@link MqttClientRule} through the in-JVM {@link MqttBrokerRule}, measuring
+ * the client side without network or broker container in between. Single threaded only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PublishRoundTripBenchmark {
+
+    private static final String TOPIC = "benchmark/roundtrip";
+
+    @Param({"0", "1"})
+    public int qos;
+
+    @Param({"128"})
+    public int payloadSize;
+
+    private MqttBrokerRule broker;
+    private MqttClientRule publisher;
+    private MqttClientRule subscriber;
+    private byte[] payload;
+    private int expected;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        broker = new MqttBrokerRule();
+        broker.start();
+        publisher = new MqttClientRule("localhost", false, broker.getPort(), null, null, null, null)
+                .withMaxInflight(1000)
+                .doPrintOnMessageReceived(false);
+        subscriber = new MqttClientRule("localhost", false, broker.getPort(), null, null, null, null)
+                .withRetention(RetentionPolicy.global().withMaxMessages(100000))
+                .doPrintOnMessageReceived(false);
+        publisher.connect();
+        subscriber.connect();
+        subscriber.subscribe(TOPIC, qos);
+        payload = new byte[payloadSize];
+        ThreadLocalRandom.current().nextBytes(payload);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        publisher.disconnect();
+        subscriber.disconnect();
+        broker.stop();
+    }
+
+    @Benchmark
+    public void publishAndReceive() throws Exception {
+        publisher.publishAsync(TOPIC, payload, qos).get();
+        expected++;
+        subscriber.waitForMessages(Collections.singletonMap(TOPIC, expected), 10000);
+    }
+}
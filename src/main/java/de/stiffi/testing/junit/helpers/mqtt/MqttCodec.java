@@ -0,0 +1,361 @@
+package de.stiffi.testing.junit.helpers.mqtt;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Minimal MQTT 3.1.1 wire format: encodes packets into buffers ready for writing, and cuts complete packets out
+ * of the bytes read from a connection. Used by the fleet simulator and the embedded broker, which don't need
+ * a full client library per connection.
+ */
+public class MqttCodec {
+
+    public static final int DEFAULT_MAX_PACKET_SIZE = 16 * 1024 * 1024;
+
+    public static final int CONNACK_ACCEPTED = 0;
+    public static final int CONNACK_UNACCEPTABLE_PROTOCOL = 1;
+    public static final int CONNACK_IDENTIFIER_REJECTED = 2;
+    public static final int SUBACK_FAILURE = 0x80;
+
+    private static final byte[] PROTOCOL_NAME = "MQTT".getBytes(StandardCharsets.UTF_8);
+    private static final int PROTOCOL_LEVEL = 4;
+
+    private MqttCodec() {
+    }
+
+    //--- Decoding
+
+    /**
+     * Take the next complete packet from a buffer in read mode
+     * @return the packet, null if the buffer doesn't hold a complete one yet - the position is unchanged then
+     */
+    public static MqttPacket decode(ByteBuffer in, int maxPacketSize) throws MqttProtocolException {
+        long frameLength = frameLength(in, maxPacketSize);
+        if (frameLength < 0 || in.remaining() < frameLength) {
+            return null;
+        }
+        int header = in.get() & 0xFF;
+        int remainingLength = readRemainingLength(in);
+        byte[] body = new byte[remainingLength];
+        in.get(body);
+        int type = header >>> 4;
+        if (type < MqttPacket.CONNECT || type > MqttPacket.DISCONNECT) {
+            throw new MqttProtocolException("Unknown packet type " + type);
+        }
+        return new MqttPacket(type, header & 0x0F, body);
+    }
+
+    /**
+     * @return size of the packet at the buffer position including the fixed header, -1 if not known yet
+     */
+    public static long frameLength(ByteBuffer in, int maxPacketSize) throws MqttProtocolException {
+        int position = in.position();
+        int multiplier = 1;
+        int length = 0;
+        for (int i = 1; i <= 4; i++) {
+            if (in.limit() <= position + i) {
+                return -1;
+            }
+            int digit = in.get(position + i) & 0xFF;
+            length += (digit & 0x7F) * multiplier;
+            if ((digit & 0x80) == 0) {
+                if (length > maxPacketSize) {
+                    throw new MqttProtocolException("Packet of " + length + " bytes exceeds maximum of " + maxPacketSize);
+                }
+                return 1 + i + length;
+            }
+            multiplier *= 128;
+        }
+        throw new MqttProtocolException("Malformed remaining length");
+    }
+
+    private static int readRemainingLength(ByteBuffer in) {
+        int multiplier = 1;
+        int length = 0;
+        int digit;
+        do {
+            digit = in.get() & 0xFF;
+            length += (digit & 0x7F) * multiplier;
+            multiplier *= 128;
+        } while ((digit & 0x80) != 0);
+        return length;
+    }
+
+    public static MqttConnect parseConnect(MqttPacket packet) throws MqttProtocolException {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(packet.getBody());
+            String protocol = readString(in);
+            int level = in.get() & 0xFF;
+            if (!"MQTT".equals(protocol) || level != PROTOCOL_LEVEL) {
+                throw new MqttProtocolException("Unsupported protocol " + protocol + " level " + level);
+            }
+            int connectFlags = in.get() & 0xFF;
+            int keepAlive = in.getShort() & 0xFFFF;
+            String clientId = readString(in);
+            MqttPublish will = null;
+            if ((connectFlags & 0x04) != 0) {
+                String willTopic = readString(in);
+                byte[] willPayload = readBytes(in);
+                will = new MqttPublish(willTopic, willPayload, (connectFlags >>> 3) & 0x03, (connectFlags & 0x20) != 0, false, 0);
+            }
+            String username = (connectFlags & 0x80) != 0 ? readString(in) : null;
+            byte[] password = (connectFlags & 0x40) != 0 ? readBytes(in) : null;
+            return new MqttConnect(clientId, (connectFlags & 0x02) != 0, keepAlive, username, password, will);
+        } catch (BufferUnderflowException e) {
+            throw new MqttProtocolException("Truncated CONNECT");
+        }
+    }
+
+    /**
+     * @return return code of a CONNACK
+     */
+    public static int parseConnack(MqttPacket packet) throws MqttProtocolException {
+        if (packet.getBody().length != 2) {
+            throw new MqttProtocolException("Malformed CONNACK");
+        }
+        return packet.getBody()[1] & 0xFF;
+    }
+
+    public static MqttPublish parsePublish(MqttPacket packet) throws MqttProtocolException {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(packet.getBody());
+            int qos = (packet.getFlags() >>> 1) & 0x03;
+            if (qos == 3) {
+                throw new MqttProtocolException("Invalid QoS 3");
+            }
+            String topic = readString(in);
+            int packetId = qos > 0 ? in.getShort() & 0xFFFF : 0;
+            byte[] payload = new byte[in.remaining()];
+            in.get(payload);
+            return new MqttPublish(topic, payload, qos, (packet.getFlags() & 0x01) != 0, (packet.getFlags() & 0x08) != 0, packetId);
+        } catch (BufferUnderflowException e) {
+            throw new MqttProtocolException("Truncated PUBLISH");
+        }
+    }
+
+    /**
+     * @return packet id of a PUBACK, PUBREC, PUBREL, PUBCOMP, SUBACK or UNSUBACK
+     */
+    public static int parsePacketId(MqttPacket packet) throws MqttProtocolException {
+        if (packet.getBody().length < 2) {
+            throw new MqttProtocolException("Missing packet id");
+        }
+        return ((packet.getBody()[0] & 0xFF) << 8) | (packet.getBody()[1] & 0xFF);
+    }
+
+    /**
+     * @return granted QoS per topic filter of a SUBACK, {@link #SUBACK_FAILURE} for rejected ones
+     */
+    public static int[] parseSuback(MqttPacket packet) throws MqttProtocolException {
+        byte[] body = packet.getBody();
+        if (body.length < 3) {
+            throw new MqttProtocolException("Malformed SUBACK");
+        }
+        int[] granted = new int[body.length - 2];
+        for (int i = 0; i < granted.length; i++) {
+            granted[i] = body[i + 2] & 0xFF;
+        }
+        return granted;
+    }
+
+    /**
+     * Parse a SUBSCRIBE or UNSUBSCRIBE
+     */
+    public static MqttSubscribe parseSubscribe(MqttPacket packet) throws MqttProtocolException {
+        try {
+            boolean subscribe = packet.getType() == MqttPacket.SUBSCRIBE;
+            ByteBuffer in = ByteBuffer.wrap(packet.getBody());
+            int packetId = in.getShort() & 0xFFFF;
+            List<String> filters = new ArrayList<>();
+            List<Integer> qos = new ArrayList<>();
+            while (in.hasRemaining()) {
+                filters.add(readString(in));
+                if (subscribe) {
+                    qos.add(in.get() & 0x03);
+                }
+            }
+            if (filters.isEmpty()) {
+                throw new MqttProtocolException("No topic filters");
+            }
+            int[] qosArray = null;
+            if (subscribe) {
+                qosArray = new int[qos.size()];
+                for (int i = 0; i < qosArray.length; i++) {
+                    qosArray[i] = qos.get(i);
+                }
+            }
+            return new MqttSubscribe(packetId, filters.toArray(new String[0]), qosArray);
+        } catch (BufferUnderflowException e) {
+            throw new MqttProtocolException("Truncated SUBSCRIBE");
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return bytes;
+    }
+
+    //--- Encoding, all buffers are returned ready for writing
+
+    public static ByteBuffer connect(String clientId, boolean cleanSession, int keepAliveSeconds, String username, String password) {
+        byte[] clientIdBytes = clientId.getBytes(StandardCharsets.UTF_8);
+        byte[] usernameBytes = username != null ? username.getBytes(StandardCharsets.UTF_8) : null;
+        byte[] passwordBytes = password != null ? password.getBytes(StandardCharsets.UTF_8) : null;
+        int length = 2 + PROTOCOL_NAME.length + 1 + 1 + 2 + 2 + clientIdBytes.length
+                + (usernameBytes != null ? 2 + usernameBytes.length : 0)
+                + (passwordBytes != null ? 2 + passwordBytes.length : 0);
+        int flags = (cleanSession ? 0x02 : 0) | (usernameBytes != null ? 0x80 : 0) | (passwordBytes != null ? 0x40 : 0);
+
+        ByteBuffer out = allocate(MqttPacket.CONNECT << 4, length);
+        putBytes(out, PROTOCOL_NAME);
+        out.put((byte) PROTOCOL_LEVEL).put((byte) flags).putShort((short) keepAliveSeconds);
+        putBytes(out, clientIdBytes);
+        if (usernameBytes != null) {
+            putBytes(out, usernameBytes);
+        }
+        if (passwordBytes != null) {
+            putBytes(out, passwordBytes);
+        }
+        return flip(out);
+    }
+
+    public static ByteBuffer connack(boolean sessionPresent, int returnCode) {
+        ByteBuffer out = allocate(MqttPacket.CONNACK << 4, 2);
+        out.put((byte) (sessionPresent ? 1 : 0)).put((byte) returnCode);
+        return flip(out);
+    }
+
+    /**
+     * @param packetId ignored for QoS 0
+     */
+    public static ByteBuffer publish(String topic, byte[] payload, int qos, boolean retained, boolean duplicate, int packetId) {
+        return publish(topic.getBytes(StandardCharsets.UTF_8), payload, qos, retained, duplicate, packetId);
+    }
+
+    public static ByteBuffer publish(byte[] topic, byte[] payload, int qos, boolean retained, boolean duplicate, int packetId) {
+        int payloadLength = payload != null ? payload.length : 0;
+        int length = 2 + topic.length + (qos > 0 ? 2 : 0) + payloadLength;
+        int header = (MqttPacket.PUBLISH << 4) | (duplicate ? 0x08 : 0) | (qos << 1) | (retained ? 0x01 : 0);
+        ByteBuffer out = allocate(header, length);
+        putBytes(out, topic);
+        if (qos > 0) {
+            out.putShort((short) packetId);
+        }
+        if (payload != null) {
+            out.put(payload);
+        }
+        return flip(out);
+    }
+
+    public static ByteBuffer puback(int packetId) {
+        return packetIdOnly(MqttPacket.PUBACK << 4, packetId);
+    }
+
+    public static ByteBuffer pubrec(int packetId) {
+        return packetIdOnly(MqttPacket.PUBREC << 4, packetId);
+    }
+
+    public static ByteBuffer pubrel(int packetId) {
+        return packetIdOnly((MqttPacket.PUBREL << 4) | 0x02, packetId);
+    }
+
+    public static ByteBuffer pubcomp(int packetId) {
+        return packetIdOnly(MqttPacket.PUBCOMP << 4, packetId);
+    }
+
+    public static ByteBuffer subscribe(int packetId, String[] topicFilters, int[] qos) {
+        byte[][] filters = new byte[topicFilters.length][];
+        int length = 2;
+        for (int i = 0; i < filters.length; i++) {
+            filters[i] = topicFilters[i].getBytes(StandardCharsets.UTF_8);
+            length += 2 + filters[i].length + 1;
+        }
+        ByteBuffer out = allocate((MqttPacket.SUBSCRIBE << 4) | 0x02, length);
+        out.putShort((short) packetId);
+        for (int i = 0; i < filters.length; i++) {
+            putBytes(out, filters[i]);
+            out.put((byte) qos[i]);
+        }
+        return flip(out);
+    }
+
+    public static ByteBuffer suback(int packetId, int[] grantedQos) {
+        ByteBuffer out = allocate(MqttPacket.SUBACK << 4, 2 + grantedQos.length);
+        out.putShort((short) packetId);
+        for (int granted : grantedQos) {
+            out.put((byte) granted);
+        }
+        return flip(out);
+    }
+
+    public static ByteBuffer unsubscribe(int packetId, String[] topicFilters) {
+        byte[][] filters = new byte[topicFilters.length][];
+        int length = 2;
+        for (int i = 0; i < filters.length; i++) {
+            filters[i] = topicFilters[i].getBytes(StandardCharsets.UTF_8);
+            length += 2 + filters[i].length;
+        }
+        ByteBuffer out = allocate((MqttPacket.UNSUBSCRIBE << 4) | 0x02, length);
+        out.putShort((short) packetId);
+        for (byte[] filter : filters) {
+            putBytes(out, filter);
+        }
+        return flip(out);
+    }
+
+    public static ByteBuffer unsuback(int packetId) {
+        return packetIdOnly(MqttPacket.UNSUBACK << 4, packetId);
+    }
+
+    public static ByteBuffer pingreq() {
+        return ByteBuffer.wrap(new byte[]{(byte) (MqttPacket.PINGREQ << 4), 0});
+    }
+
+    public static ByteBuffer pingresp() {
+        return ByteBuffer.wrap(new byte[]{(byte) (MqttPacket.PINGRESP << 4), 0});
+    }
+
+    public static ByteBuffer disconnect() {
+        return ByteBuffer.wrap(new byte[]{(byte) (MqttPacket.DISCONNECT << 4), 0});
+    }
+
+    private static ByteBuffer packetIdOnly(int header, int packetId) {
+        ByteBuffer out = allocate(header, 2);
+        out.putShort((short) packetId);
+        return flip(out);
+    }
+
+    private static ByteBuffer allocate(int header, int remainingLength) {
+        int lengthBytes = remainingLength < 128 ? 1 : remainingLength < 16384 ? 2 : remainingLength < 2097152 ? 3 : 4;
+        ByteBuffer out = ByteBuffer.allocate(1 + lengthBytes + remainingLength);
+        out.put((byte) header);
+        int length = remainingLength;
+        do {
+            int digit = length % 128;
+            length /= 128;
+            if (length > 0) {
+                digit |= 0x80;
+            }
+            out.put((byte) digit);
+        } while (length > 0);
+        return out;
+    }
+
+    private static void putBytes(ByteBuffer out, byte[] bytes) {
+        out.putShort((short) bytes.length);
+        out.put(bytes);
+    }
+
+    private static ByteBuffer flip(ByteBuffer out) {
+        out.flip();
+        return out;
+    }
+}
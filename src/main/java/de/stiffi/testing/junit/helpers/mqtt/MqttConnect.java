@@ -0,0 +1,53 @@
+package de.stiffi.testing.junit.helpers.mqtt;
+
+public class MqttConnect {
+
+    private final String clientId;
+    private final boolean cleanSession;
+    private final int keepAliveSeconds;
+    private final String username;
+    private final byte[] password;
+    private final MqttPublish will;
+
+    public MqttConnect(String clientId, boolean cleanSession, int keepAliveSeconds, String username, byte[] password, MqttPublish will) {
+        this.clientId = clientId;
+        this.cleanSession = cleanSession;
+        this.keepAliveSeconds = keepAliveSeconds;
+        this.username = username;
+        this.password = password;
+        this.will = will;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public boolean isCleanSession() {
+        return cleanSession;
+    }
+
+    public int getKeepAliveSeconds() {
+        return keepAliveSeconds;
+    }
+
+    /**
+     * @return null if not given
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * @return null if not given
+     */
+    public byte[] getPassword() {
+        return password;
+    }
+
+    /**
+     * @return the last will, null if not given
+     */
+    public MqttPublish getWill() {
+        return will;
+    }
+}
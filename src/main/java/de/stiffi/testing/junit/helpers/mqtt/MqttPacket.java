@@ -0,0 +1,50 @@
+package de.stiffi.testing.junit.helpers.mqtt;
+
+/**
+ * A raw MQTT 3.1.1 control packet: type, the flags of the fixed header and the variable header plus payload.
+ * Decode the body with the parse methods of {@link MqttCodec}.
+ */
+public class MqttPacket {
+
+    public static final int CONNECT = 1;
+    public static final int CONNACK = 2;
+    public static final int PUBLISH = 3;
+    public static final int PUBACK = 4;
+    public static final int PUBREC = 5;
+    public static final int PUBREL = 6;
+    public static final int PUBCOMP = 7;
+    public static final int SUBSCRIBE = 8;
+    public static final int SUBACK = 9;
+    public static final int UNSUBSCRIBE = 10;
+    public static final int UNSUBACK = 11;
+    public static final int PINGREQ = 12;
+    public static final int PINGRESP = 13;
+    public static final int DISCONNECT = 14;
+
+    private final int type;
+    private final int flags;
+    private final byte[] body;
+
+    public MqttPacket(int type, int flags, byte[] body) {
+        this.type = type;
+        this.flags = flags;
+        this.body = body;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    @Override
+    public String toString() {
+        return "MqttPacket type=" + type + " flags=" + flags + " length=" + body.length;
+    }
+}
@@ -0,0 +1,15 @@
+package de.stiffi.testing.junit.helpers.mqtt;
+
+import java.io.IOException;
+
+/**
+ * Malformed or unsupported MQTT packet - the connection should be closed.
+ */
+public class MqttProtocolException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public MqttProtocolException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,47 @@
+package de.stiffi.testing.junit.helpers.mqtt;
+
+public class MqttPublish {
+
+    private final String topic;
+    private final byte[] payload;
+    private final int qos;
+    private final boolean retained;
+    private final boolean duplicate;
+    private final int packetId;
+
+    public MqttPublish(String topic, byte[] payload, int qos, boolean retained, boolean duplicate, int packetId) {
+        this.topic = topic;
+        this.payload = payload;
+        this.qos = qos;
+        this.retained = retained;
+        this.duplicate = duplicate;
+        this.packetId = packetId;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public int getQos() {
+        return qos;
+    }
+
+    public boolean isRetained() {
+        return retained;
+    }
+
+    public boolean isDuplicate() {
+        return duplicate;
+    }
+
+    /**
+     * @return 0 for QoS 0
+     */
+    public int getPacketId() {
+        return packetId;
+    }
+}
@@ -0,0 +1,32 @@
+package de.stiffi.testing.junit.helpers.mqtt;
+
+/**
+ * A SUBSCRIBE or UNSUBSCRIBE packet
+ */
+public class MqttSubscribe {
+
+    private final int packetId;
+    private final String[] topicFilters;
+    private final int[] qos;
+
+    public MqttSubscribe(int packetId, String[] topicFilters, int[] qos) {
+        this.packetId = packetId;
+        this.topicFilters = topicFilters;
+        this.qos = qos;
+    }
+
+    public int getPacketId() {
+        return packetId;
+    }
+
+    public String[] getTopicFilters() {
+        return topicFilters;
+    }
+
+    /**
+     * @return requested QoS per topic filter, null for UNSUBSCRIBE
+     */
+    public int[] getQos() {
+        return qos;
+    }
+}
@@ -0,0 +1,236 @@
+package de.stiffi.testing.junit.helpers.mqtt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Values stored under MQTT topic names or topic filters, one trie level per topic level.
+ * <p>
+ * Two lookups are supported:
+ * <ul>
+ *     <li>{@link #matchFilters(String, Consumer)} - keys are filters ({@code +}, {@code #}), look up which of them match a topic</li>
+ *     <li>{@link #matchTopics(String, Consumer)} - keys are topic names, look up which of them a filter matches</li>
+ * </ul>
+ * Both walk only the branches that can match. Safe for concurrent use; lookups don't lock, changes do.
+ * Levels left without values and children are pruned on remove.
+ * <p>
+ * Shared by the client rule and the embedded broker, not meant for use by tests.
+ */
+public class TopicTrie<T> {
+
+    public static final String SINGLE_LEVEL_WILDCARD = "+";
+    public static final String MULTI_LEVEL_WILDCARD = "#";
+
+    private final Node<T> root = new Node<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    public static boolean isFilter(String topic) {
+        return topic.indexOf('+') >= 0 || topic.indexOf('#') >= 0;
+    }
+
+    /**
+     * Match a single topic name against a filter, without any trie.
+     */
+    public static boolean matches(String filter, String topic) {
+        String[] filterLevels = split(filter);
+        String[] topicLevels = split(topic);
+        if (topic.startsWith("$") && isWildcard(filterLevels[0])) {
+            return false;
+        }
+        for (int i = 0; i < filterLevels.length; i++) {
+            if (MULTI_LEVEL_WILDCARD.equals(filterLevels[i])) {
+                return true;
+            }
+            if (i >= topicLevels.length) {
+                return false;
+            }
+            if (!SINGLE_LEVEL_WILDCARD.equals(filterLevels[i]) && !filterLevels[i].equals(topicLevels[i])) {
+                return false;
+            }
+        }
+        return filterLevels.length == topicLevels.length;
+    }
+
+    public synchronized void put(String key, T value) {
+        Node<T> node = root;
+        for (String level : split(key)) {
+            node = node.child(level);
+        }
+        node.values.add(value);
+        size.incrementAndGet();
+    }
+
+    public synchronized boolean remove(String key, T value) {
+        String[] levels = split(key);
+        List<Node<T>> path = new ArrayList<>(levels.length + 1);
+        Node<T> node = root;
+        path.add(node);
+        for (String level : levels) {
+            node = node.children.get(level);
+            if (node == null) {
+                return false;
+            }
+            path.add(node);
+        }
+        boolean removed = node.values.remove(value);
+        if (removed) {
+            size.decrementAndGet();
+            prune(path, levels);
+        }
+        return removed;
+    }
+
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    /**
+     * Keys are filters: hand every value whose filter matches the given topic name to the consumer.
+     */
+    public void matchFilters(String topic, Consumer<T> consumer) {
+        if (isEmpty()) {
+            return;
+        }
+        matchFilters(root, split(topic), 0, topic.startsWith("$"), consumer);
+    }
+
+    public List<T> matchFilters(String topic) {
+        List<T> result = new ArrayList<>();
+        matchFilters(topic, result::add);
+        return result;
+    }
+
+    /**
+     * Keys are topic names: hand every value whose topic is matched by the given filter to the consumer.
+     */
+    public void matchTopics(String filter, Consumer<T> consumer) {
+        if (isEmpty()) {
+            return;
+        }
+        matchTopics(root, split(filter), 0, consumer);
+    }
+
+    public List<T> matchTopics(String filter) {
+        List<T> result = new ArrayList<>();
+        matchTopics(filter, result::add);
+        return result;
+    }
+
+    private void matchFilters(Node<T> node, String[] topicLevels, int level, boolean systemTopic, Consumer<T> consumer) {
+        //Wildcards at the first level must not match topics starting with $
+        boolean wildcardsAllowed = level > 0 || !systemTopic;
+
+        Node<T> multiLevel = wildcardsAllowed ? node.children.get(MULTI_LEVEL_WILDCARD) : null;
+        if (multiLevel != null) {
+            //"a/#" matches "a" as well as everything below
+            multiLevel.values.forEach(consumer);
+        }
+        if (level == topicLevels.length) {
+            node.values.forEach(consumer);
+            return;
+        }
+
+        Node<T> exact = node.children.get(topicLevels[level]);
+        if (exact != null) {
+            matchFilters(exact, topicLevels, level + 1, systemTopic, consumer);
+        }
+        Node<T> singleLevel = wildcardsAllowed ? node.children.get(SINGLE_LEVEL_WILDCARD) : null;
+        if (singleLevel != null) {
+            matchFilters(singleLevel, topicLevels, level + 1, systemTopic, consumer);
+        }
+    }
+
+    private void matchTopics(Node<T> node, String[] filterLevels, int level, Consumer<T> consumer) {
+        if (level == filterLevels.length) {
+            node.values.forEach(consumer);
+            return;
+        }
+
+        String filterLevel = filterLevels[level];
+        if (MULTI_LEVEL_WILDCARD.equals(filterLevel)) {
+            if (level > 0) {
+                node.values.forEach(consumer);
+            }
+            for (Node<T> child : wildcardChildren(node, level)) {
+                collectAll(child, consumer);
+            }
+        } else if (SINGLE_LEVEL_WILDCARD.equals(filterLevel)) {
+            for (Node<T> child : wildcardChildren(node, level)) {
+                matchTopics(child, filterLevels, level + 1, consumer);
+            }
+        } else {
+            Node<T> exact = node.children.get(filterLevel);
+            if (exact != null) {
+                matchTopics(exact, filterLevels, level + 1, consumer);
+            }
+        }
+    }
+
+    private Iterable<Node<T>> wildcardChildren(Node<T> node, int level) {
+        if (level > 0) {
+            return node.children.values();
+        }
+        List<Node<T>> children = new ArrayList<>();
+        for (ConcurrentMap.Entry<String, Node<T>> child : node.children.entrySet()) {
+            if (!child.getKey().startsWith("$")) {
+                children.add(child.getValue());
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Drop the nodes of the path that hold nothing anymore, from the leaf up
+     */
+    private void prune(List<Node<T>> path, String[] levels) {
+        for (int i = levels.length; i > 0; i--) {
+            Node<T> node = path.get(i);
+            if (!node.values.isEmpty() || !node.children.isEmpty()) {
+                return;
+            }
+            path.get(i - 1).children.remove(levels[i - 1], node);
+        }
+    }
+
+    int getNodeCount() {
+        return countNodes(root);
+    }
+
+    private int countNodes(Node<T> node) {
+        int count = 1;
+        for (Node<T> child : node.children.values()) {
+            count += countNodes(child);
+        }
+        return count;
+    }
+
+    private void collectAll(Node<T> node, Consumer<T> consumer) {
+        node.values.forEach(consumer);
+        for (Node<T> child : node.children.values()) {
+            collectAll(child, consumer);
+        }
+    }
+
+    private static boolean isWildcard(String level) {
+        return SINGLE_LEVEL_WILDCARD.equals(level) || MULTI_LEVEL_WILDCARD.equals(level);
+    }
+
+    private static String[] split(String topic) {
+        return topic.split("/", -1);
+    }
+
+    private static class Node<T> {
+        private final ConcurrentMap<String, Node<T>> children = new ConcurrentHashMap<>();
+        private final List<T> values = new CopyOnWriteArrayList<>();
+
+        Node<T> child(String level) {
+            Node<T> child = children.get(level);
+            return child != null ? child : children.computeIfAbsent(level, l -> new Node<>());
+        }
+    }
+}
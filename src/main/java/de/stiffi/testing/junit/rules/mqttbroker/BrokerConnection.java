@@ -0,0 +1,140 @@
+package de.stiffi.testing.junit.rules.mqttbroker;
+
+import de.stiffi.testing.junit.helpers.mqtt.MqttCodec;
+import de.stiffi.testing.junit.helpers.mqtt.MqttPacket;
+import de.stiffi.testing.junit.helpers.mqtt.MqttPublish;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * One client connection of the {@link MqttBroker}, only touched on the broker thread
+ */
+class BrokerConnection {
+
+    private static final int INITIAL_READ_BUFFER = 1024;
+
+    private final MqttBroker broker;
+    private final SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer readBuffer;
+    private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+    private BrokerSession session;
+    private MqttPublish will;
+    private long keepAliveNanos = 0;
+    private long lastReceivedNanos = System.nanoTime();
+    private boolean closed = false;
+
+    BrokerConnection(MqttBroker broker, SocketChannel channel) {
+        this.broker = broker;
+        this.channel = channel;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    BrokerSession getSession() {
+        return session;
+    }
+
+    void setSession(BrokerSession session) {
+        this.session = session;
+    }
+
+    MqttPublish getWill() {
+        return will;
+    }
+
+    void setWill(MqttPublish will) {
+        this.will = will;
+    }
+
+    void setKeepAliveSeconds(int keepAliveSeconds) {
+        this.keepAliveNanos = keepAliveSeconds * 1_000_000_000L;
+    }
+
+    /**
+     * @return true if the client stayed silent for one and a half keep alive periods
+     */
+    boolean isKeepAliveExpired(long nowNanos) {
+        return keepAliveNanos > 0 && nowNanos - lastReceivedNanos > keepAliveNanos * 3 / 2;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    void readable(int maxPacketSize) throws IOException {
+        if (readBuffer == null) {
+            readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+        }
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            throw new ClosedChannelException();
+        }
+        lastReceivedNanos = System.nanoTime();
+        readBuffer.flip();
+        MqttPacket packet;
+        while (!closed && (packet = MqttCodec.decode(readBuffer, maxPacketSize)) != null) {
+            broker.packetReceived(this, packet);
+        }
+        if (closed) {
+            return;
+        }
+        long frameLength = MqttCodec.frameLength(readBuffer, maxPacketSize);
+        if (frameLength > readBuffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate((int) Math.max(frameLength, readBuffer.capacity() * 2L));
+            larger.put(readBuffer);
+            readBuffer = larger;
+        } else {
+            readBuffer.compact();
+        }
+    }
+
+    void write(ByteBuffer packet) throws IOException {
+        if (closed) {
+            return;
+        }
+        if (writeQueue.isEmpty()) {
+            channel.write(packet);
+            if (!packet.hasRemaining()) {
+                return;
+            }
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+        writeQueue.add(packet);
+    }
+
+    void writable() throws IOException {
+        ByteBuffer packet;
+        while ((packet = writeQueue.peek()) != null) {
+            channel.write(packet);
+            if (packet.hasRemaining()) {
+                return;
+            }
+            writeQueue.poll();
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writeQueue.clear();
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package de.stiffi.testing.junit.rules.mqttbroker;
+
+import de.stiffi.testing.junit.helpers.mqtt.MqttPublish;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * State of one client id. Outlives its connection if the client connected without clean session.
+ */
+class BrokerSession {
+
+    static final int MAX_PACKET_ID = 65535;
+    /**
+     * QoS 1 messages sent and not acknowledged yet per session, further ones wait in the queue. Far below
+     * MAX_PACKET_ID, so a free packet id is found within a few steps.
+     */
+    static final int MAX_INFLIGHT = 1000;
+
+    private final String clientId;
+    private boolean cleanSession;
+    private BrokerConnection connection;
+
+    /**
+     * Subscribed filter as sent by the client - {@link Subscription} or {@link SharedSubscriptionGroup}
+     */
+    private final Map<String, Object> subscriptions = new HashMap<>();
+
+    /**
+     * QoS 1 messages sent but not acknowledged yet, in sending order. Never dropped, their packet ids may still
+     * be acknowledged.
+     */
+    private final LinkedHashMap<Integer, MqttPublish> inflight = new LinkedHashMap<>();
+    /**
+     * QoS 1 messages waiting for room in the inflight window or for the client to connect, without packet id yet
+     */
+    private final Deque<MqttPublish> queued = new ArrayDeque<>();
+    private final Set<Integer> incomingQos2 = new HashSet<>();
+    private int nextPacketId = 0;
+
+    BrokerSession(String clientId, boolean cleanSession) {
+        this.clientId = clientId;
+        this.cleanSession = cleanSession;
+    }
+
+    String getClientId() {
+        return clientId;
+    }
+
+    boolean isCleanSession() {
+        return cleanSession;
+    }
+
+    void setCleanSession(boolean cleanSession) {
+        this.cleanSession = cleanSession;
+    }
+
+    BrokerConnection getConnection() {
+        return connection;
+    }
+
+    void setConnection(BrokerConnection connection) {
+        this.connection = connection;
+    }
+
+    boolean isConnected() {
+        return connection != null;
+    }
+
+    Map<String, Object> getSubscriptions() {
+        return subscriptions;
+    }
+
+    Map<Integer, MqttPublish> getInflight() {
+        return inflight;
+    }
+
+    Deque<MqttPublish> getQueued() {
+        return queued;
+    }
+
+    Set<Integer> getIncomingQos2() {
+        return incomingQos2;
+    }
+
+    /**
+     * @return a packet id not in flight; there always is one as long as the inflight window is respected
+     */
+    int nextPacketId() {
+        do {
+            nextPacketId = nextPacketId % MAX_PACKET_ID + 1;
+        } while (inflight.containsKey(nextPacketId));
+        return nextPacketId;
+    }
+}
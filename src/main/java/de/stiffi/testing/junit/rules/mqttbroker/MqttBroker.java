@@ -0,0 +1,613 @@
+package de.stiffi.testing.junit.rules.mqttbroker;
+
+import de.stiffi.testing.junit.helpers.mqtt.MqttCodec;
+import de.stiffi.testing.junit.helpers.mqtt.MqttConnect;
+import de.stiffi.testing.junit.helpers.mqtt.MqttPacket;
+import de.stiffi.testing.junit.helpers.mqtt.MqttProtocolException;
+import de.stiffi.testing.junit.helpers.mqtt.MqttPublish;
+import de.stiffi.testing.junit.helpers.mqtt.MqttSubscribe;
+import de.stiffi.testing.junit.helpers.mqtt.TopicTrie;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MQTT 3.1.1 broker on a single selector thread. Sessions, subscriptions and retained messages are only touched on
+ * that thread; {@link #call(Callable)} runs other threads' requests there.
+ */
+class MqttBroker implements Runnable {
+
+    private static final int CONNACK_NOT_AUTHORIZED = 5;
+    private static final String SHARE_PREFIX_SLASH = "$share/";
+    private static final String SHARE_PREFIX_COLON = "$share:";
+
+    private final String bindHost;
+    private final int port;
+    private final String username;
+    private final String password;
+    private final int maxPacketSize;
+    private final int maxQueuedPerSession;
+
+    private Selector selector;
+    private ServerSocketChannel server;
+    private Thread thread;
+    private volatile boolean running = false;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private long lastKeepAliveCheckNanos = System.nanoTime();
+
+    private final Map<String, BrokerSession> sessions = new HashMap<>();
+    private final TopicTrie<Subscription> subscriptions = new TopicTrie<>();
+    private final TopicTrie<SharedSubscriptionGroup> sharedGroups = new TopicTrie<>();
+    private final Map<String, SharedSubscriptionGroup> sharedGroupsByKey = new HashMap<>();
+    private final Map<String, MqttPublish> retained = new HashMap<>();
+    private final TopicTrie<String> retainedTopics = new TopicTrie<>();
+    private int generatedClientIds = 0;
+
+    private final AtomicLong publishesReceived = new AtomicLong();
+    private final AtomicLong publishesDelivered = new AtomicLong();
+    private final AtomicLong publishesDropped = new AtomicLong();
+    private final AtomicLong subscribesReceived = new AtomicLong();
+
+    MqttBroker(String bindHost, int port, String username, String password, int maxPacketSize, int maxQueuedPerSession) {
+        this.bindHost = bindHost;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+        this.maxPacketSize = maxPacketSize;
+        this.maxQueuedPerSession = maxQueuedPerSession;
+    }
+
+    void start() throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        server.bind(new InetSocketAddress(bindHost, port), 1024);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        thread = new Thread(this, "MqttBrokerRule-" + port);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop(long timeoutMs) {
+        if (!running) {
+            return;
+        }
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Run the callable on the broker thread and wait for its result
+     */
+    <T> T call(Callable<T> callable) {
+        if (Thread.currentThread() == thread) {
+            try {
+                return callable.call();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        tasks.add(() -> {
+            try {
+                result.complete(callable.call());
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        });
+        selector.wakeup();
+        try {
+            return result.get(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException | TimeoutException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                selector.select(1000);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+                checkKeepAlive();
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        shutdown();
+    }
+
+    private void handle(SelectionKey key) {
+        if (key.isValid() && key.isAcceptable()) {
+            accept();
+            return;
+        }
+        BrokerConnection connection = (BrokerConnection) key.attachment();
+        try {
+            if (key.isValid() && key.isReadable()) {
+                connection.readable(maxPacketSize);
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.writable();
+            }
+        } catch (IOException | CancelledKeyException e) {
+            connectionClosed(connection, false);
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel = server.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            BrokerConnection connection = new BrokerConnection(this, channel);
+            connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void checkKeepAlive() {
+        long now = System.nanoTime();
+        if (now - lastKeepAliveCheckNanos < 1_000_000_000L) {
+            return;
+        }
+        lastKeepAliveCheckNanos = now;
+        for (BrokerSession session : new ArrayList<>(sessions.values())) {
+            BrokerConnection connection = session.getConnection();
+            if (connection != null && connection.isKeepAliveExpired(now)) {
+                System.out.println("MQTT Broker: keep alive expired for clientId " + session.getClientId());
+                connectionClosed(connection, false);
+            }
+        }
+    }
+
+    private void shutdown() {
+        for (BrokerSession session : sessions.values()) {
+            if (session.getConnection() != null) {
+                session.getConnection().close();
+            }
+        }
+        sessions.clear();
+        try {
+            server.close();
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //--- Protocol
+
+    void packetReceived(BrokerConnection connection, MqttPacket packet) throws IOException {
+        BrokerSession session = connection.getSession();
+        if (session == null) {
+            if (packet.getType() != MqttPacket.CONNECT) {
+                throw new MqttProtocolException("First packet must be CONNECT");
+            }
+            connect(connection, MqttCodec.parseConnect(packet));
+            return;
+        }
+        switch (packet.getType()) {
+            case MqttPacket.PUBLISH:
+                publishReceived(connection, session, MqttCodec.parsePublish(packet));
+                break;
+            case MqttPacket.PUBACK:
+                session.getInflight().remove(MqttCodec.parsePacketId(packet));
+                sendQueued(session);
+                break;
+            case MqttPacket.PUBREL: {
+                int packetId = MqttCodec.parsePacketId(packet);
+                session.getIncomingQos2().remove(packetId);
+                connection.write(MqttCodec.pubcomp(packetId));
+                break;
+            }
+            case MqttPacket.PUBREC:
+            case MqttPacket.PUBCOMP:
+                //Never sent with QoS 2
+                break;
+            case MqttPacket.SUBSCRIBE:
+                subscribe(connection, session, MqttCodec.parseSubscribe(packet));
+                break;
+            case MqttPacket.UNSUBSCRIBE: {
+                MqttSubscribe unsubscribe = MqttCodec.parseSubscribe(packet);
+                for (String filter : unsubscribe.getTopicFilters()) {
+                    unsubscribe(session, filter);
+                }
+                connection.write(MqttCodec.unsuback(unsubscribe.getPacketId()));
+                break;
+            }
+            case MqttPacket.PINGREQ:
+                connection.write(MqttCodec.pingresp());
+                break;
+            case MqttPacket.DISCONNECT:
+                connection.setWill(null);
+                connectionClosed(connection, true);
+                break;
+            default:
+                throw new MqttProtocolException("Unexpected packet type " + packet.getType());
+        }
+    }
+
+    private void connect(BrokerConnection connection, MqttConnect connect) throws IOException {
+        if (username != null && (!username.equals(connect.getUsername())
+                || connect.getPassword() == null || !Arrays.equals(password.getBytes(StandardCharsets.UTF_8), connect.getPassword()))) {
+            connection.write(MqttCodec.connack(false, CONNACK_NOT_AUTHORIZED));
+            connection.close();
+            return;
+        }
+        String clientId = connect.getClientId();
+        if (clientId.isEmpty()) {
+            if (!connect.isCleanSession()) {
+                connection.write(MqttCodec.connack(false, MqttCodec.CONNACK_IDENTIFIER_REJECTED));
+                connection.close();
+                return;
+            }
+            clientId = "MqttBrokerRule_generated_" + ++generatedClientIds;
+        }
+
+        BrokerSession session = sessions.get(clientId);
+        if (session != null && session.getConnection() != null) {
+            //Session takeover, the older connection is closed
+            BrokerConnection previous = session.getConnection();
+            previous.setWill(null);
+            previous.close();
+            session.setConnection(null);
+        }
+        boolean sessionPresent = session != null && !connect.isCleanSession();
+        if (session != null && connect.isCleanSession()) {
+            removeSession(session);
+            session = null;
+        }
+        if (session == null) {
+            session = new BrokerSession(clientId, connect.isCleanSession());
+            sessions.put(clientId, session);
+        }
+        session.setCleanSession(connect.isCleanSession());
+        session.setConnection(connection);
+        connection.setSession(session);
+        connection.setWill(connect.getWill());
+        connection.setKeepAliveSeconds(connect.getKeepAliveSeconds());
+        connection.write(MqttCodec.connack(sessionPresent, MqttCodec.CONNACK_ACCEPTED));
+
+        //Unacknowledged messages of a persistent session are resent with their packet ids, then the queued ones follow
+        for (Map.Entry<Integer, MqttPublish> entry : session.getInflight().entrySet()) {
+            MqttPublish publish = entry.getValue();
+            connection.write(MqttCodec.publish(publish.getTopic(), publish.getPayload(), 1, publish.isRetained(), true, entry.getKey()));
+        }
+        sendQueued(session);
+    }
+
+    private void publishReceived(BrokerConnection connection, BrokerSession session, MqttPublish publish) throws IOException {
+        if (TopicTrie.isFilter(publish.getTopic()) || publish.getTopic().startsWith("$share")) {
+            throw new MqttProtocolException("Invalid topic to publish to: " + publish.getTopic());
+        }
+        if (publish.getQos() == 1) {
+            connection.write(MqttCodec.puback(publish.getPacketId()));
+        } else if (publish.getQos() == 2) {
+            boolean first = session.getIncomingQos2().add(publish.getPacketId());
+            connection.write(MqttCodec.pubrec(publish.getPacketId()));
+            if (!first) {
+                return;
+            }
+        }
+        route(publish);
+    }
+
+    /**
+     * Deliver a message to every matching subscription, and to one member of every matching shared subscription
+     */
+    void route(MqttPublish publish) {
+        publishesReceived.incrementAndGet();
+        String topic = publish.getTopic();
+        if (publish.isRetained()) {
+            if (publish.getPayload().length == 0) {
+                if (retained.remove(topic) != null) {
+                    retainedTopics.remove(topic, topic);
+                }
+            } else if (retained.put(topic, publish) == null) {
+                retainedTopics.put(topic, topic);
+            }
+        }
+
+        //Overlapping subscriptions of one session get the message once, with the highest QoS
+        Map<BrokerSession, Integer> targets = new LinkedHashMap<>();
+        subscriptions.matchFilters(topic, subscription -> targets.merge(subscription.getSession(), subscription.getQos(), Math::max));
+        sharedGroups.matchFilters(topic, group -> {
+            Subscription member = group.next();
+            if (member != null) {
+                targets.merge(member.getSession(), member.getQos(), Math::max);
+            }
+        });
+        for (Map.Entry<BrokerSession, Integer> target : targets.entrySet()) {
+            deliver(target.getKey(), topic, publish.getPayload(), Math.min(publish.getQos(), target.getValue()), false);
+        }
+    }
+
+    private void deliver(BrokerSession session, String topic, byte[] payload, int qos, boolean retainFlag) {
+        BrokerConnection connection = session.getConnection();
+        if (qos == 0) {
+            if (connection != null) {
+                write(connection, MqttCodec.publish(topic, payload, 0, retainFlag, false, 0));
+                publishesDelivered.incrementAndGet();
+            }
+            return;
+        }
+        session.getQueued().addLast(new MqttPublish(topic, payload, 1, retainFlag, false, 0));
+        sendQueued(session);
+        //Only messages without packet id are dropped, the ones in flight may still be acknowledged
+        while (session.getQueued().size() > maxQueuedPerSession) {
+            session.getQueued().pollFirst();
+            publishesDropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Send queued QoS 1 messages while the session is connected and its inflight window has room. Packet ids are
+     * assigned here, so they are only held by messages actually sent.
+     */
+    private void sendQueued(BrokerSession session) {
+        BrokerConnection connection = session.getConnection();
+        if (connection == null) {
+            return;
+        }
+        MqttPublish queued;
+        while (session.getInflight().size() < BrokerSession.MAX_INFLIGHT && (queued = session.getQueued().pollFirst()) != null) {
+            int packetId = session.nextPacketId();
+            session.getInflight().put(packetId, new MqttPublish(queued.getTopic(), queued.getPayload(), 1, queued.isRetained(), false, packetId));
+            write(connection, MqttCodec.publish(queued.getTopic(), queued.getPayload(), 1, queued.isRetained(), false, packetId));
+            publishesDelivered.incrementAndGet();
+        }
+    }
+
+    private void write(BrokerConnection connection, ByteBuffer packet) {
+        try {
+            connection.write(packet);
+        } catch (IOException e) {
+            connectionClosed(connection, false);
+        }
+    }
+
+    private void subscribe(BrokerConnection connection, BrokerSession session, MqttSubscribe subscribe) throws IOException {
+        subscribesReceived.incrementAndGet();
+        String[] filters = subscribe.getTopicFilters();
+        int[] granted = new int[filters.length];
+        for (int i = 0; i < filters.length; i++) {
+            granted[i] = Math.min(subscribe.getQos()[i], 1);
+            if (!subscribe(session, filters[i], granted[i])) {
+                granted[i] = MqttCodec.SUBACK_FAILURE;
+            }
+        }
+        connection.write(MqttCodec.suback(subscribe.getPacketId(), granted));
+
+        for (int i = 0; i < filters.length; i++) {
+            if (granted[i] != MqttCodec.SUBACK_FAILURE && !isShared(filters[i])) {
+                int qos = granted[i];
+                for (String topic : retainedTopics.matchTopics(filters[i])) {
+                    MqttPublish message = retained.get(topic);
+                    deliver(session, topic, message.getPayload(), Math.min(qos, message.getQos()), true);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false for an invalid filter
+     */
+    private boolean subscribe(BrokerSession session, String filter, int qos) {
+        String[] shared = parseShared(filter);
+        String topicFilter = shared != null ? shared[1] : filter;
+        if (!isValidFilter(topicFilter)) {
+            return false;
+        }
+        unsubscribe(session, filter);
+        if (shared == null) {
+            Subscription subscription = new Subscription(session, qos);
+            subscriptions.put(topicFilter, subscription);
+            session.getSubscriptions().put(filter, subscription);
+        } else {
+            String key = shared[0] + "\u0000" + topicFilter;
+            SharedSubscriptionGroup group = sharedGroupsByKey.get(key);
+            if (group == null) {
+                group = new SharedSubscriptionGroup(topicFilter);
+                sharedGroupsByKey.put(key, group);
+                sharedGroups.put(topicFilter, group);
+            }
+            group.add(session, qos);
+            session.getSubscriptions().put(filter, group);
+        }
+        return true;
+    }
+
+    private void unsubscribe(BrokerSession session, String filter) {
+        Object subscription = session.getSubscriptions().remove(filter);
+        if (subscription instanceof Subscription) {
+            String[] shared = parseShared(filter);
+            subscriptions.remove(shared != null ? shared[1] : filter, (Subscription) subscription);
+        } else if (subscription instanceof SharedSubscriptionGroup) {
+            SharedSubscriptionGroup group = (SharedSubscriptionGroup) subscription;
+            group.remove(session);
+            if (group.isEmpty()) {
+                sharedGroups.remove(group.getFilter(), group);
+                sharedGroupsByKey.values().remove(group);
+            }
+        }
+    }
+
+    private static boolean isShared(String filter) {
+        return parseShared(filter) != null;
+    }
+
+    /**
+     * @return group and topic filter of $share/group/filter or $share:group:filter, null if not shared
+     */
+    private static String[] parseShared(String filter) {
+        String prefix;
+        String separator;
+        if (filter.startsWith(SHARE_PREFIX_SLASH)) {
+            prefix = SHARE_PREFIX_SLASH;
+            separator = "/";
+        } else if (filter.startsWith(SHARE_PREFIX_COLON)) {
+            prefix = SHARE_PREFIX_COLON;
+            separator = ":";
+        } else {
+            return null;
+        }
+        int end = filter.indexOf(separator, prefix.length());
+        if (end <= prefix.length()) {
+            return null;
+        }
+        return new String[]{filter.substring(prefix.length(), end), filter.substring(end + 1)};
+    }
+
+    private static boolean isValidFilter(String filter) {
+        if (filter.isEmpty()) {
+            return false;
+        }
+        String[] levels = filter.split("/", -1);
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+            if (level.contains("#") && (!level.equals("#") || i != levels.length - 1)) {
+                return false;
+            }
+            if (level.contains("+") && !level.equals("+")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void connectionClosed(BrokerConnection connection, boolean graceful) {
+        if (connection.isClosed()) {
+            return;
+        }
+        connection.close();
+        BrokerSession session = connection.getSession();
+        if (session == null || session.getConnection() != connection) {
+            return;
+        }
+        session.setConnection(null);
+        if (!graceful && connection.getWill() != null) {
+            route(connection.getWill());
+        }
+        if (session.isCleanSession()) {
+            removeSession(session);
+        }
+    }
+
+    private void removeSession(BrokerSession session) {
+        for (String filter : new ArrayList<>(session.getSubscriptions().keySet())) {
+            unsubscribe(session, filter);
+        }
+        sessions.remove(session.getClientId());
+    }
+
+    //--- Test support, called via call()
+
+    /**
+     * Close a client connection without DISCONNECT, like a network failure. The will is published.
+     * @return false if the client isn't connected
+     */
+    boolean dropConnection(String clientId) {
+        BrokerSession session = sessions.get(clientId);
+        if (session == null || session.getConnection() == null) {
+            return false;
+        }
+        connectionClosed(session.getConnection(), false);
+        return true;
+    }
+
+    int dropAllConnections() {
+        int dropped = 0;
+        for (BrokerSession session : new ArrayList<>(sessions.values())) {
+            if (session.getConnection() != null) {
+                connectionClosed(session.getConnection(), false);
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    List<String> getConnectedClientIds() {
+        List<String> clientIds = new ArrayList<>();
+        for (BrokerSession session : sessions.values()) {
+            if (session.isConnected()) {
+                clientIds.add(session.getClientId());
+            }
+        }
+        return clientIds;
+    }
+
+    int getRetainedCount() {
+        return retained.size();
+    }
+
+    int getSubscriptionCount() {
+        int count = 0;
+        for (BrokerSession session : sessions.values()) {
+            count += session.getSubscriptions().size();
+        }
+        return count;
+    }
+
+    long getPublishesReceived() {
+        return publishesReceived.get();
+    }
+
+    long getPublishesDelivered() {
+        return publishesDelivered.get();
+    }
+
+    long getPublishesDropped() {
+        return publishesDropped.get();
+    }
+
+    long getSubscribesReceived() {
+        return subscribesReceived.get();
+    }
+}
@@ -0,0 +1,182 @@
+package de.stiffi.testing.junit.rules.mqttbroker;
+
+import de.stiffi.testing.junit.helpers.SocketHelper;
+import de.stiffi.testing.junit.helpers.mqtt.MqttCodec;
+import de.stiffi.testing.junit.helpers.mqtt.MqttPublish;
+import org.junit.rules.ExternalResource;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * MQTT 3.1.1 broker running inside the test JVM on a random free port, for tests without a broker container.
+ * <p>
+ * Usage:
+ * <pre>
+ *     &#64;ClassRule
+ *     public static MqttBrokerRule broker = new MqttBrokerRule();
+ *
+ *     &#64;Rule
+ *     public MqttClientRule mqttClient = new MqttClientRule("localhost", false, broker.getPort(), null, null, null, null);
+ * </pre>
+ * Supports QoS 0 and 1 (QoS 2 subscriptions are granted QoS 1), retained messages, wildcards, last wills,
+ * persistent sessions and shared subscriptions as $share/group/filter or $share:group:filter.
+ * Plain TCP only, no TLS, no WebSockets.
+ */
+public class MqttBrokerRule extends ExternalResource {
+
+    private int port;
+    private String bindHost = "localhost";
+    private String username;
+    private String password;
+    private int maxPacketSize = MqttCodec.DEFAULT_MAX_PACKET_SIZE;
+    private int maxQueuedPerSession = 100000;
+
+    private MqttBroker broker;
+
+    public MqttBrokerRule() {
+        this.port = SocketHelper.findFreePort();
+    }
+
+    public MqttBrokerRule withPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    /**
+     * Host to listen on, default localhost. 0.0.0.0 for all interfaces, e.g. for clients in docker containers.
+     */
+    public MqttBrokerRule withBindHost(String bindHost) {
+        this.bindHost = bindHost;
+        return this;
+    }
+
+    /**
+     * Accept only clients with these credentials, by default every client is accepted
+     */
+    public MqttBrokerRule withCredentials(String username, String password) {
+        this.username = username;
+        this.password = password;
+        return this;
+    }
+
+    public MqttBrokerRule withMaxPacketSize(int maxPacketSize) {
+        this.maxPacketSize = maxPacketSize;
+        return this;
+    }
+
+    /**
+     * QoS 1 messages queued per session while the client is offline or its inflight window is full, the oldest are
+     * dropped beyond. Messages already sent and not acknowledged yet don't count and are never dropped.
+     * Default 100000
+     */
+    public MqttBrokerRule withMaxQueuedMessages(int maxQueuedPerSession) {
+        this.maxQueuedPerSession = maxQueuedPerSession;
+        return this;
+    }
+
+    @Override
+    protected void before() throws Throwable {
+        start();
+    }
+
+    @Override
+    protected void after() {
+        stop();
+    }
+
+    public void start() throws IOException {
+        broker = new MqttBroker(bindHost, port, username, password, maxPacketSize, maxQueuedPerSession);
+        broker.start();
+        System.out.println("MQTT Broker started on " + bindHost + ":" + port);
+    }
+
+    public void stop() {
+        if (broker != null) {
+            broker.stop(5000);
+            broker = null;
+            System.out.println("MQTT Broker on port " + port + " stopped");
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return tcp://host:port
+     */
+    public String getServerUri() {
+        return "tcp://" + bindHost + ":" + port;
+    }
+
+    /**
+     * Publish from the broker itself, e.g. to prepare retained messages
+     */
+    public void publish(String topic, byte[] payload, int qos, boolean retained) {
+        MqttPublish publish = new MqttPublish(topic, payload, qos, retained, false, 0);
+        getBroker().call(() -> {
+            getBroker().route(publish);
+            return null;
+        });
+    }
+
+    /**
+     * Close the connection of a client without DISCONNECT, like a network failure. The last will is published.
+     * @return false if the client isn't connected
+     */
+    public boolean dropConnection(String clientId) {
+        return getBroker().call(() -> getBroker().dropConnection(clientId));
+    }
+
+    /**
+     * @return number of connections closed
+     */
+    public int dropAllConnections() {
+        return getBroker().call(() -> getBroker().dropAllConnections());
+    }
+
+    public List<String> getConnectedClientIds() {
+        return getBroker().call(() -> getBroker().getConnectedClientIds());
+    }
+
+    public int getRetainedMessageCount() {
+        return getBroker().call(() -> getBroker().getRetainedCount());
+    }
+
+    /**
+     * @return subscriptions of all sessions, a shared subscription counts once per member
+     */
+    public int getSubscriptionCount() {
+        return getBroker().call(() -> getBroker().getSubscriptionCount());
+    }
+
+    public long getPublishesReceived() {
+        return getBroker().getPublishesReceived();
+    }
+
+    public long getPublishesDelivered() {
+        return getBroker().getPublishesDelivered();
+    }
+
+    /**
+     * @return QoS 1 messages dropped because a session had too many queued
+     */
+    public long getPublishesDropped() {
+        return getBroker().getPublishesDropped();
+    }
+
+    /**
+     * @return SUBSCRIBE packets received, one packet may carry several topic filters
+     */
+    public long getSubscribesReceived() {
+        return getBroker().getSubscribesReceived();
+    }
+
+    private MqttBroker getBroker() {
+        if (broker == null) {
+            throw new IllegalStateException("Broker not started");
+        }
+        return broker;
+    }
+}
@@ -0,0 +1,52 @@
+package de.stiffi.testing.junit.rules.mqttbroker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sessions sharing a subscription: each message goes to one of them, round robin over the connected ones
+ */
+class SharedSubscriptionGroup {
+
+    private final String filter;
+    private final List<Subscription> members = new ArrayList<>();
+    private int next = 0;
+
+    SharedSubscriptionGroup(String filter) {
+        this.filter = filter;
+    }
+
+    String getFilter() {
+        return filter;
+    }
+
+    void add(BrokerSession session, int qos) {
+        remove(session);
+        members.add(new Subscription(session, qos));
+    }
+
+    void remove(BrokerSession session) {
+        members.removeIf(member -> member.getSession() == session);
+    }
+
+    boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    /**
+     * @return the next connected member, or a disconnected persistent one queueing the message if none is connected
+     */
+    Subscription next() {
+        Subscription fallback = null;
+        for (int i = 0; i < members.size(); i++) {
+            Subscription member = members.get(Math.floorMod(next++, members.size()));
+            if (member.getSession().isConnected()) {
+                return member;
+            }
+            if (fallback == null) {
+                fallback = member;
+            }
+        }
+        return fallback;
+    }
+}
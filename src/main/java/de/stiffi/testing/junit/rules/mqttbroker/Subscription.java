@@ -0,0 +1,23 @@
+package de.stiffi.testing.junit.rules.mqttbroker;
+
+/**
+ * A non-shared subscription of one session
+ */
+class Subscription {
+
+    private final BrokerSession session;
+    private final int qos;
+
+    Subscription(BrokerSession session, int qos) {
+        this.session = session;
+        this.qos = qos;
+    }
+
+    BrokerSession getSession() {
+        return session;
+    }
+
+    int getQos() {
+        return qos;
+    }
+}
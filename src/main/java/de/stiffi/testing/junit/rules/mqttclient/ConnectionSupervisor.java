@@ -0,0 +1,124 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Reconnects client instances after a connection loss according to a {@link ReconnectPolicy}, and measures
+ * how long they were down.
+ */
+class ConnectionSupervisor {
+
+    private final ReconnectPolicy policy;
+    private final Supplier<MqttConnectOptions> connectOptions;
+    private final Consumer<MqttAsyncClient> resubscribe;
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicInteger disconnected = new AtomicInteger();
+    private final AtomicLong totalDowntimeMicros = new AtomicLong();
+    private final LatencyHistogram downtime = new LatencyHistogram();
+    private volatile boolean shutdown = false;
+
+    /**
+     * @param resubscribe called after a reconnect without session on the broker
+     */
+    ConnectionSupervisor(ReconnectPolicy policy, Supplier<MqttConnectOptions> connectOptions, Consumer<MqttAsyncClient> resubscribe) {
+        this.policy = policy;
+        this.connectOptions = connectOptions;
+        this.resubscribe = resubscribe;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "MqttClientRule-reconnect");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void connectionLost(MqttAsyncClient client, Throwable cause) {
+        if (shutdown) {
+            return;
+        }
+        System.out.println("MQTT Connection lost clientId: " + client.getClientId() + ": " + cause);
+        disconnected.incrementAndGet();
+        schedule(client, System.nanoTime(), 0);
+    }
+
+    private void schedule(MqttAsyncClient client, long lostAtNanos, int attempt) {
+        if (shutdown) {
+            return;
+        }
+        scheduler.schedule(() -> reconnect(client, lostAtNanos, attempt), policy.getDelayMs(attempt), TimeUnit.MILLISECONDS);
+    }
+
+    private void reconnect(MqttAsyncClient client, long lostAtNanos, int attempt) {
+        if (shutdown) {
+            return;
+        }
+        try {
+            client.connect(connectOptions.get(), null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    reconnected(client, lostAtNanos, attempt, asyncActionToken.getSessionPresent());
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    System.out.println("MQTT Reconnect failed clientId: " + client.getClientId() + ", attempt " + (attempt + 1) + ": " + exception);
+                    schedule(client, lostAtNanos, attempt + 1);
+                }
+            });
+        } catch (MqttException e) {
+            if (e.getReasonCode() == MqttException.REASON_CODE_CLIENT_CONNECTED) {
+                reconnected(client, lostAtNanos, attempt, true);
+            } else {
+                System.out.println("MQTT Reconnect failed clientId: " + client.getClientId() + ", attempt " + (attempt + 1) + ": " + e);
+                schedule(client, lostAtNanos, attempt + 1);
+            }
+        }
+    }
+
+    private void reconnected(MqttAsyncClient client, long lostAtNanos, int attempt, boolean sessionPresent) {
+        long downtimeMicros = (System.nanoTime() - lostAtNanos) / 1000;
+        downtime.record(downtimeMicros);
+        totalDowntimeMicros.addAndGet(downtimeMicros);
+        reconnects.incrementAndGet();
+        disconnected.decrementAndGet();
+        System.out.println("MQTT Reconnected clientId: " + client.getClientId() + " after " + downtimeMicros / 1000 + "ms, "
+                + (attempt + 1) + " attempts" + (sessionPresent ? ", session present" : ""));
+        if (!sessionPresent) {
+            resubscribe.accept(client);
+        }
+    }
+
+    long getReconnectCount() {
+        return reconnects.get();
+    }
+
+    int getDisconnectedCount() {
+        return disconnected.get();
+    }
+
+    LatencyHistogram getDowntime() {
+        return downtime;
+    }
+
+    long getTotalDowntimeMs() {
+        return totalDowntimeMicros.get() / 1000;
+    }
+
+    void shutdown() {
+        shutdown = true;
+        scheduler.shutdownNow();
+    }
+}
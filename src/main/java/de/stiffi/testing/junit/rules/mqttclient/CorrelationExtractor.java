@@ -0,0 +1,33 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+/**
+ * Reads the correlation id of a request and of its response for
+ * {@link MqttClientRule#request(String, byte[], String, CorrelationExtractor, long)}. Applied to both, so request
+ * and response must carry the id in the same place.
+ */
+@FunctionalInterface
+public interface CorrelationExtractor {
+
+    /**
+     * @return the correlation id, null if the message has none
+     */
+    String getCorrelationId(ReceivedMessage message);
+
+    /**
+     * Id from a topic level, e.g. level 3 for devices/1/request/&lt;id&gt; and devices/1/response/&lt;id&gt;.
+     * Returns the same instance for the same level, so calling it inline per request is cheap.
+     * @param level index of the level, starting at 0
+     */
+    static CorrelationExtractor topicLevel(int level) {
+        return CorrelationExtractors.topicLevel(level);
+    }
+
+    /**
+     * Id from a top level string or number field of a JSON payload, e.g. "requestId" for {"requestId":"42",...}.
+     * A plain text search, so the field name must not occur elsewhere in the payload.
+     * Returns the same instance for the same field.
+     */
+    static CorrelationExtractor jsonField(String field) {
+        return CorrelationExtractors.jsonField(field);
+    }
+}
@@ -0,0 +1,67 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The built-in {@link CorrelationExtractor}s, one instance per level or field. The {@link RequestTracker} keeps
+ * one route per distinct extractor instance, so sharing them keeps every response from being run through
+ * an extractor per outstanding request.
+ */
+class CorrelationExtractors {
+
+    private static final ConcurrentMap<Integer, CorrelationExtractor> topicLevels = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, CorrelationExtractor> jsonFields = new ConcurrentHashMap<>();
+
+    private CorrelationExtractors() {
+    }
+
+    static CorrelationExtractor topicLevel(int level) {
+        return topicLevels.computeIfAbsent(level, CorrelationExtractors::createTopicLevel);
+    }
+
+    static CorrelationExtractor jsonField(String field) {
+        return jsonFields.computeIfAbsent(field, CorrelationExtractors::createJsonField);
+    }
+
+    private static CorrelationExtractor createTopicLevel(int level) {
+        return message -> {
+            String[] levels = message.getTopic().split("/");
+            return level < levels.length ? levels[level] : null;
+        };
+    }
+
+    private static CorrelationExtractor createJsonField(String field) {
+        String quotedField = "\"" + field + "\"";
+        return message -> {
+            String json = message.getPayloadAsString();
+            if (json == null) {
+                return null;
+            }
+            int index = json.indexOf(quotedField);
+            if (index < 0) {
+                return null;
+            }
+            index = json.indexOf(':', index + quotedField.length());
+            if (index < 0) {
+                return null;
+            }
+            index++;
+            while (index < json.length() && Character.isWhitespace(json.charAt(index))) {
+                index++;
+            }
+            if (index >= json.length()) {
+                return null;
+            }
+            if (json.charAt(index) == '"') {
+                int end = json.indexOf('"', index + 1);
+                return end < 0 ? null : json.substring(index + 1, end);
+            }
+            int end = index;
+            while (end < json.length() && ",}] \t\r\n".indexOf(json.charAt(end)) < 0) {
+                end++;
+            }
+            return end > index ? json.substring(index, end) : null;
+        };
+    }
+}
@@ -0,0 +1,61 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A waiter registered for a topic filter. The messages stored before registration are counted by scanning the
+ * matching topics up to a baseline sequence; arrivals are only forwarded if they are newer than that baseline,
+ * so no message is counted twice or missed while the scan is running.
+ */
+class FilterWaiterRegistration {
+
+    private final String filter;
+    private final MessageWaiter waiter;
+
+    private volatile long baselineSequence = -1;
+    /**
+     * Arrivals seen before the baseline was known, guarded by this
+     */
+    private List<ReceivedMessage> earlyArrivals = new ArrayList<>();
+
+    FilterWaiterRegistration(String filter, MessageWaiter waiter) {
+        this.filter = filter;
+        this.waiter = waiter;
+    }
+
+    String getFilter() {
+        return filter;
+    }
+
+    void messageArrived(ReceivedMessage message) {
+        if (baselineSequence < 0) {
+            synchronized (this) {
+                if (baselineSequence < 0) {
+                    earlyArrivals.add(message);
+                    return;
+                }
+            }
+        }
+        if (message.getSequence() > baselineSequence) {
+            waiter.messageArrived(filter, message);
+        }
+    }
+
+    /**
+     * Called once the already stored messages up to this sequence were handed to the waiter.
+     */
+    void baselineReached(long sequence) {
+        List<ReceivedMessage> early;
+        synchronized (this) {
+            baselineSequence = sequence;
+            early = earlyArrivals;
+            earlyArrivals = null;
+        }
+        for (ReceivedMessage message : early) {
+            if (message.getSequence() > sequence) {
+                waiter.messageArrived(filter, message);
+            }
+        }
+    }
+}
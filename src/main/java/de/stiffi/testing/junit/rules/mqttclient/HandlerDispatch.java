@@ -0,0 +1,99 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+/**
+ * Where {@link MqttMessageHandler}s are called.
+ * <p>
+ * By default handlers run directly on Paho's callback thread, so a slow handler holds up all delivery.
+ * With {@link #perTopicOrdered(int, int)} or {@link #parallel(int, int)} messages are queued and handlers run on
+ * worker threads instead.
+ */
+public class HandlerDispatch {
+
+    public enum Overflow {
+        /**
+         * Wait for room in the queue - slows down delivery like a direct call, but only once the queue is full
+         */
+        BLOCK,
+        /**
+         * Drop the oldest queued message to make room
+         */
+        DROP_OLDEST,
+        /**
+         * Reject the message by throwing from messageArrived. Paho closes the connection then.
+         */
+        FAIL
+    }
+
+    private final int lanes;
+    private final int threadsPerLane;
+    private final int queueCapacity;
+    private Overflow overflow = Overflow.BLOCK;
+
+    private HandlerDispatch(int lanes, int threadsPerLane, int queueCapacity) {
+        this.lanes = lanes;
+        this.threadsPerLane = threadsPerLane;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Call handlers on Paho's callback thread - the default
+     */
+    public static HandlerDispatch direct() {
+        return new HandlerDispatch(0, 0, 0);
+    }
+
+    /**
+     * Messages of one topic are handled one after another in arrival order, different topics in parallel
+     * @param threads number of worker threads, topics are distributed by hash
+     * @param queueCapacity capacity of the queue of each thread
+     * @throws IllegalArgumentException if threads or queueCapacity is below 1
+     */
+    public static HandlerDispatch perTopicOrdered(int threads, int queueCapacity) {
+        checkWorkers(threads, queueCapacity);
+        return new HandlerDispatch(threads, 1, queueCapacity);
+    }
+
+    /**
+     * Messages are handled by whichever worker thread is free, without any ordering
+     * @param queueCapacity capacity of the queue shared by all threads
+     * @throws IllegalArgumentException if threads or queueCapacity is below 1
+     */
+    public static HandlerDispatch parallel(int threads, int queueCapacity) {
+        checkWorkers(threads, queueCapacity);
+        return new HandlerDispatch(1, threads, queueCapacity);
+    }
+
+    private static void checkWorkers(int threads, int queueCapacity) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1, was " + threads);
+        }
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity must be at least 1, was " + queueCapacity);
+        }
+    }
+
+    public HandlerDispatch withOverflow(Overflow overflow) {
+        this.overflow = overflow;
+        return this;
+    }
+
+    boolean isDirect() {
+        return lanes == 0;
+    }
+
+    int getLanes() {
+        return lanes;
+    }
+
+    int getThreadsPerLane() {
+        return threadsPerLane;
+    }
+
+    int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    Overflow getOverflow() {
+        return overflow;
+    }
+}
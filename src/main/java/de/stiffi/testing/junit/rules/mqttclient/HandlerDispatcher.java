@@ -0,0 +1,143 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs message handlers on worker threads as configured by a {@link HandlerDispatch}. Every lane is a bounded
+ * queue with its own worker threads; a topic always maps to the same lane.
+ */
+class HandlerDispatcher {
+
+    private final HandlerDispatch config;
+    private final Lane[] lanes;
+    private final LatencyHistogram lag = new LatencyHistogram();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    HandlerDispatcher(HandlerDispatch config) {
+        this.config = config;
+        this.lanes = new Lane[config.getLanes()];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(i, config.getThreadsPerLane(), config.getQueueCapacity());
+        }
+    }
+
+    void dispatch(String topic, Runnable handlerCall) throws InterruptedException {
+        Lane lane = lanes[lanes.length == 1 ? 0 : Math.floorMod(topic.hashCode(), lanes.length)];
+        Task task = new Task(handlerCall, System.nanoTime());
+        switch (config.getOverflow()) {
+            case BLOCK:
+                lane.queue.put(task);
+                break;
+            case DROP_OLDEST:
+                while (!lane.queue.offer(task)) {
+                    if (lane.queue.poll() != null) {
+                        dropped.incrementAndGet();
+                    }
+                }
+                break;
+            case FAIL:
+                if (!lane.queue.offer(task)) {
+                    rejected.incrementAndGet();
+                    throw new RejectedExecutionException("Message handler queue full, " + topic);
+                }
+                break;
+        }
+    }
+
+    int getQueueDepth() {
+        int depth = 0;
+        for (Lane lane : lanes) {
+            depth += lane.queue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * Time messages spent queued before their handlers were called
+     */
+    LatencyHistogram getLag() {
+        return lag;
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Let the workers finish the queued messages, then stop them
+     */
+    void shutdown(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        for (Lane lane : lanes) {
+            lane.shutdown(deadline);
+        }
+    }
+
+    private class Lane {
+        private final BlockingQueue<Task> queue;
+        private final List<Thread> workers = new ArrayList<>();
+        private volatile boolean running = true;
+
+        Lane(int index, int threads, int queueCapacity) {
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+            for (int t = 0; t < threads; t++) {
+                Thread worker = new Thread(this::work, "MqttClientRule-handler-" + index + "-" + t);
+                worker.setDaemon(true);
+                worker.start();
+                workers.add(worker);
+            }
+        }
+
+        private void work() {
+            try {
+                while (running || !queue.isEmpty()) {
+                    Task task = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (task == null) {
+                        continue;
+                    }
+                    lag.recordNanos(System.nanoTime() - task.enqueuedNanos);
+                    try {
+                        task.handlerCall.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            } catch (InterruptedException e) {
+                //stopped
+            }
+        }
+
+        void shutdown(long deadline) {
+            running = false;
+            for (Thread worker : workers) {
+                try {
+                    worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                worker.interrupt();
+            }
+        }
+    }
+
+    private static class Task {
+        private final Runnable handlerCall;
+        private final long enqueuedNanos;
+
+        Task(Runnable handlerCall, long enqueuedNanos) {
+            this.handlerCall = handlerCall;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+}
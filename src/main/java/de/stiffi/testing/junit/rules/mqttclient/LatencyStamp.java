@@ -0,0 +1,70 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+
+/**
+ * Header prepended to payloads by a {@link MqttClientRule} with latency stamping switched on, and stripped again
+ * by a rule with latency tracking switched on.
+ * <p>
+ * Layout, 24 bytes big endian: magic (int), publisher id (int), sequence number per publisher and topic (long),
+ * send time in microseconds since the epoch (long).
+ */
+public class LatencyStamp {
+
+    public static final int MAGIC = 0x4D514C53;
+    public static final int LENGTH = 24;
+
+    private final int publisherId;
+    private final long sequence;
+    private final long sentEpochMicros;
+
+    public LatencyStamp(int publisherId, long sequence, long sentEpochMicros) {
+        this.publisherId = publisherId;
+        this.sequence = sequence;
+        this.sentEpochMicros = sentEpochMicros;
+    }
+
+    public int getPublisherId() {
+        return publisherId;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getSentEpochMicros() {
+        return sentEpochMicros;
+    }
+
+    static long nowEpochMicros() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000L + now.getNano() / 1000;
+    }
+
+    /**
+     * @return a new payload with the stamp in front of the given one
+     */
+    static byte[] stamp(byte[] payload, int publisherId, long sequence) {
+        int length = payload != null ? payload.length : 0;
+        ByteBuffer stamped = ByteBuffer.allocate(LENGTH + length);
+        stamped.putInt(MAGIC).putInt(publisherId).putLong(sequence).putLong(nowEpochMicros());
+        if (payload != null) {
+            stamped.put(payload);
+        }
+        return stamped.array();
+    }
+
+    static boolean isStamped(byte[] payload) {
+        return payload != null && payload.length >= LENGTH && ByteBuffer.wrap(payload).getInt(0) == MAGIC;
+    }
+
+    /**
+     * @return the stamp of a payload checked with {@link #isStamped(byte[])}
+     */
+    static LatencyStamp read(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        buffer.getInt();
+        return new LatencyStamp(buffer.getInt(), buffer.getLong(), buffer.getLong());
+    }
+}
@@ -0,0 +1,65 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import de.stiffi.testing.junit.helpers.mqtt.TopicTrie;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stamps outgoing payloads and records the publish to receive latency of stamped incoming payloads per topic.
+ */
+class LatencyTracker {
+
+    private final int publisherId = ThreadLocalRandom.current().nextInt();
+    private final ConcurrentMap<String, AtomicLong> sequences = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    byte[] stamp(String topic, byte[] payload) {
+        AtomicLong sequence = sequences.get(topic);
+        if (sequence == null) {
+            sequence = sequences.computeIfAbsent(topic, t -> new AtomicLong());
+        }
+        return LatencyStamp.stamp(payload, publisherId, sequence.incrementAndGet());
+    }
+
+    /**
+     * Record the latency of a stamped payload
+     * @return the latency stamp, null if the payload isn't stamped
+     */
+    LatencyStamp record(String topic, byte[] payload) {
+        if (!LatencyStamp.isStamped(payload)) {
+            return null;
+        }
+        LatencyStamp stamp = LatencyStamp.read(payload);
+        LatencyHistogram histogram = histograms.get(topic);
+        if (histogram == null) {
+            histogram = histograms.computeIfAbsent(topic, t -> new LatencyHistogram());
+        }
+        histogram.record(LatencyStamp.nowEpochMicros() - stamp.getSentEpochMicros());
+        return stamp;
+    }
+
+    /**
+     * @return latencies of a topic, or of all topics matching a filter merged together
+     */
+    LatencyHistogram getHistogram(String topicOrFilter) {
+        if (!TopicTrie.isFilter(topicOrFilter)) {
+            LatencyHistogram histogram = histograms.get(topicOrFilter);
+            return histogram != null ? histogram : new LatencyHistogram();
+        }
+        LatencyHistogram merged = new LatencyHistogram();
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            if (TopicTrie.matches(topicOrFilter, entry.getKey())) {
+                merged.add(entry.getValue());
+            }
+        }
+        return merged;
+    }
+
+    void reset() {
+        histograms.clear();
+    }
+}
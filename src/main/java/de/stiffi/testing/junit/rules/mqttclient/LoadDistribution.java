@@ -0,0 +1,84 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import java.util.Arrays;
+
+/**
+ * How received messages are spread over the client instances of a {@link MqttClientRule} sharing a subscription,
+ * see {@link MqttClientRule#getLoadDistribution()}. Built from the per client instance counters of the metrics.
+ */
+public class LoadDistribution {
+
+    private final long[] counts;
+    private final long elapsedNanos;
+
+    LoadDistribution(long[] counts, long elapsedNanos) {
+        this.counts = counts;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @return messages received per client instance
+     */
+    public long[] getCounts() {
+        return counts.clone();
+    }
+
+    /**
+     * @return messages per second per client instance, 0 if the elapsed time isn't known
+     */
+    public double[] getRates() {
+        double[] rates = new double[counts.length];
+        if (elapsedNanos > 0) {
+            for (int i = 0; i < counts.length; i++) {
+                rates[i] = counts[i] * 1e9 / elapsedNanos;
+            }
+        }
+        return rates;
+    }
+
+    public long getTotal() {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * @return messages of the busiest instance divided by those of the least busy one, infinite if an instance
+     * received nothing while others did, 1 if nothing was received at all
+     */
+    public double getMaxMinRatio() {
+        if (counts.length == 0 || getTotal() == 0) {
+            return 1;
+        }
+        long max = Long.MIN_VALUE;
+        long min = Long.MAX_VALUE;
+        for (long count : counts) {
+            max = Math.max(max, count);
+            min = Math.min(min, count);
+        }
+        return min == 0 ? Double.POSITIVE_INFINITY : (double) max / min;
+    }
+
+    /**
+     * @return standard deviation of the counts divided by their mean, 0 for a perfectly even distribution
+     */
+    public double getCoefficientOfVariation() {
+        if (counts.length == 0 || getTotal() == 0) {
+            return 0;
+        }
+        double mean = (double) getTotal() / counts.length;
+        double squares = 0;
+        for (long count : counts) {
+            squares += (count - mean) * (count - mean);
+        }
+        return Math.sqrt(squares / counts.length) / mean;
+    }
+
+    @Override
+    public String toString() {
+        return "counts=" + Arrays.toString(counts) + " max/min=" + String.format("%.2f", getMaxMinRatio())
+                + " cv=" + String.format("%.3f", getCoefficientOfVariation());
+    }
+}
@@ -0,0 +1,75 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+/**
+ * Result of a {@link MqttLoadGenerator} run, or a live view of a running one
+ */
+public class LoadGeneratorReport {
+    private final long published;
+    private final long acknowledged;
+    private final long errors;
+    private final long sendMs;
+    private final long drainMs;
+    private final LatencyHistogram ackLatency;
+
+    LoadGeneratorReport(long published, long acknowledged, long errors, long sendMs, long drainMs, LatencyHistogram ackLatency) {
+        this.published = published;
+        this.acknowledged = acknowledged;
+        this.errors = errors;
+        this.sendMs = sendMs;
+        this.drainMs = drainMs;
+        this.ackLatency = ackLatency;
+    }
+
+    public long getPublished() {
+        return published;
+    }
+
+    public long getAcknowledged() {
+        return acknowledged;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * Send and drain phase together
+     */
+    public long getElapsedMs() {
+        return sendMs + drainMs;
+    }
+
+    /**
+     * Time spent publishing, until the last publish was issued
+     */
+    public long getSendMs() {
+        return sendMs;
+    }
+
+    /**
+     * Time spent waiting for the outstanding acknowledgements after the last publish
+     */
+    public long getDrainMs() {
+        return drainMs;
+    }
+
+    /**
+     * @return messages published per second of the send phase; the drain phase shows up in the ack latency instead
+     */
+    public double getThroughput() {
+        return sendMs == 0 ? 0 : published * 1000d / sendMs;
+    }
+
+    /**
+     * Time from publish until the broker acknowledged the message
+     */
+    public LatencyHistogram getAckLatency() {
+        return ackLatency;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("published=%d, acked=%d, errors=%d, send=%dms, drain=%dms, throughput=%.1f msg/s, ack latency: %s",
+                published, acknowledged, errors, sendMs, drainMs, getThroughput(), ackLatency);
+    }
+}
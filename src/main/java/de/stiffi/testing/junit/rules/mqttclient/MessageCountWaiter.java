@@ -0,0 +1,51 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Waits until a minimal number of messages is stored on each of several topics or topic filters.
+ */
+class MessageCountWaiter extends MessageWaiter {
+
+    /**
+     * topic or filter - number of messages still missing
+     */
+    private final Map<String, AtomicInteger> missingMessages = new HashMap<>();
+    private final AtomicInteger unsatisfiedTopics = new AtomicInteger();
+
+    MessageCountWaiter(Map<String, Integer> minimalMessageCounts, long afterSequence) {
+        super(afterSequence);
+        for (Map.Entry<String, Integer> entry : minimalMessageCounts.entrySet()) {
+            if (entry.getValue() > 0) {
+                missingMessages.put(entry.getKey(), new AtomicInteger(entry.getValue()));
+            }
+        }
+        unsatisfiedTopics.set(missingMessages.size());
+        if (missingMessages.isEmpty()) {
+            complete();
+        }
+    }
+
+    @Override
+    void alreadyStored(String key, TopicMessages topicMessages, long upToSequence) {
+        countDown(key, topicMessages.countBetween(afterSequence, upToSequence));
+    }
+
+    @Override
+    void messageArrived(String key, ReceivedMessage message) {
+        countDown(key, 1);
+    }
+
+    private void countDown(String topic, int count) {
+        AtomicInteger missing = missingMessages.get(topic);
+        if (missing == null || count <= 0) {
+            return;
+        }
+        int before = missing.getAndAdd(-count);
+        if (before > 0 && before - count <= 0 && unsatisfiedTopics.decrementAndGet() == 0) {
+            complete();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+/**
+ * A point in the arrival order of received messages, see {@link MqttClientRule#mark()}. Queries, waits and asserts
+ * given a cursor only look at messages received after it, so a test can ignore earlier traffic without clearing it.
+ */
+public final class MessageCursor {
+
+    private final long sequence;
+
+    MessageCursor(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return sequence of the last message received before the mark, messages after it have higher sequences
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return true if the message was received after this cursor was marked
+     */
+    public boolean precedes(ReceivedMessage message) {
+        return message.getSequence() > sequence;
+    }
+
+    @Override
+    public String toString() {
+        return "MessageCursor{" + sequence + "}";
+    }
+}
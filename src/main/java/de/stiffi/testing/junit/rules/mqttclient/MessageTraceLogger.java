@@ -0,0 +1,146 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Prints received messages without slowing down delivery: lines are sampled, rate limited and handed to a
+ * background thread for printing. If the printer can't keep up, lines are dropped instead of blocking the
+ * callback thread, and the number of dropped lines is printed later.
+ */
+class MessageTraceLogger {
+
+    private static final int QUEUE_CAPACITY = 10000;
+
+    private final int sampleEveryNth;
+    private final TokenBucket rateLimit;
+    private final int previewBytes;
+    private final Consumer<String> sink;
+
+    private final BlockingQueue<String> lines = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong messageCounter = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile Thread printer;
+
+    /**
+     * @param sampleEveryNth print every nth message only
+     * @param maxLinesPerSecond 0 for no limit
+     * @param previewBytes number of payload bytes to print
+     */
+    MessageTraceLogger(int sampleEveryNth, int maxLinesPerSecond, int previewBytes) {
+        this(sampleEveryNth, maxLinesPerSecond, previewBytes, System.out::println, System::nanoTime);
+    }
+
+    /**
+     * @param sink receives the lines on the printer thread
+     * @param nanoClock time source of the rate limit
+     */
+    MessageTraceLogger(int sampleEveryNth, int maxLinesPerSecond, int previewBytes, Consumer<String> sink, LongSupplier nanoClock) {
+        this.sampleEveryNth = Math.max(1, sampleEveryNth);
+        //Starts full, so the first lines of a run are printed rather than counted as dropped
+        this.rateLimit = maxLinesPerSecond > 0 ? new TokenBucket(maxLinesPerSecond, maxLinesPerSecond, maxLinesPerSecond, nanoClock) : null;
+        this.previewBytes = previewBytes;
+        this.sink = sink;
+    }
+
+    void messageReceived(ReceivedMessage message, int count) {
+        if (messageCounter.incrementAndGet() % sampleEveryNth != 0) {
+            return;
+        }
+        if (rateLimit != null && !rateLimit.tryAcquire()) {
+            dropped.incrementAndGet();
+            return;
+        }
+        String line = "Received MQTT message on topic "
+                + message.getTopic()
+                + ", Count: " + count
+                + ", Content: " + preview(message);
+        if (!lines.offer(line)) {
+            dropped.incrementAndGet();
+        }
+        ensurePrinterRunning();
+    }
+
+    /**
+     * Encoded here rather than with {@link ReceivedMessage#getPayloadAsBase64()}, which would keep the string on the
+     * stored message
+     */
+    private String preview(ReceivedMessage message) {
+        ByteBuffer payload = message.getPayloadBuffer();
+        if (payload == null) {
+            return "null";
+        }
+        int size = payload.remaining();
+        if (size > previewBytes) {
+            payload.limit(payload.position() + previewBytes);
+        }
+        String preview = new String(Base64.getEncoder().encode(payload).array(), StandardCharsets.ISO_8859_1);
+        return size > previewBytes ? preview + "... (" + size + " bytes)" : preview;
+    }
+
+    private void ensurePrinterRunning() {
+        if (printer != null) {
+            return;
+        }
+        synchronized (this) {
+            if (printer == null) {
+                Thread thread = new Thread(this::print, "MqttClientRule-trace");
+                thread.setDaemon(true);
+                thread.start();
+                printer = thread;
+            }
+        }
+    }
+
+    private void print() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                String line = lines.poll(1, TimeUnit.SECONDS);
+                if (line != null) {
+                    sink.accept(line);
+                }
+                printDropped();
+            }
+        } catch (InterruptedException e) {
+            //stopped
+        }
+    }
+
+    private void printDropped() {
+        long droppedLines = dropped.getAndSet(0);
+        if (droppedLines > 0) {
+            sink.accept("... " + droppedLines + " received MQTT messages not printed");
+        }
+    }
+
+    /**
+     * Print what's queued and stop the printer thread
+     */
+    void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = printer;
+            printer = null;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        String line;
+        while ((line = lines.poll()) != null) {
+            sink.accept(line);
+        }
+        printDropped();
+    }
+}
@@ -0,0 +1,48 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Something a test thread is waiting for. Arriving messages are pushed to the waiter by the delivering thread,
+ * which completes the waiter as soon as its condition holds - no polling involved.
+ */
+abstract class MessageWaiter {
+
+    private final CountDownLatch completed = new CountDownLatch(1);
+
+    /**
+     * Messages up to this sequence are ignored, 0 to consider all
+     */
+    protected final long afterSequence;
+
+    MessageWaiter(long afterSequence) {
+        this.afterSequence = afterSequence;
+    }
+
+    /**
+     * Called on the delivering thread for every message arriving on a topic this waiter is registered for
+     * after the afterSequence. Must be cheap and thread safe.
+     * @param key the topic or topic filter the waiter was registered with
+     */
+    abstract void messageArrived(String key, ReceivedMessage message);
+
+    /**
+     * Account for the messages a topic held before the waiter was registered. Called under the topic lock.
+     * @param key the topic or topic filter the waiter was registered with
+     * @param upToSequence only messages with a sequence after afterSequence and up to this one are to be considered
+     */
+    abstract void alreadyStored(String key, TopicMessages topicMessages, long upToSequence);
+
+    protected void complete() {
+        completed.countDown();
+    }
+
+    boolean isCompleted() {
+        return completed.getCount() == 0;
+    }
+
+    boolean await(long timeoutMs) throws InterruptedException {
+        return completed.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+}
@@ -1,14 +1,29 @@
 package de.stiffi.testing.junit.rules.mqttclient;
 
+import de.stiffi.testing.junit.helpers.mqtt.TopicTrie;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.eclipse.paho.client.mqttv3.*;
 import org.eclipse.paho.client.mqttv3.internal.security.SSLSocketFactoryFactory;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
 import org.junit.Assert;
 import org.junit.rules.ExternalResource;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 
 public class MqttClientRule extends ExternalResource implements MqttCallback {
 
@@ -20,12 +35,24 @@ public class MqttClientRule extends ExternalResource implements MqttCallback {
     private String truststorePath;
     private String truststorePass;
     private boolean doPrintOnMessageReceived = true;
-    private List<String> existingSubscriptions = new ArrayList<>();
+    private int traceSampleEveryNth = 1;
+    private int traceMaxLinesPerSecond = 1000;
+    private int tracePreviewBytes = 64;
+    private volatile MessageTraceLogger traceLogger;
+    private Map<String, Integer> existingSubscriptions = new ConcurrentHashMap<>();
 
-    private List<MqttClient> mqttClients = new ArrayList<>();
+    private List<MqttAsyncClient> mqttClients = new ArrayList<>();
+    private MqttPublisher publisher;
+    private PublishDistribution publishDistribution = PublishDistribution.TOPIC_HASH;
 
     private int maxInflightWindow = 10;
     private int clientInstanceCount = 1;
+    private int connectParallelism = 8;
+    private long connectTimeoutMs = 60000;
+    private ReconnectPolicy reconnectPolicy = ReconnectPolicy.disabled();
+    private String persistenceDirectory;
+    private volatile ConnectionSupervisor connectionSupervisor;
+    private final AtomicLong redeliveredMessages = new AtomicLong();
 
     /**
      * if null, a generated clientId will be used
@@ -34,13 +61,22 @@ public class MqttClientRule extends ExternalResource implements MqttCallback {
 
     private String SHARED_SUBSCRIPTION_PREFIX = "$share:SH" + DigestUtils.md5Hex("" + new Random().nextInt()) + ":";
 
-    /**
-     * topic - list(messages)
-     */
-    private List<ReceivedMessage> receivedMessages = new LinkedList<>();
+    private ReceivedMessageStore receivedMessages = new ReceivedMessageStore();
     private MqttMessageHandler messageHandler;
+    private final TopicTrie<MqttMessageHandler> filterMessageHandlers = new TopicTrie<>();
+    private HandlerDispatch handlerDispatch = HandlerDispatch.direct();
+    private volatile HandlerDispatcher handlerDispatcher;
     private boolean doCollectInternally = true;
 
+    private final LatencyTracker latencyTracker = new LatencyTracker();
+    private boolean doLatencyStamping = false;
+    private boolean doLatencyTracking = false;
+    private SequenceTracker sequenceTracker;
+    private volatile RequestTracker requestTracker;
+    private MqttMetrics metrics;
+    private String jmxName;
+    private ObjectName registeredJmxName;
+
 
     public MqttClientRule(String brokerhost, boolean ssl, int brokerPort, String username, String password, String truststorePath, String truststorePass) {
         this.brokerhost = brokerhost;
@@ -62,6 +98,48 @@ public class MqttClientRule extends ExternalResource implements MqttCallback {
         return this;
     }
 
+    /**
+     * Connect at most this many client instances at the same time, default 8
+     */
+    public MqttClientRule withConnectParallelism(int connectParallelism) {
+        this.connectParallelism = connectParallelism;
+        return this;
+    }
+
+    /**
+     * Time for connecting all client instances together, default 60s
+     */
+    public MqttClientRule withConnectTimeout(long connectTimeoutMs) {
+        this.connectTimeoutMs = connectTimeoutMs;
+        return this;
+    }
+
+    /**
+     * Reconnect lost connections instead of throwing, resubscribing unless the broker kept the session
+     */
+    public MqttClientRule withReconnect(ReconnectPolicy reconnectPolicy) {
+        this.reconnectPolicy = reconnectPolicy;
+        return this;
+    }
+
+    /**
+     * Connect without clean session and keep inflight messages in files below the given directory, so messages
+     * published or received during a connection loss are delivered after the reconnect.
+     * Use {@link #withClientId(String)} for a session surviving the test run.
+     */
+    public MqttClientRule withPersistentSession(String persistenceDirectory) {
+        this.persistenceDirectory = persistenceDirectory;
+        return this;
+    }
+
+    /**
+     * How publishes are spread over the client instances, default {@link PublishDistribution#TOPIC_HASH}
+     */
+    public MqttClientRule withPublishDistribution(PublishDistribution publishDistribution) {
+        this.publishDistribution = publishDistribution;
+        return this;
+    }
+
     public MqttClientRule withBrokerPort(int port) {
         this.brokerPort = port;
         return this;
@@ -77,26 +155,197 @@ public class MqttClientRule extends ExternalResource implements MqttCallback {
         return this;
     }
 
+    /**
+     * Tune the output of {@link #doPrintOnMessageReceived(boolean)}. Received messages are printed asynchronously,
+     * lines beyond the rate limit are dropped.
+     * @param sampleEveryNth print only every nth message, 1 for all
+     * @param maxLinesPerSecond 0 for no limit
+     * @param previewBytes number of payload bytes printed
+     */
+    public MqttClientRule withMessageTrace(int sampleEveryNth, int maxLinesPerSecond, int previewBytes) {
+        this.traceSampleEveryNth = sampleEveryNth;
+        this.traceMaxLinesPerSecond = maxLinesPerSecond;
+        this.tracePreviewBytes = previewBytes;
+        return this;
+    }
+
     public MqttClientRule withMessageHandler(MqttMessageHandler messageHandler) {
         this.messageHandler = messageHandler;
         return this;
     }
 
+    /**
+     * Handler only called for messages whose topic matches the given filter. May contain + and # wildcards.
+     */
+    public MqttClientRule withMessageHandler(String topicFilter, MqttMessageHandler messageHandler) {
+        filterMessageHandlers.put(topicFilter, messageHandler);
+        return this;
+    }
+
+    /**
+     * Run message handlers on worker threads instead of Paho's callback thread
+     */
+    public MqttClientRule withHandlerDispatch(HandlerDispatch handlerDispatch) {
+        this.handlerDispatch = handlerDispatch;
+        return this;
+    }
+
     public MqttClientRule withInternalMessageCollection(boolean doCollectInternally) {
         this.doCollectInternally = doCollectInternally;
         return this;
     }
 
+    /**
+     * Prepend a {@link LatencyStamp} with send time and sequence number to every published payload, so a rule
+     * with latency tracking can measure the end-to-end latency.
+     */
+    public MqttClientRule withLatencyStamping(boolean doLatencyStamping) {
+        this.doLatencyStamping = doLatencyStamping;
+        return this;
+    }
+
+    /**
+     * Strip the {@link LatencyStamp} from received payloads and record the latency per topic.
+     * Sender and receiver clocks need to be in sync if they run on different hosts.
+     */
+    public MqttClientRule withLatencyTracking(boolean doLatencyTracking) {
+        this.doLatencyTracking = doLatencyTracking;
+        return this;
+    }
+
+    /**
+     * Detect gaps, duplicates and reordering in the sequence numbers of received messages, per topic and publisher.
+     * Only a window of sequence numbers below the highest one received is kept per topic and publisher.
+     */
+    public MqttClientRule withSequenceTracking(SequenceExtractor sequenceExtractor) {
+        return withSequenceTracking(sequenceExtractor, 1024);
+    }
+
+    /**
+     * @param windowSize how far behind the highest sequence number late messages are still recognized
+     */
+    public MqttClientRule withSequenceTracking(SequenceExtractor sequenceExtractor, int windowSize) {
+        this.sequenceTracker = new SequenceTracker(sequenceExtractor, windowSize);
+        return this;
+    }
+
+    /**
+     * Count messages and bytes in and out per topic and client instance, inflight publishes and delivery latency.
+     * See {@link #getMetrics()}.
+     */
+    public MqttClientRule withMetrics(boolean doCollectMetrics) {
+        this.metrics = doCollectMetrics ? new MqttMetrics(this) : null;
+        return this;
+    }
+
+    /**
+     * Collect metrics and register them as {@link MqttClientRuleMXBean} named
+     * de.stiffi.testing:type=MqttClientRule,name=&lt;name&gt; while connected, e.g. for watching a test in JConsole
+     */
+    public MqttClientRule withJmx(String name) {
+        if (metrics == null) {
+            withMetrics(true);
+        }
+        this.jmxName = name;
+        return this;
+    }
+
+    /**
+     * Bound the internally collected messages, e.g. for long running soak tests. Must be set before messages arrive.
+     */
+    public MqttClientRule withRetention(RetentionPolicy retentionPolicy) {
+        this.receivedMessages = new ReceivedMessageStore(retentionPolicy);
+        return this;
+    }
+
     @Override
     protected void before() throws Throwable {
         connect();
     }
 
+    /**
+     * Connect all client instances, up to connectParallelism at the same time. Fails with all connect errors
+     * collected as soon as one connect failed or the connect timeout elapsed; clients already connected are
+     * closed again then.
+     */
     public void connect() throws MqttException {
-        for (int i = 0; i < clientInstanceCount; i++) {
-            String clientId = generateClientId(i);
-            MqttClient client = connect(clientId);
-            mqttClients.add(client);
+        MqttAsyncClient[] clients = new MqttAsyncClient[clientInstanceCount];
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        Semaphore parallelConnects = new Semaphore(connectParallelism);
+        CountDownLatch connected = new CountDownLatch(clientInstanceCount);
+        long deadline = System.currentTimeMillis() + connectTimeoutMs;
+        if (metrics != null) {
+            metrics.connected(clientInstanceCount);
+        }
+        //Clients whose connect finished, and whether connect() gave up on them and the rest is to be closed on completion
+        Set<MqttAsyncClient> settled = ConcurrentHashMap.newKeySet();
+        Set<MqttAsyncClient> closing = ConcurrentHashMap.newKeySet();
+        AtomicBoolean abandoned = new AtomicBoolean();
+        //Before the first connect, a persistent session delivers its queued messages right away
+        if (!handlerDispatch.isDirect()) {
+            handlerDispatcher = new HandlerDispatcher(handlerDispatch);
+        }
+
+        try {
+            int issued = 0;
+            while (issued < clientInstanceCount && errors.isEmpty()) {
+                if (!parallelConnects.tryAcquire(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+                if (!errors.isEmpty()) {
+                    break;
+                }
+                String clientId = generateClientId(issued);
+                MqttAsyncClient client = createClient(clientId, issued);
+                clients[issued] = client;
+                connectAsync(client, clientId, errors, () -> {
+                    settled.add(client);
+                    if (abandoned.get()) {
+                        //Paho can't close a client while it connects, and blocks disconnects on the callback thread
+                        CompletableFuture.runAsync(() -> closeOnce(client, closing));
+                    }
+                    parallelConnects.release();
+                    connected.countDown();
+                });
+                issued++;
+            }
+            if (issued < clientInstanceCount && errors.isEmpty()) {
+                errors.add(new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT));
+            }
+            for (int i = issued; i < clientInstanceCount; i++) {
+                connected.countDown();
+            }
+            if (!connected.await(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                errors.add(new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            errors.add(e);
+        }
+
+        if (!errors.isEmpty()) {
+            //Clients still connecting are closed by their connect listener once it completes
+            abandoned.set(true);
+            for (MqttAsyncClient client : clients) {
+                if (client != null && settled.contains(client)) {
+                    closeOnce(client, closing);
+                }
+            }
+            HandlerDispatcher dispatcher = handlerDispatcher;
+            if (dispatcher != null) {
+                handlerDispatcher = null;
+                dispatcher.shutdown(5000);
+            }
+            throw connectFailed(errors);
+        }
+        mqttClients.addAll(Arrays.asList(clients));
+        if (reconnectPolicy.isEnabled()) {
+            connectionSupervisor = new ConnectionSupervisor(reconnectPolicy, this::createConnectOptions, this::resubscribe);
+        }
+        publisher = new MqttPublisher(mqttClients, maxInflightWindow, publishDistribution, metrics,
+                reconnectPolicy.isEnabled() && reconnectPolicy.getDisconnectedBufferSize() > 0);
+        if (jmxName != null) {
+            registerJmx();
         }
     }
 
@@ -106,15 +355,46 @@ public class MqttClientRule extends ExternalResource implements MqttCallback {
                 : predefinedClientId + "_" + counter;
     }
 
-    private MqttClient connect(String clientId) throws MqttException {
+    private void registerJmx() {
+        try {
+            ObjectName objectName = new ObjectName("de.stiffi.testing:type=MqttClientRule,name=" + ObjectName.quote(jmxName));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName);
+            registeredJmxName = objectName;
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void unregisterJmx() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredJmxName);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        registeredJmxName = null;
+    }
+
+    private MqttAsyncClient createClient(String clientId, int clientIndex) throws MqttException {
         String serverUri = (ssl ? "ssl://" : "tcp://") + brokerhost + ":" + brokerPort;
 
-        MqttClient mqttClient = new MqttClient(serverUri, clientId, new MemoryPersistence());
-        mqttClient.setCallback(this);
+        MqttClientPersistence persistence = persistenceDirectory != null ?
+                new MqttDefaultFilePersistence(persistenceDirectory) : new MemoryPersistence();
+        MqttAsyncClient mqttClient = new MqttAsyncClient(serverUri, clientId, persistence);
+        mqttClient.setCallback(new ClientCallback(mqttClient, clientIndex));
+        if (reconnectPolicy.isEnabled() && reconnectPolicy.getDisconnectedBufferSize() > 0) {
+            DisconnectedBufferOptions bufferOptions = new DisconnectedBufferOptions();
+            bufferOptions.setBufferEnabled(true);
+            bufferOptions.setBufferSize(reconnectPolicy.getDisconnectedBufferSize());
+            bufferOptions.setPersistBuffer(persistenceDirectory != null);
+            mqttClient.setBufferOpts(bufferOptions);
+        }
+        return mqttClient;
+    }
 
+    private MqttConnectOptions createConnectOptions() {
         MqttConnectOptions connOpts = new MqttConnectOptions();
         connOpts.setMaxInflight(maxInflightWindow);
-        connOpts.setCleanSession(true);
+        connOpts.setCleanSession(persistenceDirectory == null);
         if (username != null) {
             connOpts.setUserName(username);
         }
@@ -133,12 +413,63 @@ public class MqttClientRule extends ExternalResource implements MqttCallback {
 
             connOpts.setSSLProperties(sslClientProperties);
         }
+        return connOpts;
+    }
 
-
+    private void connectAsync(MqttAsyncClient mqttClient, String clientId, List<Throwable> errors, Runnable done) {
         System.out.println("MQTT Connect " + brokerhost + ":" + brokerPort + ", clientId: " + clientId + "....");
-        mqttClient.connect(connOpts);
+        long start = System.currentTimeMillis();
+        try {
+            mqttClient.connect(createConnectOptions(), null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    System.out.println("MQTT Connected clientId: " + clientId + " in " + (System.currentTimeMillis() - start) + "ms");
+                    done.run();
+                }
 
-        return mqttClient;
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    System.out.println("MQTT Connect failed clientId: " + clientId + " after " + (System.currentTimeMillis() - start) + "ms: " + exception);
+                    errors.add(exception);
+                    done.run();
+                }
+            });
+        } catch (MqttException e) {
+            System.out.println("MQTT Connect failed clientId: " + clientId + ": " + e);
+            errors.add(e);
+            done.run();
+        }
+    }
+
+    private MqttException connectFailed(List<Throwable> errors) {
+        Throwable first = errors.get(0);
+        MqttException exception = first instanceof MqttException ? (MqttException) first : new MqttException(first);
+        for (Throwable error : errors.subList(1, errors.size())) {
+            exception.addSuppressed(error);
+        }
+        return exception;
+    }
+
+    private void closeOnce(MqttAsyncClient client, Set<MqttAsyncClient> closing) {
+        if (closing.add(client)) {
+            closeQuietly(new MqttAsyncClient[]{client});
+        }
+    }
+
+    private void closeQuietly(MqttAsyncClient[] clients) {
+        for (MqttAsyncClient client : clients) {
+            if (client == null) {
+                continue;
+            }
+            try {
+                if (client.isConnected()) {
+                    client.disconnectForcibly(1000);
+                }
+                client.close();
+            } catch (MqttException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     @Override
@@ -148,32 +479,131 @@ public class MqttClientRule extends ExternalResource implements MqttCallback {
 
     public void disconnect() {
         System.out.println("MQTT Disconnect...");
-        for (MqttClient mqttClient : mqttClients) {
+        if (connectionSupervisor != null) {
+            connectionSupervisor.shutdown();
+            connectionSupervisor = null;
+        }
+        for (MqttAsyncClient mqttClient : mqttClients) {
             try {
                 if (mqttClient.isConnected()) {
-                    mqttClient.disconnect();
+                    mqttClient.disconnect().waitForCompletion();
                 }
             } catch (MqttException e) {
                 e.printStackTrace();
             }
         }
         mqttClients.clear();
+        publisher = null;
+        if (registeredJmxName != null) {
+            unregisterJmx();
+        }
+        if (handlerDispatcher != null) {
+            handlerDispatcher.shutdown(5000);
+            handlerDispatcher = null;
+        }
+        if (traceLogger != null) {
+            traceLogger.stop();
+        }
+        if (requestTracker != null) {
+            requestTracker.shutdown();
+            requestTracker = null;
+        }
         clearReceivedMessages();
         existingSubscriptions.clear();
     }
 
     public void subscribe(String topic) throws MqttException {
-        if (existingSubscriptions.contains(topic)) {
+        subscribe(topic, 1);
+    }
+
+    public void subscribe(String topic, int qos) throws MqttException {
+        subscribe(Collections.singletonMap(topic, qos));
+    }
+
+    /**
+     * Subscribe several topics with one SUBSCRIBE packet per client instance, on all instances concurrently.
+     * Topics already subscribed are skipped. If the subscribe fails, none of the topics count as subscribed.
+     * @param topicsToQos topic or topic filter - QoS
+     */
+    public void subscribe(Map<String, Integer> topicsToQos) throws MqttException {
+        //Claimed up front, so concurrent calls don't subscribe a topic twice; given back if the subscribe fails
+        List<String> claimed = new ArrayList<>();
+        List<String> topics = new ArrayList<>();
+        List<Integer> qos = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : topicsToQos.entrySet()) {
+            if (existingSubscriptions.putIfAbsent(entry.getKey(), entry.getValue()) == null) {
+                claimed.add(entry.getKey());
+                topics.add(clientInstanceCount > 1 ? SHARED_SUBSCRIPTION_PREFIX + entry.getKey() : entry.getKey());
+                qos.add(entry.getValue());
+            }
+        }
+        if (topics.isEmpty()) {
             return;
         }
+        boolean subscribed = false;
+        try {
+            subscribe(topics, qos);
+            subscribed = true;
+        } finally {
+            if (!subscribed) {
+                for (String topic : claimed) {
+                    existingSubscriptions.remove(topic);
+                }
+            }
+        }
+    }
+
+    /**
+     * @throws MqttException also if the broker rejected any of the topics
+     */
+    private void subscribe(List<String> topics, List<Integer> qos) throws MqttException {
+        String[] topicArray = topics.toArray(new String[0]);
+        int[] qosArray = new int[qos.size()];
+        for (int i = 0; i < qosArray.length; i++) {
+            qosArray[i] = qos.get(i);
+        }
+        System.out.println("Subscribe " + (topicArray.length == 1 ? topicArray[0] : topicArray.length + " topics"));
 
-        existingSubscriptions.add(topic);
-        if (clientInstanceCount > 1) {
-            topic = SHARED_SUBSCRIPTION_PREFIX + topic;
+        List<IMqttToken> tokens = new ArrayList<>();
+        for (MqttAsyncClient mqttClient : mqttClients) {
+            tokens.add(mqttClient.subscribe(topicArray, qosArray));
         }
-        for (MqttClient mqttClient : mqttClients) {
-            System.out.println("Subscribe " + topic);
-            mqttClient.subscribe(topic, 1);
+        for (IMqttToken token : tokens) {
+            token.waitForCompletion();
+            for (int grantedQos : token.getGrantedQos()) {
+                if (grantedQos == MqttException.REASON_CODE_SUBSCRIBE_FAILED) {
+                    throw new MqttException(MqttException.REASON_CODE_SUBSCRIBE_FAILED);
+                }
+            }
+        }
+    }
+
+    private void resubscribe(MqttAsyncClient mqttClient) {
+        Map<String, Integer> subscriptions = new HashMap<>(existingSubscriptions);
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        String[] topics = new String[subscriptions.size()];
+        int[] qos = new int[subscriptions.size()];
+        int i = 0;
+        for (Map.Entry<String, Integer> entry : subscriptions.entrySet()) {
+            topics[i] = clientInstanceCount > 1 ? SHARED_SUBSCRIPTION_PREFIX + entry.getKey() : entry.getKey();
+            qos[i++] = entry.getValue();
+        }
+        try {
+            mqttClient.subscribe(topics, qos, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    System.out.println("Resubscribed " + topics.length + " topics clientId: " + mqttClient.getClientId());
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    System.out.println("Resubscribe failed clientId: " + mqttClient.getClientId() + ": " + exception);
+                }
+            });
+        } catch (MqttException e) {
+            e.printStackTrace();
         }
     }
 
@@ -183,8 +613,174 @@ public class MqttClientRule extends ExternalResource implements MqttCallback {
 
     public void publish(String topic, byte[] payload, int qos, boolean retained) throws MqttException {
         System.out.println("Publishing message to " + topic);
-        //Currently we publish on the first client - if this causes trouble - make round robin
-        mqttClients.get(0).publish(topic, payload, qos, retained);
+        try {
+            publishAsync(topic, payload, qos, retained).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MqttException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MqttException) {
+                throw (MqttException) e.getCause();
+            }
+            throw new MqttException(e.getCause());
+        }
+    }
+
+    /**
+     * Publish without waiting for the acknowledgement. Publishes are spread over all client instances
+     * according to the {@link PublishDistribution} and keep up to maxInflight messages in flight per client.
+     * Blocks only while the inflight window of the chosen client is full.
+     * @return completes when the broker acknowledged the message (QoS 1/2) or it was sent (QoS 0)
+     */
+    public CompletableFuture<Void> publishAsync(String topic, byte[] payload, int qos) {
+        return publishAsync(topic, payload, qos, false);
+    }
+
+    public CompletableFuture<Void> publishAsync(String topic, byte[] payload, int qos, boolean retained) {
+        if (publisher == null) {
+            throw new IllegalStateException("Not connected");
+        }
+        if (doLatencyStamping) {
+            payload = latencyTracker.stamp(topic, payload);
+        }
+        return publisher.publish(topic, payload, qos, retained);
+    }
+
+    /**
+     * Publish a request with QoS 1 and complete the returned future with the response carrying the same
+     * correlation id. The response topic is subscribed on first use. The future completes on Paho's callback
+     * thread, exceptionally with a {@link java.util.concurrent.TimeoutException} if no response arrived in time.
+     * @param responseTopic topic or topic filter responses arrive on
+     * @param correlationExtractor applied to the request and to every message on the response topic
+     */
+    public CompletableFuture<ReceivedMessage> request(String topic, byte[] payload, String responseTopic,
+                                                      CorrelationExtractor correlationExtractor, long timeoutMs) {
+        String correlationId = correlationExtractor.getCorrelationId(new ReceivedMessage(topic, payload, false));
+        if (correlationId == null) {
+            throw new IllegalArgumentException("Request on " + topic + " has no correlation id");
+        }
+        RequestTracker tracker = getRequestTracker();
+        try {
+            subscribe(responseTopic, 1);
+        } catch (MqttException e) {
+            CompletableFuture<ReceivedMessage> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        CompletableFuture<ReceivedMessage> response = tracker.register(correlationId, responseTopic, correlationExtractor, timeoutMs);
+        if (!response.isDone()) {
+            publishAsync(topic, payload, 1).whenComplete((result, error) -> {
+                if (error != null) {
+                    tracker.failed(correlationId, error);
+                }
+            });
+        }
+        return response;
+    }
+
+    private RequestTracker getRequestTracker() {
+        RequestTracker tracker = requestTracker;
+        if (tracker == null) {
+            synchronized (this) {
+                if (requestTracker == null) {
+                    requestTracker = new RequestTracker();
+                }
+                tracker = requestTracker;
+            }
+        }
+        return tracker;
+    }
+
+    /**
+     * @return request to response round trips of {@link #request(String, byte[], String, CorrelationExtractor, long)}
+     */
+    public LatencyHistogram getRequestLatency() {
+        RequestTracker tracker = requestTracker;
+        return tracker == null ? new LatencyHistogram() : tracker.getRoundTrip();
+    }
+
+    public int getOutstandingRequestCount() {
+        RequestTracker tracker = requestTracker;
+        return tracker == null ? 0 : tracker.getOutstanding();
+    }
+
+    public long getTimedOutRequestCount() {
+        RequestTracker tracker = requestTracker;
+        return tracker == null ? 0 : tracker.getTimedOut();
+    }
+
+    public Map<String, ReceivedMessage> snapshotRetained(String topicFilter, long quietPeriodMs) throws MqttException {
+        return snapshotRetained(topicFilter, 1, quietPeriodMs);
+    }
+
+    /**
+     * Collect the retained state below a topic filter on a temporary client, without touching the received messages
+     * of this rule. The snapshot ends once no retained message arrived for the quiet period after the subscription
+     * was acknowledged, rather than after a fixed sleep.
+     * @param qos QoS of the temporary subscription, 0 spares the acks for very large snapshots
+     * @return retained message per topic, unordered
+     */
+    public Map<String, ReceivedMessage> snapshotRetained(String topicFilter, int qos, long quietPeriodMs) throws MqttException {
+        String serverUri = (ssl ? "ssl://" : "tcp://") + brokerhost + ":" + brokerPort;
+        String clientId = (predefinedClientId == null ? "MqttClientRuleTesting" : predefinedClientId)
+                + "_snapshot_" + System.currentTimeMillis();
+        RetainedSnapshot snapshot = new RetainedSnapshot();
+        MqttAsyncClient client = new MqttAsyncClient(serverUri, clientId, new MemoryPersistence());
+        client.setCallback(snapshot);
+        MqttConnectOptions connectOptions = createConnectOptions();
+        connectOptions.setCleanSession(true);
+        long start = System.currentTimeMillis();
+        try {
+            client.connect(connectOptions).waitForCompletion(connectTimeoutMs);
+            IMqttToken subscription = client.subscribe(topicFilter, qos);
+            subscription.waitForCompletion(connectTimeoutMs);
+            if (subscription.getGrantedQos()[0] == MqttException.REASON_CODE_SUBSCRIBE_FAILED) {
+                throw new MqttException(MqttException.REASON_CODE_SUBSCRIBE_FAILED);
+            }
+            snapshot.touch();
+            snapshot.awaitQuiet(quietPeriodMs);
+            client.unsubscribe(topicFilter).waitForCompletion(connectTimeoutMs);
+            client.disconnect().waitForCompletion(connectTimeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MqttException(e);
+        } finally {
+            closeQuietly(new MqttAsyncClient[]{client});
+        }
+        Map<String, ReceivedMessage> messages = snapshot.getMessages();
+        System.out.println("Retained snapshot of " + topicFilter + ": " + messages.size() + " topics in "
+                + (System.currentTimeMillis() - start) + "ms");
+        return messages;
+    }
+
+    /**
+     * Publish all messages pipelined
+     * @return completes when all messages are acknowledged, or exceptionally when one of them failed
+     */
+    public CompletableFuture<Void> publishAll(Collection<OutgoingMessage> messages) {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[messages.size()];
+        int i = 0;
+        for (OutgoingMessage message : messages) {
+            futures[i++] = publishAsync(message.getTopic(), message.getPayload(), message.getQos(), message.isRetained());
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    /**
+     * Wait until every message published so far is acknowledged or failed
+     * @return false if the timeout elapsed first
+     */
+    public boolean waitForPublishAcks(long timeoutMs) {
+        if (publisher == null) {
+            return true;
+        }
+        try {
+            return publisher.awaitOutstanding(timeoutMs);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            Thread.currentThread().interrupt();
+            return false;
+        }
     }
 
     @Override
@@ -194,83 +790,438 @@ public class MqttClientRule extends ExternalResource implements MqttCallback {
 
     @Override
     public void messageArrived(String topic, MqttMessage message) throws Exception {
-        if (messageHandler != null) {
-            messageHandler.messageReceived(new ReceivedMessage(topic, message.getPayload(), message.isRetained()));
+        messageArrived(-1, topic, message);
+    }
+
+    /**
+     * @param clientIndex receiving client instance, -1 if unknown
+     */
+    private void messageArrived(int clientIndex, String topic, MqttMessage message) throws Exception {
+        if (metrics != null) {
+            metrics.received(clientIndex, topic, message.getPayload().length);
+        }
+        if (message.isDuplicate()) {
+            redeliveredMessages.incrementAndGet();
+        }
+        byte[] payload = message.getPayload();
+        int payloadOffset = 0;
+        LatencyStamp latencyStamp = null;
+        if (doLatencyTracking) {
+            latencyStamp = latencyTracker.record(topic, payload);
+            if (latencyStamp != null) {
+                payloadOffset = LatencyStamp.LENGTH;
+            }
+        }
+        ReceivedMessage receivedMessage = new ReceivedMessage(topic, payload, payloadOffset, payload.length - payloadOffset, message.isRetained(), message.getQos());
+        receivedMessage.setLatencyStamp(latencyStamp);
+        receivedMessage.setClientIndex(clientIndex);
+        if (sequenceTracker != null) {
+            sequenceTracker.record(receivedMessage);
         }
 
-        if (doCollectInternally) {
-            synchronized (receivedMessages) {
-                receivedMessages.add(new ReceivedMessage(topic, message.getPayload(), message.isRetained()));
+        if (messageHandler != null || !filterMessageHandlers.isEmpty()) {
+            HandlerDispatcher dispatcher = handlerDispatcher;
+            if (dispatcher == null) {
+                callMessageHandlers(receivedMessage);
+            } else {
+                dispatcher.dispatch(topic, () -> callMessageHandlers(receivedMessage));
             }
         }
 
+        if (doCollectInternally) {
+            receivedMessages.add(receivedMessage);
+        }
+
+        RequestTracker tracker = requestTracker;
+        if (tracker != null) {
+            tracker.messageArrived(receivedMessage);
+        }
+
         if (doPrintOnMessageReceived) {
-            System.out.println("Received MQTT message on topic "
-                    + topic
-                    + ", Count: " + getMessages(topic).size()
-                    + ", Content: " + (message.getPayload() != null ? Base64.getEncoder().encodeToString(message.getPayload()) : "null")
-            );
+            getTraceLogger().messageReceived(receivedMessage, getMessageCount(topic));
         }
     }
 
-    @Override
-    public void deliveryComplete(IMqttDeliveryToken token) {
+    /**
+     * Callback of one client instance, reconnects it on connection loss if a {@link ReconnectPolicy} is set
+     */
+    private class ClientCallback implements MqttCallback {
 
-    }
+        private final MqttAsyncClient mqttClient;
+        private final int clientIndex;
 
-    public List<byte[]> getMessages(String topic) {
-        List<byte[]> messages = new ArrayList<>(receivedMessages.size());
-        synchronized (receivedMessages) {
-            for (ReceivedMessage msg : receivedMessages) {
-                if (msg.getTopic().equals(topic)) {
-                    messages.add(msg.getPayload());
-                }
+        ClientCallback(MqttAsyncClient mqttClient, int clientIndex) {
+            this.mqttClient = mqttClient;
+            this.clientIndex = clientIndex;
+        }
+
+        @Override
+        public void connectionLost(Throwable cause) {
+            ConnectionSupervisor supervisor = connectionSupervisor;
+            if (supervisor != null) {
+                supervisor.connectionLost(mqttClient, cause);
+            } else {
+                MqttClientRule.this.connectionLost(cause);
             }
         }
-        return messages;
+
+        @Override
+        public void messageArrived(String topic, MqttMessage message) throws Exception {
+            MqttClientRule.this.messageArrived(clientIndex, topic, message);
+        }
+
+        @Override
+        public void deliveryComplete(IMqttDeliveryToken token) {
+            MqttClientRule.this.deliveryComplete(token);
+        }
     }
 
-    public List<ReceivedMessage> getReceivedMessages(String topic) {
-        List<ReceivedMessage> messages = new ArrayList<>(receivedMessages.size());
-        synchronized (receivedMessages) {
-            for (ReceivedMessage msg : receivedMessages) {
-                if (msg.getTopic().equals(topic)) {
-                    messages.add(msg);
+    private void callMessageHandlers(ReceivedMessage receivedMessage) {
+        if (messageHandler != null) {
+            messageHandler.messageReceived(receivedMessage);
+        }
+        filterMessageHandlers.matchFilters(receivedMessage.getTopic(), handler -> handler.messageReceived(receivedMessage));
+    }
+
+    private MessageTraceLogger getTraceLogger() {
+        MessageTraceLogger logger = traceLogger;
+        if (logger == null) {
+            synchronized (this) {
+                if (traceLogger == null) {
+                    traceLogger = new MessageTraceLogger(traceSampleEveryNth, traceMaxLinesPerSecond, tracePreviewBytes);
                 }
+                logger = traceLogger;
             }
         }
-        return messages;
+        return logger;
+    }
+
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken token) {
+        if (metrics != null && token.getUserContext() instanceof Long) {
+            metrics.deliveryComplete((Long) token.getUserContext());
+        }
+    }
+
+    /**
+     * Topic arguments of the message query, wait and assert methods may also be topic filters
+     * containing + and # wildcards, e.g. vehicles/+/telemetry/#
+     */
+    public List<byte[]> getMessages(String topic) {
+        return receivedMessages.getPayloads(topic);
+    }
+
+    public List<ReceivedMessage> getReceivedMessages(String topic) {
+        return receivedMessages.getMessages(topic);
     }
 
+    /**
+     * @return a snapshot of all received messages in arrival order
+     */
     public List<ReceivedMessage> getMessages() {
-        return receivedMessages;
+        return receivedMessages.getMessages();
+    }
+
+    /**
+     * @return number of messages received on the topic since the last clear, including messages evicted
+     * by the {@link RetentionPolicy}
+     */
+    public int getMessageCount(String topic) {
+        return receivedMessages.count(topic);
+    }
+
+    /**
+     * Mark the current point in the arrival order. Queries, waits and asserts given the cursor only look at messages
+     * received after it. This isolates test steps from each other without clearing history other waiters may need.
+     */
+    public MessageCursor mark() {
+        return new MessageCursor(receivedMessages.mark());
+    }
+
+    /**
+     * @return a snapshot of all messages received after the cursor, in arrival order
+     */
+    public List<ReceivedMessage> getMessages(MessageCursor since) {
+        return receivedMessages.getMessagesAfter(sequenceOf(since));
+    }
+
+    public List<byte[]> getMessages(String topic, MessageCursor since) {
+        List<byte[]> payloads = new ArrayList<>();
+        for (ReceivedMessage message : getReceivedMessages(topic, since)) {
+            payloads.add(message.getPayload());
+        }
+        return payloads;
+    }
+
+    public List<ReceivedMessage> getReceivedMessages(String topic, MessageCursor since) {
+        return receivedMessages.getMessages(topic, sequenceOf(since));
+    }
+
+    /**
+     * @return number of messages received on the topic after the cursor, not including evicted messages
+     */
+    public int getMessageCount(String topic, MessageCursor since) {
+        return since == null ? getMessageCount(topic) : receivedMessages.count(topic, since.getSequence());
+    }
+
+    /**
+     * Drop the messages received up to the cursor, a batch at a time so delivery isn't held up. Message counts
+     * keep including them, as with messages evicted by the {@link RetentionPolicy}.
+     * @return number of messages dropped
+     */
+    public int compactReceivedMessages(MessageCursor upTo) {
+        return receivedMessages.compact(upTo.getSequence());
     }
 
+    private static long sequenceOf(MessageCursor since) {
+        return since == null ? 0 : since.getSequence();
+    }
+
+    /**
+     * @return live metrics, needs {@link #withMetrics(boolean)} or {@link #withJmx(String)}
+     */
+    public MqttClientRuleMXBean getMetrics() {
+        return requireMetrics();
+    }
+
+    private MqttMetrics requireMetrics() {
+        if (metrics == null) {
+            throw new IllegalStateException("Metrics not enabled, see withMetrics");
+        }
+        return metrics;
+    }
+
+    /**
+     * @return time from publish to deliveryComplete, needs metrics
+     */
+    public LatencyHistogram getDeliveryLatency() {
+        return metrics == null ? new LatencyHistogram() : metrics.getDeliveryLatency();
+    }
+
+    int getInflight() {
+        MqttPublisher currentPublisher = publisher;
+        return currentPublisher == null ? 0 : currentPublisher.getOutstanding();
+    }
+
+    int getMaxInflight() {
+        return maxInflightWindow * clientInstanceCount;
+    }
+
+    public int getRetainedMessageCount() {
+        return receivedMessages.getRetainedMessageCount();
+    }
+
+    public long getRetainedPayloadBytes() {
+        return receivedMessages.getRetainedBytes();
+    }
+
+    public long getEvictedMessageCount() {
+        return receivedMessages.getEvictedMessageCount();
+    }
+
+    /**
+     * Remove all received messages and reset the counts. Waiters keep waiting for new messages, but lose the
+     * history - see {@link #mark()} to ignore earlier messages instead.
+     */
     public void clearReceivedMessages() {
         receivedMessages.clear();
     }
 
+    /**
+     * @return publish to receive latencies of the topic, or of all topics matching a filter. Needs latency tracking.
+     */
+    public LatencyHistogram getLatencyHistogram(String topic) {
+        return latencyTracker.getHistogram(topic);
+    }
+
+    public void resetLatencyHistograms() {
+        latencyTracker.reset();
+    }
+
+    public void assertLatencyP99Below(String topic, double maxLatencyMs) {
+        assertLatencyPercentileBelow(topic, 99, maxLatencyMs);
+    }
+
+    public void assertLatencyPercentileBelow(String topic, double percentile, double maxLatencyMs) {
+        LatencyHistogram histogram = getLatencyHistogram(topic);
+        if (histogram.getCount() == 0) {
+            Assert.fail("No latencies recorded on " + topic);
+        }
+        double actual = histogram.getPercentileMs(percentile);
+        if (actual >= maxLatencyMs) {
+            Assert.fail("p" + percentile + " latency on " + topic + " is " + actual + "ms, expected below " + maxLatencyMs + "ms\n" + histogram);
+        }
+    }
+
+    /**
+     * @return gaps, duplicates and reordering on the topic, or on all topics matching a filter. Needs sequence tracking.
+     */
+    public SequenceReport getSequenceReport(String topic) {
+        if (sequenceTracker == null) {
+            throw new IllegalStateException("Sequence tracking not enabled, see withSequenceTracking");
+        }
+        return sequenceTracker.getReport(topic);
+    }
+
+    public void resetSequenceTracking() {
+        if (sequenceTracker != null) {
+            sequenceTracker.reset();
+        }
+    }
+
+    public void assertSequenceIntact(String topic) {
+        SequenceReport report = getSequenceReport(topic);
+        if (report.getReceived() == 0) {
+            Assert.fail("No sequence numbers received on " + topic);
+        }
+        if (!report.isIntact()) {
+            Assert.fail("Sequence on " + topic + " not intact: " + report);
+        }
+    }
+
+    /**
+     * @return number of successful reconnects of all client instances
+     */
+    public long getReconnectCount() {
+        ConnectionSupervisor supervisor = connectionSupervisor;
+        return supervisor == null ? 0 : supervisor.getReconnectCount();
+    }
+
+    /**
+     * @return time from connection loss to reconnect of every reconnect, empty without {@link ReconnectPolicy}
+     */
+    public LatencyHistogram getReconnectDowntime() {
+        ConnectionSupervisor supervisor = connectionSupervisor;
+        return supervisor == null ? new LatencyHistogram() : supervisor.getDowntime();
+    }
+
+    public long getTotalReconnectDowntimeMs() {
+        ConnectionSupervisor supervisor = connectionSupervisor;
+        return supervisor == null ? 0 : supervisor.getTotalDowntimeMs();
+    }
+
+    /**
+     * @return client instances currently waiting for a reconnect
+     */
+    public int getDisconnectedClientCount() {
+        ConnectionSupervisor supervisor = connectionSupervisor;
+        return supervisor == null ? 0 : supervisor.getDisconnectedCount();
+    }
+
+    /**
+     * @return messages received with the duplicate flag, i.e. redelivered by the broker after a connection loss
+     */
+    public long getRedeliveredMessageCount() {
+        return redeliveredMessages.get();
+    }
+
+    /**
+     * @return messages received per client instance since connect or {@link #resetLoadDistribution()}, needs metrics
+     */
+    public LoadDistribution getLoadDistribution() {
+        return requireMetrics().getLoadDistribution();
+    }
+
+    /**
+     * @return stored messages of the topic, or of all topics matching a filter, per receiving client instance
+     */
+    public LoadDistribution getLoadDistribution(String topic) {
+        long[] counts = new long[clientInstanceCount];
+        for (ReceivedMessage message : receivedMessages.getMessages(topic)) {
+            if (message.getClientIndex() >= 0 && message.getClientIndex() < counts.length) {
+                counts[message.getClientIndex()]++;
+            }
+        }
+        return new LoadDistribution(counts, 0);
+    }
+
+    /**
+     * Restart the per client instance counts of the metrics, needs metrics
+     */
+    public void resetLoadDistribution() {
+        requireMetrics().resetLoadDistribution();
+    }
+
+    /**
+     * Fail if the busiest client instance received more than maxMaxMinRatio times the messages of the least busy
+     * one, or the coefficient of variation of the counts is above maxCoefficientOfVariation. Needs metrics.
+     */
+    public void assertLoadBalanced(double maxMaxMinRatio, double maxCoefficientOfVariation) {
+        LoadDistribution distribution = getLoadDistribution();
+        if (distribution.getTotal() == 0) {
+            Assert.fail("No messages received");
+        }
+        if (distribution.getMaxMinRatio() > maxMaxMinRatio || distribution.getCoefficientOfVariation() > maxCoefficientOfVariation) {
+            Assert.fail("Load not balanced over client instances: " + distribution + ", expected max/min <= "
+                    + maxMaxMinRatio + " and cv <= " + maxCoefficientOfVariation);
+        }
+    }
+
+    /**
+     * @return number of messages waiting for their handlers, 0 with direct handler dispatch
+     */
+    public int getHandlerQueueDepth() {
+        HandlerDispatcher dispatcher = handlerDispatcher;
+        return dispatcher == null ? 0 : dispatcher.getQueueDepth();
+    }
+
+    /**
+     * @return time messages waited in the queue before their handlers were called, empty with direct handler dispatch
+     */
+    public LatencyHistogram getHandlerLag() {
+        HandlerDispatcher dispatcher = handlerDispatcher;
+        return dispatcher == null ? new LatencyHistogram() : dispatcher.getLag();
+    }
+
+    /**
+     * @return messages not handed to the handlers because the queue was full
+     */
+    public long getHandlerOverflowCount() {
+        HandlerDispatcher dispatcher = handlerDispatcher;
+        return dispatcher == null ? 0 : dispatcher.getDropped() + dispatcher.getRejected();
+    }
+
     public void waitForMessage(String topic, long timeoutMs) {
         waitForMessage(topic, timeoutMs, 1);
     }
 
     public void waitForMessage(String topic, long timeoutMs, int minimalNumberOfMessages) {
-        System.out.println("Waiting " + timeoutMs + "ms for >=" + minimalNumberOfMessages + " messages on topic " + topic);
+        waitForMessage(topic, null, timeoutMs, minimalNumberOfMessages);
+    }
+
+    /**
+     * @param since count only messages received after the cursor, null for all
+     */
+    public void waitForMessage(String topic, MessageCursor since, long timeoutMs, int minimalNumberOfMessages) {
+        System.out.println("Waiting " + timeoutMs + "ms for >=" + minimalNumberOfMessages + " messages on topic " + topic
+                + (since != null ? " since " + since : ""));
         if (timeoutMs <= 0) {
             return;
         }
 
-        long start = System.currentTimeMillis();
-        while (System.currentTimeMillis() < start + timeoutMs) {
-            try {
-                Thread.sleep(50);
-                List<byte[]> messages = getMessages(topic);
-                if (messages.size() >= minimalNumberOfMessages) {
-                    return;
-                }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+        waitForMessages(Collections.singletonMap(topic, minimalNumberOfMessages), since, timeoutMs);
+    }
+
+    /**
+     * Wait until every given topic has received at least its number of messages. Returns as soon as the last
+     * of these conditions is met.
+     * @param minimalMessageCounts topic - minimal number of messages
+     * @return false if the timeout elapsed before all counts were reached
+     */
+    public boolean waitForMessages(Map<String, Integer> minimalMessageCounts, long timeoutMs) {
+        return waitForMessages(minimalMessageCounts, null, timeoutMs);
+    }
+
+    /**
+     * @param since count only messages received after the cursor, null for all
+     */
+    public boolean waitForMessages(Map<String, Integer> minimalMessageCounts, MessageCursor since, long timeoutMs) {
+        try {
+            return receivedMessages.awaitCounts(minimalMessageCounts, sequenceOf(since), timeoutMs);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            Thread.currentThread().interrupt();
+            return false;
         }
     }
 
@@ -278,6 +1229,72 @@ public class MqttClientRule extends ExternalResource implements MqttCallback {
         waitForMessage(topic, 10000l);
     }
 
+    /**
+     * Wait for a message matching the predicate. Messages already received are tested once, then every arriving
+     * message is tested once as it arrives, on the delivering thread - keep the predicate cheap.
+     * @return the first matching message, null if none matched within the timeout
+     */
+    public ReceivedMessage awaitMessage(String topic, Predicate<ReceivedMessage> predicate, long timeoutMs) {
+        return awaitMessage(topic, null, predicate, timeoutMs);
+    }
+
+    /**
+     * @param since test only messages received after the cursor, null for all
+     */
+    public ReceivedMessage awaitMessage(String topic, MessageCursor since, Predicate<ReceivedMessage> predicate, long timeoutMs) {
+        List<ReceivedMessage> matches = awaitMessages(topic, since, predicate, 1, timeoutMs);
+        return matches.isEmpty() ? null : matches.get(0);
+    }
+
+    /**
+     * Wait until the given number of messages matched the predicate.
+     * @return the matching messages, fewer than requested if the timeout elapsed first
+     */
+    public List<ReceivedMessage> awaitMessages(String topic, Predicate<ReceivedMessage> predicate, int minimalNumberOfMatches, long timeoutMs) {
+        return awaitMessages(topic, null, predicate, minimalNumberOfMatches, timeoutMs);
+    }
+
+    public List<ReceivedMessage> awaitMessages(String topic, MessageCursor since, Predicate<ReceivedMessage> predicate, int minimalNumberOfMatches, long timeoutMs) {
+        try {
+            return receivedMessages.awaitMatches(topic, predicate, minimalNumberOfMatches, sequenceOf(since), timeoutMs);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            Thread.currentThread().interrupt();
+            return Collections.emptyList();
+        }
+    }
+
+    public void assertEventually(String failedMessage, String topic, Predicate<ReceivedMessage> predicate) {
+        assertEventually(failedMessage, topic, predicate, 10000l);
+    }
+
+    /**
+     * Assert that a message matching the predicate is received within the timeout
+     */
+    public void assertEventually(String failedMessage, String topic, Predicate<ReceivedMessage> predicate, long timeoutMs) {
+        assertEventually(failedMessage, topic, predicate, 1, timeoutMs);
+    }
+
+    public void assertEventually(String failedMessage, String topic, Predicate<ReceivedMessage> predicate, int expectedNumberOfMatches, long timeoutMs) {
+        assertEventually(failedMessage, topic, null, predicate, expectedNumberOfMatches, timeoutMs);
+    }
+
+    /**
+     * Assert that a message received after the cursor matches the predicate within the timeout
+     */
+    public void assertEventually(String failedMessage, String topic, MessageCursor since, Predicate<ReceivedMessage> predicate, long timeoutMs) {
+        assertEventually(failedMessage, topic, since, predicate, 1, timeoutMs);
+    }
+
+    public void assertEventually(String failedMessage, String topic, MessageCursor since, Predicate<ReceivedMessage> predicate, int expectedNumberOfMatches, long timeoutMs) {
+        List<ReceivedMessage> matches = awaitMessages(topic, since, predicate, expectedNumberOfMatches, timeoutMs);
+        if (matches.size() < expectedNumberOfMatches) {
+            Assert.fail(failedMessage + ", \nExpected : " + expectedNumberOfMatches + " matching messages on " + topic
+                    + (since != null ? " since " + since : "") + " within " + timeoutMs + "ms\nActual   : "
+                    + matches.size() + " matching of " + getMessageCount(topic, since) + " messages");
+        }
+    }
+
     /**
      * Assert that at least one or more messages are received
      * @param failedMessage
@@ -292,16 +1309,24 @@ public class MqttClientRule extends ExternalResource implements MqttCallback {
     }
 
     public void assertMessagesReceived(String failedMessage, String topic, int expectedMessageCount, long waitForMessageTimeout) {
-        waitForMessage(topic, waitForMessageTimeout, expectedMessageCount);
-        List<byte[]> receivedMessages = getMessages(topic);
+        assertMessagesReceived(failedMessage, topic, null, expectedMessageCount, waitForMessageTimeout);
+    }
+
+    /**
+     * Assert the number of messages received after the cursor, -1 for at least one
+     */
+    public void assertMessagesReceived(String failedMessage, String topic, MessageCursor since, int expectedMessageCount, long waitForMessageTimeout) {
+        //-1 means at least one message, so there's no point in waiting for more
+        waitForMessage(topic, since, waitForMessageTimeout, expectedMessageCount == -1 ? 1 : expectedMessageCount);
+        int receivedMessageCount = getMessageCount(topic, since);
 
-        if (expectedMessageCount == -1 && receivedMessages.size() == 0) {
+        if (expectedMessageCount == -1 && receivedMessageCount == 0) {
             //-1 means, that an undefined number of messages should be received. At least 1
             Assert.fail(failedMessage +", Topic: " + topic);
-        }else if (expectedMessageCount == -1 && receivedMessages.size() > 0) {
+        }else if (expectedMessageCount == -1 && receivedMessageCount > 0) {
             return;
-        }else if (receivedMessages.size() != expectedMessageCount) {
-            String msg = failedMessage + ", \nExpected : " + expectedMessageCount + " messages on " + topic + "\nActual   : " + receivedMessages.size() + " messages";
+        }else if (receivedMessageCount != expectedMessageCount) {
+            String msg = failedMessage + ", \nExpected : " + expectedMessageCount + " messages on " + topic + "\nActual   : " + receivedMessageCount + " messages";
             Assert.fail(msg);
         }
     }
@@ -0,0 +1,60 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import java.util.Map;
+
+/**
+ * Live view of a running {@link MqttClientRule}, registered with {@link MqttClientRule#withJmx(String)} or
+ * read with {@link MqttClientRule#getMetrics()}.
+ * <p>
+ * Rates are the average since the previous read of the same rate, or since the start for the first read.
+ */
+public interface MqttClientRuleMXBean {
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    double getMessagesInPerSecond();
+
+    double getMessagesOutPerSecond();
+
+    Map<String, Double> getMessagesInPerSecondByTopic();
+
+    Map<String, Double> getMessagesOutPerSecondByTopic();
+
+    /**
+     * @return publishes waiting for their acknowledgement
+     */
+    int getInflight();
+
+    /**
+     * @return maxInflightWindow times the number of client instances
+     */
+    int getMaxInflight();
+
+    double getDeliveryLatencyMeanMs();
+
+    double getDeliveryLatencyP99Ms();
+
+    double getDeliveryLatencyMaxMs();
+
+    long getStoredMessageCount();
+
+    long getStoredPayloadBytes();
+
+    /**
+     * @return messages received per client instance
+     */
+    long[] getMessagesInPerClient();
+
+    /**
+     * @return messages published per client instance
+     */
+    long[] getMessagesOutPerClient();
+
+    void reset();
+}
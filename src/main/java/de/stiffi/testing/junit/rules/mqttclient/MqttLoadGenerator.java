@@ -0,0 +1,275 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import de.stiffi.testing.junit.helpers.TemplateHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes load through a connected {@link MqttClientRule} at a target rate.
+ * <p>
+ * Usage:
+ * <pre>
+ *     LoadGeneratorReport report = new MqttLoadGenerator(mqttClientRule)
+ *         .withRate(5000)
+ *         .withPayloadSize(512)
+ *         .withTopics("load/{{n}}/data", 100)
+ *         .withDuration(60000)
+ *         .run();
+ * </pre>
+ * Messages are spread over the rule's client instances by {@link MqttClientRule#publishAsync(String, byte[], int)}.
+ * Throughput, acknowledge latency and errors are printed while running and returned at the end.
+ */
+public class MqttLoadGenerator {
+
+    public static final String TOPIC_INDEX_TAG = "{{n}}";
+
+    private final MqttClientRule mqttClientRule;
+    private double messagesPerSecond = 100;
+    private double burst = 1;
+    private int payloadSize = 128;
+    private String topicTemplate = "loadtest/" + TOPIC_INDEX_TAG;
+    private int topicCount = 1;
+    private int qos = 1;
+    private long durationMs = 10000;
+    private long maxMessages = Long.MAX_VALUE;
+    private int publisherThreads = 1;
+    private long reportIntervalMs = 1000;
+    private long ackTimeoutMs = 30000;
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong acknowledged = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final LatencyHistogram ackLatency = new LatencyHistogram();
+    private volatile long startMs;
+    //0 while the phase is still running
+    private volatile long sendEndMs;
+    private volatile long drainEndMs;
+
+    //Publishes whose outcome isn't counted yet
+    private final Object pendingLock = new Object();
+    private long pending = 0;
+
+    public MqttLoadGenerator(MqttClientRule mqttClientRule) {
+        this.mqttClientRule = mqttClientRule;
+    }
+
+    /**
+     * Target rate over all topics and client instances
+     */
+    public MqttLoadGenerator withRate(double messagesPerSecond) {
+        this.messagesPerSecond = messagesPerSecond;
+        return this;
+    }
+
+    /**
+     * How many messages may be sent at once after the generator fell behind. Default 1, i.e. evenly paced.
+     */
+    public MqttLoadGenerator withBurst(double burst) {
+        this.burst = burst;
+        return this;
+    }
+
+    public MqttLoadGenerator withPayloadSize(int payloadSize) {
+        this.payloadSize = payloadSize;
+        return this;
+    }
+
+    /**
+     * Publish round robin to topicCount topics, rendered by replacing {{n}} in the template with 0..topicCount-1
+     */
+    public MqttLoadGenerator withTopics(String topicTemplate, int topicCount) {
+        this.topicTemplate = topicTemplate;
+        this.topicCount = topicCount;
+        return this;
+    }
+
+    public MqttLoadGenerator withQos(int qos) {
+        this.qos = qos;
+        return this;
+    }
+
+    public MqttLoadGenerator withDuration(long durationMs) {
+        this.durationMs = durationMs;
+        return this;
+    }
+
+    /**
+     * Stop after this many messages, even if the duration isn't over yet
+     */
+    public MqttLoadGenerator withMaxMessages(long maxMessages) {
+        this.maxMessages = maxMessages;
+        return this;
+    }
+
+    /**
+     * Number of threads issuing publishes. One is enough as long as publishing doesn't block on full inflight windows.
+     */
+    public MqttLoadGenerator withPublisherThreads(int publisherThreads) {
+        this.publisherThreads = publisherThreads;
+        return this;
+    }
+
+    /**
+     * Print a live report at this interval, 0 to switch off
+     */
+    public MqttLoadGenerator withReportInterval(long reportIntervalMs) {
+        this.reportIntervalMs = reportIntervalMs;
+        return this;
+    }
+
+    public MqttLoadGenerator withAckTimeout(long ackTimeoutMs) {
+        this.ackTimeoutMs = ackTimeoutMs;
+        return this;
+    }
+
+    /**
+     * Generate load until the duration is over or maxMessages are published, then wait for the outstanding
+     * acknowledgements.
+     */
+    public LoadGeneratorReport run() throws InterruptedException {
+        String[] topics = renderTopics();
+        byte[] payload = new byte[payloadSize];
+        ThreadLocalRandom.current().nextBytes(payload);
+        TokenBucket tokenBucket = new TokenBucket(messagesPerSecond, burst);
+
+        System.out.println("Load generator: " + messagesPerSecond + " msg/s, " + payloadSize + " bytes, "
+                + topicCount + " topics, " + durationMs + "ms");
+        sendEndMs = 0;
+        drainEndMs = 0;
+        startMs = System.currentTimeMillis();
+        long stopMs = startMs + durationMs;
+        AtomicLong messageCounter = new AtomicLong();
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        if (reportIntervalMs > 0) {
+            reporter.scheduleAtFixedRate(() -> System.out.println("Load generator: " + getReport()),
+                    reportIntervalMs, reportIntervalMs, TimeUnit.MILLISECONDS);
+        }
+
+        List<Thread> threads = new ArrayList<>();
+        try {
+            for (int t = 0; t < publisherThreads; t++) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        while (System.currentTimeMillis() < stopMs) {
+                            tokenBucket.acquire();
+                            if (System.currentTimeMillis() >= stopMs) {
+                                break;
+                            }
+                            //Counted only once the publish is going to be issued, not while waiting for the token
+                            long n = messageCounter.getAndIncrement();
+                            if (n >= maxMessages) {
+                                break;
+                            }
+                            publish(topics[(int) (n % topics.length)], payload);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }, "MqttLoadGenerator-" + t);
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            sendEndMs = System.currentTimeMillis();
+            if (!awaitPending(ackTimeoutMs)) {
+                System.out.println("Load generator: not all messages acknowledged within " + ackTimeoutMs + "ms");
+            }
+        } finally {
+            long now = System.currentTimeMillis();
+            if (sendEndMs == 0) {
+                sendEndMs = now;
+            }
+            drainEndMs = now;
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            reporter.shutdownNow();
+        }
+
+        LoadGeneratorReport report = getReport();
+        System.out.println("Load generator finished: " + report);
+        return report;
+    }
+
+    /**
+     * @return the numbers so far, all zero before {@link #run()}
+     */
+    public LoadGeneratorReport getReport() {
+        if (startMs == 0) {
+            return new LoadGeneratorReport(0, 0, 0, 0, 0, ackLatency);
+        }
+        long now = System.currentTimeMillis();
+        long sendEnd = sendEndMs;
+        long drainEnd = drainEndMs;
+        long sendMs = (sendEnd == 0 ? now : sendEnd) - startMs;
+        long drainMs = sendEnd == 0 ? 0 : (drainEnd == 0 ? now : drainEnd) - sendEnd;
+        return new LoadGeneratorReport(published.get(), acknowledged.get(), errors.get(), sendMs, drainMs, ackLatency);
+    }
+
+    private void publish(String topic, byte[] payload) {
+        long start = System.nanoTime();
+        CompletableFuture<Void> future;
+        try {
+            future = mqttClientRule.publishAsync(topic, payload, qos);
+        } catch (RuntimeException e) {
+            errors.incrementAndGet();
+            return;
+        }
+        published.incrementAndGet();
+        pendingChanged(1);
+        future.whenComplete((result, error) -> {
+            if (error != null) {
+                errors.incrementAndGet();
+            } else {
+                acknowledged.incrementAndGet();
+                ackLatency.recordNanos(System.nanoTime() - start);
+            }
+            pendingChanged(-1);
+        });
+    }
+
+    /**
+     * Wait until every publish is counted as acknowledged or failed. {@link MqttClientRule#waitForPublishAcks(long)}
+     * isn't enough, it may return before the completion of the last future got counted here.
+     */
+    private boolean awaitPending(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (pendingLock) {
+            while (pending > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                pendingLock.wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    private void pendingChanged(int delta) {
+        synchronized (pendingLock) {
+            pending += delta;
+            if (pending == 0) {
+                pendingLock.notifyAll();
+            }
+        }
+    }
+
+    private String[] renderTopics() {
+        String[] topics = new String[topicCount];
+        for (int i = 0; i < topicCount; i++) {
+            topics[i] = TemplateHelper.get().with(TOPIC_INDEX_TAG, "" + i).readString(topicTemplate);
+        }
+        return topics;
+    }
+}
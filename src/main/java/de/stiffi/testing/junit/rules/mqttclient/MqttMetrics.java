@@ -0,0 +1,220 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Counters of a {@link MqttClientRule}. The counting methods run on the publishing and Paho callback threads,
+ * so they only touch striped {@link LongAdder}s; everything else is computed when read.
+ */
+class MqttMetrics implements MqttClientRuleMXBean {
+
+    private static class TopicCounters {
+        final LongAdder in = new LongAdder();
+        final LongAdder out = new LongAdder();
+        final RateSampler inRate = new RateSampler();
+        final RateSampler outRate = new RateSampler();
+    }
+
+    private final MqttClientRule rule;
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final RateSampler inRate = new RateSampler();
+    private final RateSampler outRate = new RateSampler();
+    private final ConcurrentMap<String, TopicCounters> topics = new ConcurrentHashMap<>();
+    private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+    private volatile LongAdder[] clientIn = new LongAdder[0];
+    private volatile LongAdder[] clientOut = new LongAdder[0];
+    private volatile long clientInSinceNanos = System.nanoTime();
+
+    MqttMetrics(MqttClientRule rule) {
+        this.rule = rule;
+    }
+
+    void connected(int clientCount) {
+        clientIn = newAdders(clientCount);
+        clientOut = newAdders(clientCount);
+        clientInSinceNanos = System.nanoTime();
+    }
+
+    /**
+     * @param clientIndex receiving client instance, -1 if unknown
+     */
+    void received(int clientIndex, String topic, int bytes) {
+        messagesIn.increment();
+        bytesIn.add(bytes);
+        topic(topic).in.increment();
+        LongAdder[] perClient = clientIn;
+        if (clientIndex >= 0 && clientIndex < perClient.length) {
+            perClient[clientIndex].increment();
+        }
+    }
+
+    void published(int clientIndex, String topic, int bytes) {
+        messagesOut.increment();
+        bytesOut.add(bytes);
+        topic(topic).out.increment();
+        LongAdder[] perClient = clientOut;
+        if (clientIndex < perClient.length) {
+            perClient[clientIndex].increment();
+        }
+    }
+
+    void deliveryComplete(long publishNanos) {
+        deliveryLatency.recordNanos(System.nanoTime() - publishNanos);
+    }
+
+    private TopicCounters topic(String topic) {
+        TopicCounters counters = topics.get(topic);
+        if (counters == null) {
+            counters = topics.computeIfAbsent(topic, t -> new TopicCounters());
+        }
+        return counters;
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public double getMessagesInPerSecond() {
+        return inRate.sample(messagesIn.sum());
+    }
+
+    @Override
+    public double getMessagesOutPerSecond() {
+        return outRate.sample(messagesOut.sum());
+    }
+
+    @Override
+    public Map<String, Double> getMessagesInPerSecondByTopic() {
+        return ratesByTopic(counters -> counters.inRate.sample(counters.in.sum()));
+    }
+
+    @Override
+    public Map<String, Double> getMessagesOutPerSecondByTopic() {
+        return ratesByTopic(counters -> counters.outRate.sample(counters.out.sum()));
+    }
+
+    private Map<String, Double> ratesByTopic(Function<TopicCounters, Double> rate) {
+        Map<String, Double> rates = new TreeMap<>();
+        for (Map.Entry<String, TopicCounters> entry : topics.entrySet()) {
+            rates.put(entry.getKey(), rate.apply(entry.getValue()));
+        }
+        return rates;
+    }
+
+    @Override
+    public int getInflight() {
+        return rule.getInflight();
+    }
+
+    @Override
+    public int getMaxInflight() {
+        return rule.getMaxInflight();
+    }
+
+    @Override
+    public double getDeliveryLatencyMeanMs() {
+        return deliveryLatency.getMeanMicros() / 1000.0;
+    }
+
+    @Override
+    public double getDeliveryLatencyP99Ms() {
+        return deliveryLatency.getPercentileMs(99);
+    }
+
+    @Override
+    public double getDeliveryLatencyMaxMs() {
+        return deliveryLatency.getMaxMs();
+    }
+
+    LatencyHistogram getDeliveryLatency() {
+        return deliveryLatency;
+    }
+
+    @Override
+    public long getStoredMessageCount() {
+        return rule.getRetainedMessageCount();
+    }
+
+    @Override
+    public long getStoredPayloadBytes() {
+        return rule.getRetainedPayloadBytes();
+    }
+
+    @Override
+    public long[] getMessagesInPerClient() {
+        return sums(clientIn);
+    }
+
+    @Override
+    public long[] getMessagesOutPerClient() {
+        return sums(clientOut);
+    }
+
+    LoadDistribution getLoadDistribution() {
+        return new LoadDistribution(sums(clientIn), System.nanoTime() - clientInSinceNanos);
+    }
+
+    void resetLoadDistribution() {
+        for (LongAdder adder : clientIn) {
+            adder.reset();
+        }
+        clientInSinceNanos = System.nanoTime();
+    }
+
+    @Override
+    public void reset() {
+        messagesIn.reset();
+        messagesOut.reset();
+        bytesIn.reset();
+        bytesOut.reset();
+        inRate.reset();
+        outRate.reset();
+        topics.clear();
+        deliveryLatency.reset();
+        resetLoadDistribution();
+        for (LongAdder adder : clientOut) {
+            adder.reset();
+        }
+    }
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static long[] sums(LongAdder[] adders) {
+        long[] sums = new long[adders.length];
+        for (int i = 0; i < adders.length; i++) {
+            sums[i] = adders[i].sum();
+        }
+        return sums;
+    }
+}
@@ -0,0 +1,193 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pipelined publishing over several client instances.
+ * <p>
+ * Every client gets as many publishes in flight as its max inflight window allows. A publish only blocks the caller
+ * while the window of its client is full; acknowledgements complete the returned futures on Paho's callback thread.
+ * <p>
+ * Paho 1.2.0 keys the tokens of all QoS 0 publishes by message id 0, so a second QoS 0 publish pending on the
+ * same client loses its token and is never sent. QoS 0 publishes therefore go out one at a time per client.
+ * <p>
+ * While a client is disconnected and Paho buffers its publishes, QoS 1 and 2 publishes bypass the inflight window.
+ * Their permits would only come back on delivery, so the window would block publishers long before the buffer of
+ * {@link ReconnectPolicy#withDisconnectedBuffer(int)} is full.
+ */
+class MqttPublisher {
+
+    private static final long MAX_INFLIGHT_RETRY_SLEEP_MS = 1;
+
+    private final List<MqttAsyncClient> clients;
+    private final Semaphore[] inflightWindows;
+    private final Semaphore[] qos0Windows;
+    private final PublishDistribution distribution;
+    private final AtomicInteger nextClient = new AtomicInteger();
+    private final MqttMetrics metrics;
+    private final boolean bufferWhileDisconnected;
+
+    private final Object outstandingLock = new Object();
+    private int outstanding = 0;
+
+    MqttPublisher(List<MqttAsyncClient> clients, int maxInflight, PublishDistribution distribution) {
+        this(clients, maxInflight, distribution, null);
+    }
+
+    /**
+     * @param metrics null for no metrics; otherwise the publish time is passed as user context of the delivery token
+     */
+    MqttPublisher(List<MqttAsyncClient> clients, int maxInflight, PublishDistribution distribution, MqttMetrics metrics) {
+        this(clients, maxInflight, distribution, metrics, false);
+    }
+
+    /**
+     * @param bufferWhileDisconnected whether the clients have Paho's disconnected buffer enabled
+     */
+    MqttPublisher(List<MqttAsyncClient> clients, int maxInflight, PublishDistribution distribution, MqttMetrics metrics, boolean bufferWhileDisconnected) {
+        this.clients = clients;
+        this.distribution = distribution;
+        this.metrics = metrics;
+        this.bufferWhileDisconnected = bufferWhileDisconnected;
+        this.inflightWindows = new Semaphore[clients.size()];
+        this.qos0Windows = new Semaphore[clients.size()];
+        for (int i = 0; i < inflightWindows.length; i++) {
+            inflightWindows[i] = new Semaphore(maxInflight);
+            qos0Windows[i] = new Semaphore(1);
+        }
+    }
+
+    CompletableFuture<Void> publish(String topic, byte[] payload, int qos, boolean retained) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        int clientIndex = selectClient(topic);
+        MqttAsyncClient client = clients.get(clientIndex);
+        //Goes into Paho's buffer. Should the client reconnect meanwhile, Paho's own inflight limit still applies.
+        boolean buffered = bufferWhileDisconnected && qos > 0 && !client.isConnected();
+        Semaphore inflightWindow = buffered ? null : inflightWindows[clientIndex];
+        Semaphore qos0Window = qos == 0 ? qos0Windows[clientIndex] : null;
+        try {
+            if (qos0Window != null) {
+                qos0Window.acquire();
+            }
+            try {
+                if (inflightWindow != null) {
+                    inflightWindow.acquire();
+                }
+            } catch (InterruptedException e) {
+                if (qos0Window != null) {
+                    qos0Window.release();
+                }
+                throw e;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        outstandingChanged(1);
+        IMqttActionListener listener = new IMqttActionListener() {
+            @Override
+            public void onSuccess(IMqttToken asyncActionToken) {
+                completed();
+                future.complete(null);
+            }
+
+            @Override
+            public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                completed();
+                future.completeExceptionally(exception);
+            }
+
+            private void completed() {
+                if (inflightWindow != null) {
+                    inflightWindow.release();
+                }
+                if (qos0Window != null) {
+                    qos0Window.release();
+                }
+                outstandingChanged(-1);
+            }
+        };
+
+        Object userContext = null;
+        if (metrics != null) {
+            metrics.published(clientIndex, topic, payload != null ? payload.length : 0);
+            userContext = System.nanoTime();
+        }
+        try {
+            publish(client, topic, payload, qos, retained, userContext, listener);
+        } catch (MqttException | RuntimeException e) {
+            listener.onFailure(null, e);
+        }
+        return future;
+    }
+
+    private void publish(MqttAsyncClient client, String topic, byte[] payload, int qos, boolean retained, Object userContext, IMqttActionListener listener) throws MqttException {
+        while (true) {
+            try {
+                client.publish(topic, payload, qos, retained, userContext, listener);
+                return;
+            } catch (MqttException e) {
+                //Paho frees its inflight slot shortly after completing the token - give it a moment
+                if (e.getReasonCode() != MqttException.REASON_CODE_MAX_INFLIGHT) {
+                    throw e;
+                }
+                try {
+                    Thread.sleep(MAX_INFLIGHT_RETRY_SLEEP_MS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private int selectClient(String topic) {
+        if (distribution == PublishDistribution.TOPIC_HASH) {
+            return Math.floorMod(topic.hashCode(), clients.size());
+        }
+        return Math.floorMod(nextClient.getAndIncrement(), clients.size());
+    }
+
+    int getOutstanding() {
+        synchronized (outstandingLock) {
+            return outstanding;
+        }
+    }
+
+    /**
+     * Block until every publish issued so far is acknowledged or failed
+     * @return false if the timeout elapsed first
+     */
+    boolean awaitOutstanding(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (outstandingLock) {
+            while (outstanding > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                outstandingLock.wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    private void outstandingChanged(int delta) {
+        synchronized (outstandingLock) {
+            outstanding += delta;
+            if (outstanding == 0) {
+                outstandingLock.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Records received messages into an append-only journal file for {@link MqttTrafficReplayer}.
+ * <p>
+ * Usage:
+ * <pre>
+ *     MqttTrafficRecorder recorder = new MqttTrafficRecorder(Paths.get("build/traffic.journal"));
+ *     mqttClientRule.withMessageHandler("vehicles/#", recorder);
+ *     ...
+ *     recorder.close();
+ * </pre>
+ * The file is written through memory mapped segments, so recording a message is a copy into memory; the
+ * operating system writes it out in the background.
+ * <p>
+ * File layout: magic (int), version (int), recording start in epoch milliseconds (long), then one record per
+ * message: record length (int, 0 marks the end), nanoseconds since the first record (long), qos (byte),
+ * retained (byte), topic length (short), topic UTF-8, payload length (int), payload.
+ */
+public class MqttTrafficRecorder implements MqttMessageHandler, Closeable {
+
+    static final int MAGIC = 0x4D51544A;
+    static final int VERSION = 1;
+    static final int FILE_HEADER_LENGTH = 16;
+    private static final int RECORD_HEADER_LENGTH = 4 + 8 + 1 + 1 + 2 + 4;
+    private static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long segmentSize;
+    private long firstRecordNanos;
+
+    private MappedByteBuffer segment;
+    private long segmentStart;
+    private long recordCount = 0;
+    private boolean closed = false;
+
+    public MqttTrafficRecorder(Path journal) throws IOException {
+        this(journal, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param segmentSize size of the memory mapped regions, the file grows by this size
+     */
+    public MqttTrafficRecorder(Path journal, long segmentSize) throws IOException {
+        this.channel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.segmentSize = segmentSize;
+        map(0, FILE_HEADER_LENGTH);
+        segment.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis());
+    }
+
+    @Override
+    public void messageReceived(ReceivedMessage receivedMessage) {
+        try {
+            record(receivedMessage);
+        } catch (IOException e) {
+            throw new IllegalStateException("Couldn't record message on " + receivedMessage.getTopic(), e);
+        }
+    }
+
+    public synchronized void record(ReceivedMessage message) throws IOException {
+        if (closed) {
+            return;
+        }
+        byte[] topic = message.getTopic().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = message.getPayloadBuffer();
+        int payloadLength = payload != null ? payload.remaining() : 0;
+        int recordLength = RECORD_HEADER_LENGTH + topic.length + payloadLength;
+        long nanos = System.nanoTime();
+        if (recordCount == 0) {
+            //Idle time before the first message isn't worth replaying
+            firstRecordNanos = nanos;
+        }
+
+        //Keep room for the end marker after the record
+        if (segment.remaining() < recordLength + 4) {
+            map(segmentStart + segment.position(), recordLength + 4);
+        }
+        segment.putInt(recordLength)
+                .putLong(nanos - firstRecordNanos)
+                .put((byte) message.getQos())
+                .put((byte) (message.isRetained() ? 1 : 0))
+                .putShort((short) topic.length)
+                .put(topic)
+                .putInt(payloadLength);
+        if (payload != null) {
+            segment.put(payload);
+        }
+        recordCount++;
+    }
+
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Write the end marker and cut the file to the recorded size
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        long end = segmentStart + segment.position();
+        segment.putInt(0);
+        segment.force();
+        channel.truncate(end + 4);
+        channel.close();
+    }
+
+    private void map(long position, int minimalSize) throws IOException {
+        if (segment != null) {
+            segment.force();
+        }
+        segmentStart = position;
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.max(segmentSize, minimalSize));
+    }
+}
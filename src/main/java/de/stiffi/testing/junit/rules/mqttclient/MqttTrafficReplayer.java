@@ -0,0 +1,137 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publishes the messages of a journal written by {@link MqttTrafficRecorder} through a connected
+ * {@link MqttClientRule}.
+ * <p>
+ * Usage:
+ * <pre>
+ *     long published = new MqttTrafficReplayer(Paths.get("build/traffic.journal"))
+ *         .withSpeed(10)
+ *         .replay(mqttClientRule);
+ * </pre>
+ * The time between messages is kept, divided by the speed factor; {@link #MAX_SPEED} publishes as fast as
+ * possible. Publishes are pipelined over all client instances of the rule - use
+ * {@link PublishDistribution#TOPIC_HASH} to keep the order of messages per topic.
+ */
+public class MqttTrafficReplayer {
+
+    public static final double MAX_SPEED = 0;
+
+    private static final long MAX_MAPPED_SIZE = Integer.MAX_VALUE;
+
+    private final Path journal;
+    private double speed = 1;
+    private boolean replayRetained = true;
+    private long ackTimeoutMs = 30000;
+
+    public MqttTrafficReplayer(Path journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * @param speed 1 for the recorded timing, 2 for twice as fast, {@link #MAX_SPEED} for no waiting at all
+     */
+    public MqttTrafficReplayer withSpeed(double speed) {
+        this.speed = speed;
+        return this;
+    }
+
+    /**
+     * Whether messages recorded as retained are published with the retained flag, default true
+     */
+    public MqttTrafficReplayer withRetained(boolean replayRetained) {
+        this.replayRetained = replayRetained;
+        return this;
+    }
+
+    public MqttTrafficReplayer withAckTimeout(long ackTimeoutMs) {
+        this.ackTimeoutMs = ackTimeoutMs;
+        return this;
+    }
+
+    /**
+     * Publish all recorded messages and wait for their acknowledgements
+     * @return number of messages published
+     */
+    public long replay(MqttClientRule mqttClientRule) throws IOException, InterruptedException {
+        AtomicLong errors = new AtomicLong();
+        long published = 0;
+        long replayStartNanos = System.nanoTime();
+        long firstRecordedNanos = -1;
+
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            long position = 0;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fileSize, MAX_MAPPED_SIZE));
+            if (buffer.getInt() != MqttTrafficRecorder.MAGIC || buffer.getInt() != MqttTrafficRecorder.VERSION) {
+                throw new IOException(journal + " is no MQTT traffic journal");
+            }
+            buffer.getLong();
+
+            while (true) {
+                if (buffer.remaining() < 4 || buffer.remaining() < buffer.getInt(buffer.position()) + 4) {
+                    //Record crosses the mapped region, map the next one starting at this record
+                    position += buffer.position();
+                    if (position + 4 > fileSize) {
+                        break;
+                    }
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(fileSize - position, MAX_MAPPED_SIZE));
+                }
+                int recordLength = buffer.getInt();
+                if (recordLength == 0) {
+                    break;
+                }
+                long recordedNanos = buffer.getLong();
+                int qos = buffer.get();
+                boolean retained = buffer.get() == 1;
+                byte[] topic = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(topic);
+                byte[] payload = new byte[buffer.getInt()];
+                buffer.get(payload);
+
+                if (firstRecordedNanos < 0) {
+                    firstRecordedNanos = recordedNanos;
+                }
+                if (speed != MAX_SPEED) {
+                    waitUntil(replayStartNanos + (long) ((recordedNanos - firstRecordedNanos) / speed));
+                }
+                CompletableFuture<Void> future = mqttClientRule.publishAsync(new String(topic, StandardCharsets.UTF_8),
+                        payload, qos, retained && replayRetained);
+                future.whenComplete((result, error) -> {
+                    if (error != null) {
+                        errors.incrementAndGet();
+                    }
+                });
+                published++;
+            }
+        }
+
+        if (!mqttClientRule.waitForPublishAcks(ackTimeoutMs)) {
+            System.out.println("Replay: not all messages acknowledged within " + ackTimeoutMs + "ms");
+        }
+        System.out.println("Replayed " + published + " messages from " + journal + " in "
+                + (System.nanoTime() - replayStartNanos) / 1_000_000 + "ms, " + errors.get() + " errors");
+        return published;
+    }
+
+    private static void waitUntil(long nanos) throws InterruptedException {
+        long remaining;
+        while ((remaining = nanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+public class OutgoingMessage {
+    private final String topic;
+    private final byte[] payload;
+    private final int qos;
+    private final boolean retained;
+
+    public OutgoingMessage(String topic, byte[] payload, int qos) {
+        this(topic, payload, qos, false);
+    }
+
+    public OutgoingMessage(String topic, byte[] payload, int qos, boolean retained) {
+        this.topic = topic;
+        this.payload = payload;
+        this.qos = qos;
+        this.retained = retained;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public int getQos() {
+        return qos;
+    }
+
+    public boolean isRetained() {
+        return retained;
+    }
+}
@@ -0,0 +1,179 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Fixed capacity pool of direct memory for message payloads.
+ * <p>
+ * Memory is handed out in power of two size classes. A size class carves its blocks from chunks it takes from the
+ * arena; once every block of a chunk is released, the chunk goes back to the arena and may serve any size class.
+ * So evicting the oldest payloads eventually makes room for a payload of any size. Chunks are allocated lazily until
+ * the capacity is used up and are never given back, so heap and GC don't see the payloads at all.
+ */
+class PayloadArena {
+
+    static final int MIN_BLOCK_SIZE = 64;
+    static final int MAX_BLOCK_SIZE = 256 * 1024;
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * A block of a chunk, handed out by {@link #store(byte[], int, int)} and given back by {@link #release(Block)}
+     */
+    static final class Block {
+        private final ByteBuffer buffer;
+        private final Chunk chunk;
+
+        private Block(ByteBuffer buffer, Chunk chunk) {
+            this.buffer = buffer;
+            this.chunk = chunk;
+        }
+
+        /**
+         * @return the payload, position and limit set to it
+         */
+        ByteBuffer getBuffer() {
+            return buffer;
+        }
+    }
+
+    private static final class Chunk {
+        private final ByteBuffer memory;
+        private final ArrayDeque<Block> freeBlocks = new ArrayDeque<>();
+        private SizeClass owner;
+        private int liveBlocks;
+
+        Chunk(ByteBuffer memory) {
+            this.memory = memory;
+        }
+
+        boolean hasRoom() {
+            return !freeBlocks.isEmpty() || memory.remaining() >= owner.blockSize;
+        }
+
+        Block allocate() {
+            Block block = freeBlocks.pollFirst();
+            if (block == null) {
+                ByteBuffer carved = memory.duplicate();
+                carved.limit(carved.position() + owner.blockSize);
+                block = new Block(carved.slice(), this);
+                memory.position(carved.limit());
+            }
+            liveBlocks++;
+            return block;
+        }
+    }
+
+    private static final class SizeClass {
+        private final int blockSize;
+        /**
+         * Chunks of this class with a free or not yet carved block
+         */
+        private final ArrayDeque<Chunk> chunksWithRoom = new ArrayDeque<>();
+
+        SizeClass(int blockSize) {
+            this.blockSize = blockSize;
+        }
+    }
+
+    private final long capacity;
+    private final int chunkSize;
+    private long allocated = 0;
+    private final ArrayDeque<Chunk> emptyChunks = new ArrayDeque<>();
+    private final SizeClass[] sizeClasses;
+
+    PayloadArena(long capacity) {
+        this.capacity = capacity;
+        this.chunkSize = (int) Math.min(CHUNK_SIZE, capacity);
+        int count = Integer.numberOfTrailingZeros(MAX_BLOCK_SIZE) - Integer.numberOfTrailingZeros(MIN_BLOCK_SIZE) + 1;
+        sizeClasses = new SizeClass[count];
+        for (int i = 0; i < count; i++) {
+            sizeClasses[i] = new SizeClass(MIN_BLOCK_SIZE << i);
+        }
+    }
+
+    /**
+     * @return whether a payload of the given length can be stored at all, given enough blocks are released
+     */
+    boolean fits(int length) {
+        return length <= MAX_BLOCK_SIZE && sizeClassFor(length).blockSize <= chunkSize;
+    }
+
+    /**
+     * @return a block holding a copy of the payload, or null if the payload doesn't fit into the arena right now
+     */
+    Block store(byte[] payload, int offset, int length) {
+        if (!fits(length)) {
+            return null;
+        }
+        Block block = allocate(sizeClassFor(length));
+        if (block == null) {
+            return null;
+        }
+        ByteBuffer buffer = block.buffer;
+        buffer.clear();
+        buffer.put(payload, offset, length);
+        buffer.flip();
+        return block;
+    }
+
+    synchronized void release(Block block) {
+        Chunk chunk = block.chunk;
+        SizeClass sizeClass = chunk.owner;
+        boolean hadRoom = chunk.hasRoom();
+        chunk.freeBlocks.addFirst(block);
+        chunk.liveBlocks--;
+        if (chunk.liveBlocks == 0) {
+            //Hand the whole chunk back, it may be carved into blocks of another size next time
+            sizeClass.chunksWithRoom.remove(chunk);
+            chunk.freeBlocks.clear();
+            chunk.memory.clear();
+            chunk.owner = null;
+            emptyChunks.addFirst(chunk);
+        } else if (!hadRoom) {
+            sizeClass.chunksWithRoom.addFirst(chunk);
+        }
+    }
+
+    long getCapacity() {
+        return capacity;
+    }
+
+    synchronized long getAllocatedBytes() {
+        return allocated;
+    }
+
+    private synchronized Block allocate(SizeClass sizeClass) {
+        Chunk chunk = sizeClass.chunksWithRoom.peekFirst();
+        if (chunk == null) {
+            chunk = takeChunk();
+            if (chunk == null) {
+                return null;
+            }
+            chunk.owner = sizeClass;
+            sizeClass.chunksWithRoom.addFirst(chunk);
+        }
+        Block block = chunk.allocate();
+        if (!chunk.hasRoom()) {
+            sizeClass.chunksWithRoom.pollFirst();
+        }
+        return block;
+    }
+
+    private Chunk takeChunk() {
+        Chunk chunk = emptyChunks.pollFirst();
+        if (chunk != null) {
+            return chunk;
+        }
+        if (allocated + chunkSize > capacity) {
+            return null;
+        }
+        allocated += chunkSize;
+        return new Chunk(ByteBuffer.allocateDirect(chunkSize));
+    }
+
+    private SizeClass sizeClassFor(int length) {
+        int blockSize = Math.max(MIN_BLOCK_SIZE, Integer.highestOneBit(Math.max(1, length - 1)) << 1);
+        return sizeClasses[Integer.numberOfTrailingZeros(blockSize) - Integer.numberOfTrailingZeros(MIN_BLOCK_SIZE)];
+    }
+}
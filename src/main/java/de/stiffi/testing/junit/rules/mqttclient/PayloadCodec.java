@@ -0,0 +1,19 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes payloads for {@link ReceivedMessage#getPayloadAs(PayloadCodec)}, e.g. into a JSON tree:
+ * <pre>
+ *     PayloadCodec&lt;JsonNode&gt; json = payload -&gt; objectMapper.readTree(new ByteBufferBackedInputStream(payload));
+ * </pre>
+ * Keep one codec instance and reuse it - decoded payloads are cached per codec instance.
+ */
+@FunctionalInterface
+public interface PayloadCodec<T> {
+
+    /**
+     * @param payload read-only view of the payload
+     */
+    T decode(ByteBuffer payload) throws Exception;
+}
@@ -0,0 +1,58 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Waits for messages matching a predicate. The stored messages are tested once when the waiter is registered,
+ * after that every arriving message is tested exactly once, on the delivering thread.
+ */
+class PredicateWaiter extends MessageWaiter {
+
+    private final Predicate<ReceivedMessage> predicate;
+    private final int minimalMatches;
+    private final List<ReceivedMessage> matches = new ArrayList<>();
+
+    PredicateWaiter(Predicate<ReceivedMessage> predicate, int minimalMatches, long afterSequence) {
+        super(afterSequence);
+        this.predicate = predicate;
+        this.minimalMatches = minimalMatches;
+        if (minimalMatches <= 0) {
+            complete();
+        }
+    }
+
+    @Override
+    void alreadyStored(String key, TopicMessages topicMessages, long upToSequence) {
+        topicMessages.forEachBetween(afterSequence, upToSequence, this::test);
+    }
+
+    @Override
+    void messageArrived(String key, ReceivedMessage message) {
+        test(message);
+    }
+
+    private void test(ReceivedMessage message) {
+        if (isCompleted() || !predicate.test(message)) {
+            return;
+        }
+        synchronized (matches) {
+            if (matches.size() < minimalMatches) {
+                matches.add(message);
+                if (matches.size() == minimalMatches) {
+                    complete();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the matches found so far, in the order they were tested
+     */
+    List<ReceivedMessage> getMatches() {
+        synchronized (matches) {
+            return new ArrayList<>(matches);
+        }
+    }
+}
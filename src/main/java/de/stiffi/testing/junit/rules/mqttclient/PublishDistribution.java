@@ -0,0 +1,16 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+/**
+ * How {@link MqttClientRule} spreads publishes over its client instances
+ */
+public enum PublishDistribution {
+    /**
+     * Every publish goes to the next client instance. Spreads a single hot topic evenly, but publishes to the same
+     * topic race each other on different connections and may arrive out of order.
+     */
+    ROUND_ROBIN,
+    /**
+     * All publishes to the same topic go to the same client instance, which keeps their order. The default
+     */
+    TOPIC_HASH
+}
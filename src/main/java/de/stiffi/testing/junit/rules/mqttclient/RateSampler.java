@@ -0,0 +1,33 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+/**
+ * Turns a growing count into a rate per second between two reads
+ */
+class RateSampler {
+
+    private static final long MIN_INTERVAL_NANOS = 100_000_000L;
+
+    private long lastCount = 0;
+    private long lastNanos = System.nanoTime();
+    private double lastRate = 0;
+
+    /**
+     * @return rate since the previous sample, the previous rate again if that was less than 100ms ago
+     */
+    synchronized double sample(long count) {
+        long now = System.nanoTime();
+        long elapsed = now - lastNanos;
+        if (elapsed >= MIN_INTERVAL_NANOS) {
+            lastRate = (count - lastCount) * 1e9 / elapsed;
+            lastCount = count;
+            lastNanos = now;
+        }
+        return lastRate;
+    }
+
+    synchronized void reset() {
+        lastCount = 0;
+        lastNanos = System.nanoTime();
+        lastRate = 0;
+    }
+}
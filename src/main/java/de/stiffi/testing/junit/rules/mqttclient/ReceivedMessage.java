@@ -1,25 +1,285 @@
 package de.stiffi.testing.junit.rules.mqttclient;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A received message. One instance is created per arrival and shared by handlers and the internal collection.
+ * The payload array Paho delivered is used as is, not copied; payload views and decodings are created lazily.
+ */
 public class ReceivedMessage {
     private String topic;
     private byte[] payload;
+    private int payloadOffset;
+    private int payloadSize;
     private  boolean retained;
+    private int qos;
+
+    /**
+     * Arrival order across all topics, assigned by the {@link ReceivedMessageStore}. 0 if not stored.
+     */
+    private volatile long sequence;
+
+    /**
+     * Set instead of payload while the payload lives in a {@link PayloadArena}
+     */
+    private PayloadArena.Block offHeapPayload;
+    /**
+     * Set once the store no longer holds the message
+     */
+    private volatile boolean evicted;
+
+    private LatencyStamp latencyStamp;
+    private int clientIndex = -1;
+
+    private volatile byte[] payloadCopy;
+    private volatile String payloadString;
+    private volatile String payloadBase64;
+
+    /**
+     * Last payload decoded with a {@link PayloadCodec}, further codecs go to decodedPayloads
+     */
+    private volatile DecodedPayload decodedPayload;
+    private Map<PayloadCodec<?>, Object> decodedPayloads;
+
+    private static class DecodedPayload {
+        final PayloadCodec<?> codec;
+        final Object value;
+
+        DecodedPayload(PayloadCodec<?> codec, Object value) {
+            this.codec = codec;
+            this.value = value;
+        }
+    }
 
     public ReceivedMessage(String topic, byte[] payload, boolean retained) {
+        this(topic, payload, 0, payload != null ? payload.length : 0, retained);
+    }
+
+    ReceivedMessage(String topic, byte[] payload, int payloadOffset, int payloadSize, boolean retained) {
+        this(topic, payload, payloadOffset, payloadSize, retained, 0);
+    }
+
+    /**
+     * @param payload array holding the payload, not copied
+     */
+    ReceivedMessage(String topic, byte[] payload, int payloadOffset, int payloadSize, boolean retained, int qos) {
         this.topic = topic;
         this.payload = payload;
+        this.payloadOffset = payloadOffset;
+        this.payloadSize = payloadSize;
         this.retained = retained;
+        this.qos = qos;
     }
 
     public String getTopic() {
         return topic;
     }
 
+    /**
+     * @return the payload. Off-heap payloads are copied on every call, and are null once the message was evicted.
+     */
     public byte[] getPayload() {
-        return payload;
+        byte[] heapPayload = payload;
+        if (heapPayload != null) {
+            if (payloadOffset == 0 && payloadSize == heapPayload.length) {
+                return heapPayload;
+            }
+            byte[] copy = payloadCopy;
+            if (copy == null) {
+                copy = Arrays.copyOfRange(heapPayload, payloadOffset, payloadOffset + payloadSize);
+                payloadCopy = copy;
+            }
+            return copy;
+        }
+        synchronized (this) {
+            if (offHeapPayload == null) {
+                return null;
+            }
+            ByteBuffer buffer = offHeapPayload.getBuffer();
+            byte[] copy = new byte[buffer.remaining()];
+            buffer.duplicate().get(copy);
+            return copy;
+        }
+    }
+
+    /**
+     * @return a read-only view of the payload without copying it, null if there is no payload
+     */
+    public ByteBuffer getPayloadBuffer() {
+        byte[] heapPayload = payload;
+        if (heapPayload != null) {
+            return ByteBuffer.wrap(heapPayload, payloadOffset, payloadSize).slice().asReadOnlyBuffer();
+        }
+        //Off-heap memory is reused after eviction, so it is never handed out
+        byte[] copy = getPayload();
+        return copy == null ? null : ByteBuffer.wrap(copy).asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the payload decoded as UTF-8, decoded once on first use
+     */
+    public String getPayloadAsString() {
+        String string = payloadString;
+        if (string == null) {
+            synchronized (this) {
+                string = payloadString;
+                if (string == null) {
+                    ByteBuffer buffer = getPayloadBuffer();
+                    if (buffer == null) {
+                        return null;
+                    }
+                    string = StandardCharsets.UTF_8.decode(buffer).toString();
+                    payloadString = string;
+                }
+            }
+        }
+        return string;
+    }
+
+    /**
+     * @return the payload Base64 encoded, encoded once on first use
+     */
+    public String getPayloadAsBase64() {
+        String base64 = payloadBase64;
+        if (base64 == null) {
+            synchronized (this) {
+                base64 = payloadBase64;
+                if (base64 == null) {
+                    ByteBuffer buffer = getPayloadBuffer();
+                    if (buffer == null) {
+                        return null;
+                    }
+                    base64 = new String(Base64.getEncoder().encode(buffer).array(), StandardCharsets.ISO_8859_1);
+                    payloadBase64 = base64;
+                }
+            }
+        }
+        return base64;
+    }
+
+    /**
+     * @return the payload decoded with the codec, decoded once per codec instance on first use
+     * @throws IllegalArgumentException if the codec fails, the next call tries again
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getPayloadAs(PayloadCodec<T> codec) {
+        DecodedPayload last = decodedPayload;
+        if (last != null && last.codec == codec) {
+            return (T) last.value;
+        }
+        synchronized (this) {
+            if (decodedPayloads != null && decodedPayloads.containsKey(codec)) {
+                return (T) decodedPayloads.get(codec);
+            }
+            T value;
+            try {
+                value = codec.decode(getPayloadBuffer());
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Couldn't decode payload on " + topic, e);
+            }
+            if (decodedPayloads == null) {
+                decodedPayloads = new IdentityHashMap<>();
+            }
+            decodedPayloads.put(codec, value);
+            decodedPayload = new DecodedPayload(codec, value);
+            return value;
+        }
+    }
+
+    public int getPayloadSize() {
+        return payloadSize;
     }
 
     public boolean isRetained() {
         return retained;
     }
+
+    public int getQos() {
+        return qos;
+    }
+
+    /**
+     * @return the stamp stripped from the payload if latency tracking is on, null otherwise
+     */
+    public LatencyStamp getLatencyStamp() {
+        return latencyStamp;
+    }
+
+    void setLatencyStamp(LatencyStamp latencyStamp) {
+        this.latencyStamp = latencyStamp;
+    }
+
+    /**
+     * @return index of the client instance that received the message, -1 if unknown
+     */
+    public int getClientIndex() {
+        return clientIndex;
+    }
+
+    void setClientIndex(int clientIndex) {
+        this.clientIndex = clientIndex;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return a message sharing everything but the payload storage, for moving the copy off-heap
+     */
+    ReceivedMessage copy() {
+        ReceivedMessage copy = new ReceivedMessage(topic, payload, payloadOffset, payloadSize, retained, qos);
+        copy.latencyStamp = latencyStamp;
+        copy.clientIndex = clientIndex;
+        return copy;
+    }
+
+    /**
+     * Move the payload into the arena. Keeps it on the heap if the arena has no room.
+     * @return true if moved
+     */
+    synchronized boolean moveOffHeap(PayloadArena arena) {
+        if (payload == null) {
+            return false;
+        }
+        PayloadArena.Block block = arena.store(payload, payloadOffset, payloadSize);
+        if (block == null) {
+            return false;
+        }
+        offHeapPayload = block;
+        payload = null;
+        payloadCopy = null;
+        return true;
+    }
+
+    void markEvicted() {
+        evicted = true;
+    }
+
+    boolean isEvicted() {
+        return evicted;
+    }
+
+    boolean isOffHeap() {
+        return offHeapPayload != null;
+    }
+
+    /**
+     * Give the off-heap payload back to its arena - the message has been evicted.
+     */
+    synchronized void release(PayloadArena arena) {
+        if (offHeapPayload != null) {
+            arena.release(offHeapPayload);
+            offHeapPayload = null;
+        }
+    }
 }
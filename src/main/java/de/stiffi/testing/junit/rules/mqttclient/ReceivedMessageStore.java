@@ -0,0 +1,454 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import de.stiffi.testing.junit.helpers.mqtt.TopicTrie;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Received messages indexed by topic. Lookups and counts for a topic only touch the messages of that topic.
+ * <p>
+ * Wherever a topic is expected, a topic filter with {@code +} and {@code #} wildcards may be used as well.
+ * Filters are resolved by walking a trie of the topics seen so far.
+ * <p>
+ * The {@link RetentionPolicy} bounds what is kept; counts include evicted messages, queries only return
+ * retained ones.
+ * <p>
+ * Sequences are never reset, not even by {@link #clear()}. Queries and waits may be limited to the messages after
+ * a sequence returned by {@link #mark()}, which isolates a test from earlier traffic without clearing anything.
+ */
+class ReceivedMessageStore {
+
+    /**
+     * How many entries of messages evicted by other means arrivalOrder may hold beyond the retained ones before it
+     * is purged
+     */
+    private static final int ARRIVAL_ORDER_SLACK = 1024;
+
+    /**
+     * How many messages compaction evicts from a topic per acquisition of the topic lock
+     */
+    private static final int COMPACTION_BATCH = 1024;
+
+    private final ConcurrentMap<String, TopicMessages> topics = new ConcurrentHashMap<>();
+    private final TopicTrie<TopicMessages> topicTree = new TopicTrie<>();
+    private final TopicTrie<FilterWaiterRegistration> filterWaiters = new TopicTrie<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final RetentionPolicy retentionPolicy;
+    private final PayloadArena arena;
+    /**
+     * Retained messages in arrival order, kept whenever the globally oldest message may have to be evicted, i.e. with
+     * a global limit or an arena in any scope. Messages evicted per topic stay queued until they reach the head or
+     * the queue is purged.
+     */
+    private final Queue<ReceivedMessage> arrivalOrder;
+    private final AtomicInteger arrivalOrderSize = new AtomicInteger();
+    /**
+     * Taking messages off arrivalOrder is serialized, so the head is always the oldest message of its topic
+     */
+    private final Object evictionLock = new Object();
+    private final AtomicInteger retainedMessages = new AtomicInteger();
+    private final AtomicLong retainedBytes = new AtomicLong();
+    private final AtomicLong evictedMessages = new AtomicLong();
+
+    ReceivedMessageStore() {
+        this(RetentionPolicy.unbounded());
+    }
+
+    ReceivedMessageStore(RetentionPolicy retentionPolicy) {
+        this.retentionPolicy = retentionPolicy;
+        this.arena = retentionPolicy.getOffHeapArenaBytes() > 0 ? new PayloadArena(retentionPolicy.getOffHeapArenaBytes()) : null;
+        boolean evictsGlobally = arena != null
+                || (retentionPolicy.getScope() == RetentionPolicy.Scope.GLOBAL && retentionPolicy.isBounded());
+        this.arrivalOrder = evictsGlobally ? new ConcurrentLinkedQueue<>() : null;
+    }
+
+    void add(ReceivedMessage message) {
+        TopicMessages topicMessages = getOrCreate(message.getTopic());
+        if (arena != null) {
+            //Handlers may still use the heap payload of the original
+            message = message.copy();
+            moveOffHeap(message);
+        }
+        final ReceivedMessage stored = message;
+
+        while (true) {
+            synchronized (topicMessages) {
+                if (!topicMessages.isRemoved()) {
+                    //Sequence is assigned under the topic lock so a topic's messages are always ordered by sequence
+                    message.setSequence(sequence.incrementAndGet());
+                    topicMessages.add(message);
+                    if (arrivalOrder != null) {
+                        //Queued under the topic lock, so the messages of a topic are queued in their order
+                        arrivalOrder.add(message);
+                    }
+                    filterWaiters.matchFilters(message.getTopic(), registration -> registration.messageArrived(stored));
+                    break;
+                }
+            }
+            //Dropped by a clear meanwhile
+            topicMessages = getOrCreate(message.getTopic());
+        }
+        retainedMessages.incrementAndGet();
+        retainedBytes.addAndGet(message.getPayloadSize());
+        if (arrivalOrder != null && arrivalOrderSize.incrementAndGet() > 2 * retainedMessages.get() + ARRIVAL_ORDER_SLACK) {
+            purgeArrivalOrder();
+        }
+
+        if (retentionPolicy.isBounded()) {
+            if (retentionPolicy.getScope() == RetentionPolicy.Scope.PER_TOPIC) {
+                while (topicMessages.exceeds(retentionPolicy) && evictFrom(topicMessages)) {
+                    //evicted
+                }
+            } else {
+                while (retentionPolicy.exceeds(retainedMessages.get(), retainedBytes.get()) && evictOldest()) {
+                    //evicted
+                }
+            }
+        }
+    }
+
+    private void moveOffHeap(ReceivedMessage message) {
+        if (!arena.fits(message.getPayloadSize())) {
+            return;
+        }
+        while (!message.moveOffHeap(arena)) {
+            //Evicting the oldest messages eventually empties a chunk that any size class can take over
+            if (!evictOldest()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Evict the globally oldest message
+     * @return false if there was nothing to evict
+     */
+    private boolean evictOldest() {
+        synchronized (evictionLock) {
+            ReceivedMessage oldest;
+            while ((oldest = arrivalOrder.poll()) != null) {
+                arrivalOrderSize.decrementAndGet();
+                if (evictIfOldest(oldest)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return false if the message was evicted or cleared by other means meanwhile
+     */
+    private boolean evictIfOldest(ReceivedMessage message) {
+        if (message.isEvicted()) {
+            return false;
+        }
+        TopicMessages topicMessages = topics.get(message.getTopic());
+        if (topicMessages == null) {
+            return false;
+        }
+        ReceivedMessage evicted = topicMessages.evictOldestIf(oldest -> oldest == message);
+        if (evicted == null) {
+            return false;
+        }
+        released(evicted);
+        evictedMessages.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Drop the entries of messages evicted per topic, which global eviction didn't reach yet
+     */
+    private void purgeArrivalOrder() {
+        synchronized (evictionLock) {
+            for (Iterator<ReceivedMessage> it = arrivalOrder.iterator(); it.hasNext(); ) {
+                if (it.next().isEvicted()) {
+                    it.remove();
+                    arrivalOrderSize.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    private boolean evictFrom(TopicMessages topicMessages) {
+        ReceivedMessage evicted = topicMessages.evictOldest();
+        if (evicted == null) {
+            return false;
+        }
+        released(evicted);
+        evictedMessages.incrementAndGet();
+        return true;
+    }
+
+    private void released(ReceivedMessage message) {
+        message.markEvicted();
+        retainedMessages.decrementAndGet();
+        retainedBytes.addAndGet(-message.getPayloadSize());
+        if (arena != null) {
+            message.release(arena);
+        }
+    }
+
+    int getRetainedMessageCount() {
+        return retainedMessages.get();
+    }
+
+    long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+    long getEvictedMessageCount() {
+        return evictedMessages.get();
+    }
+
+    /**
+     * @return sequence of the latest message; every message stored later gets a higher one
+     */
+    long mark() {
+        return sequence.get();
+    }
+
+    /**
+     * @return number of messages received since the last clear, including evicted ones
+     */
+    int count(String topicOrFilter) {
+        int count = 0;
+        for (TopicMessages topicMessages : resolve(topicOrFilter)) {
+            count += topicMessages.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return number of retained messages received after the sequence
+     */
+    int count(String topicOrFilter, long afterSequence) {
+        int count = 0;
+        for (TopicMessages topicMessages : resolve(topicOrFilter)) {
+            count += topicMessages.countBetween(afterSequence, Long.MAX_VALUE);
+        }
+        return count;
+    }
+
+    List<byte[]> getPayloads(String topicOrFilter) {
+        if (!TopicTrie.isFilter(topicOrFilter)) {
+            TopicMessages topicMessages = topics.get(topicOrFilter);
+            return topicMessages == null ? new ArrayList<>() : topicMessages.getPayloads();
+        }
+        List<byte[]> payloads = new ArrayList<>();
+        for (ReceivedMessage message : getMessages(topicOrFilter)) {
+            payloads.add(message.getPayload());
+        }
+        return payloads;
+    }
+
+    List<ReceivedMessage> getMessages(String topicOrFilter) {
+        return getMessages(topicOrFilter, 0);
+    }
+
+    /**
+     * @return messages on the topic or topic filter received after the sequence, in arrival order
+     */
+    List<ReceivedMessage> getMessages(String topicOrFilter, long afterSequence) {
+        if (!TopicTrie.isFilter(topicOrFilter)) {
+            TopicMessages topicMessages = topics.get(topicOrFilter);
+            return topicMessages == null ? new ArrayList<>() : topicMessages.getMessagesAfter(afterSequence);
+        }
+        return merge(resolve(topicOrFilter), afterSequence);
+    }
+
+    /**
+     * @return all messages of all topics in arrival order
+     */
+    List<ReceivedMessage> getMessages() {
+        return getMessagesAfter(0);
+    }
+
+    /**
+     * @return all messages of all topics received after the sequence, in arrival order
+     */
+    List<ReceivedMessage> getMessagesAfter(long afterSequence) {
+        return merge(topics.values(), afterSequence);
+    }
+
+    /**
+     * Block until each topic or topic filter holds at least the given number of messages.
+     * @return false if the timeout elapsed first
+     */
+    boolean awaitCounts(Map<String, Integer> minimalMessageCounts, long timeoutMs) throws InterruptedException {
+        return awaitCounts(minimalMessageCounts, 0, timeoutMs);
+    }
+
+    /**
+     * Like {@link #awaitCounts(Map, long)}, counting only the messages received after the sequence
+     */
+    boolean awaitCounts(Map<String, Integer> minimalMessageCounts, long afterSequence, long timeoutMs) throws InterruptedException {
+        return await(new MessageCountWaiter(minimalMessageCounts, afterSequence), minimalMessageCounts.keySet(), timeoutMs);
+    }
+
+    /**
+     * Block until the given number of messages on the topic or topic filter matched the predicate.
+     * @return the matches, fewer than requested if the timeout elapsed first
+     */
+    List<ReceivedMessage> awaitMatches(String topicOrFilter, Predicate<ReceivedMessage> predicate, int minimalMatches, long timeoutMs) throws InterruptedException {
+        return awaitMatches(topicOrFilter, predicate, minimalMatches, 0, timeoutMs);
+    }
+
+    /**
+     * Like {@link #awaitMatches(String, Predicate, int, long)}, testing only the messages received after the sequence
+     */
+    List<ReceivedMessage> awaitMatches(String topicOrFilter, Predicate<ReceivedMessage> predicate, int minimalMatches, long afterSequence, long timeoutMs) throws InterruptedException {
+        PredicateWaiter waiter = new PredicateWaiter(predicate, minimalMatches, afterSequence);
+        await(waiter, Collections.singletonList(topicOrFilter), timeoutMs);
+        return waiter.getMatches();
+    }
+
+    private boolean await(MessageWaiter waiter, Collection<String> topicsOrFilters, long timeoutMs) throws InterruptedException {
+        List<TopicMessages> topicRegistrations = new ArrayList<>();
+        List<FilterWaiterRegistration> filterRegistrations = new ArrayList<>();
+        try {
+            for (String topicOrFilter : topicsOrFilters) {
+                if (waiter.isCompleted()) {
+                    break;
+                }
+                if (TopicTrie.isFilter(topicOrFilter)) {
+                    filterRegistrations.add(registerFilterWaiter(topicOrFilter, waiter));
+                } else {
+                    TopicMessages topicMessages = getOrCreate(topicOrFilter);
+                    while (!topicMessages.addWaiter(waiter)) {
+                        topicMessages = getOrCreate(topicOrFilter);
+                    }
+                    topicRegistrations.add(topicMessages);
+                }
+            }
+            return waiter.isCompleted() || waiter.await(timeoutMs);
+        } finally {
+            for (TopicMessages topicMessages : topicRegistrations) {
+                topicMessages.removeWaiter(waiter);
+            }
+            for (FilterWaiterRegistration registration : filterRegistrations) {
+                filterWaiters.remove(registration.getFilter(), registration);
+            }
+        }
+    }
+
+    private FilterWaiterRegistration registerFilterWaiter(String filter, MessageWaiter waiter) {
+        FilterWaiterRegistration registration = new FilterWaiterRegistration(filter, waiter);
+        filterWaiters.put(filter, registration);
+        //Everything up to this sequence is either stored already or being stored under its topic lock right now
+        long baseline = sequence.get();
+        for (TopicMessages topicMessages : topicTree.matchTopics(filter)) {
+            synchronized (topicMessages) {
+                waiter.alreadyStored(filter, topicMessages, baseline);
+            }
+        }
+        registration.baselineReached(baseline);
+        return registration;
+    }
+
+    /**
+     * Evict the messages up to the sequence, oldest first, a batch per topic lock so delivery keeps going meanwhile.
+     * Unlike {@link #clear()}, counts keep including the evicted messages.
+     * @return number of messages evicted
+     */
+    int compact(long upToSequence) {
+        int compacted = 0;
+        if (arrivalOrder != null) {
+            //Take the messages off the arrival order as well, so global eviction stays in step
+            synchronized (evictionLock) {
+                ReceivedMessage oldest;
+                while ((oldest = arrivalOrder.peek()) != null && oldest.getSequence() <= upToSequence) {
+                    arrivalOrder.poll();
+                    arrivalOrderSize.decrementAndGet();
+                    if (evictIfOldest(oldest)) {
+                        compacted++;
+                    }
+                }
+            }
+            return compacted;
+        }
+        for (TopicMessages topicMessages : topics.values()) {
+            List<ReceivedMessage> evicted;
+            do {
+                evicted = topicMessages.evictUpTo(upToSequence, COMPACTION_BATCH);
+                for (ReceivedMessage message : evicted) {
+                    released(message);
+                }
+                evictedMessages.addAndGet(evicted.size());
+                compacted += evicted.size();
+            } while (evicted.size() == COMPACTION_BATCH);
+        }
+        return compacted;
+    }
+
+    /**
+     * Remove all messages and reset the counts. Topics nobody waits for are dropped, so a test cycling through
+     * many topics doesn't keep an entry for every topic ever seen.
+     */
+    void clear() {
+        if (arrivalOrder != null) {
+            synchronized (evictionLock) {
+                arrivalOrder.clear();
+                arrivalOrderSize.set(0);
+            }
+        }
+        for (TopicMessages topicMessages : topics.values()) {
+            synchronized (topicMessages) {
+                for (ReceivedMessage message : topicMessages.clear()) {
+                    released(message);
+                }
+                if (topicMessages.markRemovedIfUnused()) {
+                    topics.remove(topicMessages.getTopic(), topicMessages);
+                    topicTree.remove(topicMessages.getTopic(), topicMessages);
+                }
+            }
+        }
+    }
+
+    int getTopicCount() {
+        return topics.size();
+    }
+
+    private Collection<TopicMessages> resolve(String topicOrFilter) {
+        if (TopicTrie.isFilter(topicOrFilter)) {
+            return topicTree.matchTopics(topicOrFilter);
+        }
+        TopicMessages topicMessages = topics.get(topicOrFilter);
+        return topicMessages == null ? Collections.emptyList() : Collections.singletonList(topicMessages);
+    }
+
+    private List<ReceivedMessage> merge(Collection<TopicMessages> topicMessagesList, long afterSequence) {
+        List<ReceivedMessage> messages = new ArrayList<>();
+        for (TopicMessages topicMessages : topicMessagesList) {
+            messages.addAll(topicMessages.getMessagesAfter(afterSequence));
+        }
+        Collections.sort(messages, Comparator.comparingLong(ReceivedMessage::getSequence));
+        return messages;
+    }
+
+    private TopicMessages getOrCreate(String topic) {
+        TopicMessages topicMessages = topics.get(topic);
+        if (topicMessages == null) {
+            topicMessages = topics.computeIfAbsent(topic, t -> {
+                TopicMessages created = new TopicMessages(t);
+                topicTree.put(t, created);
+                return created;
+            });
+        }
+        return topicMessages;
+    }
+}
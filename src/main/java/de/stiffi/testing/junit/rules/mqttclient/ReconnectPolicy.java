@@ -0,0 +1,72 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * What a {@link MqttClientRule} does when a client instance loses its connection.
+ * <p>
+ * By default the connection loss is thrown on Paho's callback thread. With {@link #backoff(long, long)} the
+ * client reconnects on its own, waiting twice as long after every failed attempt up to the maximum delay.
+ */
+public class ReconnectPolicy {
+
+    private final boolean enabled;
+    private final long initialDelayMs;
+    private final long maxDelayMs;
+    private double jitter = 0.5;
+    private int disconnectedBufferSize = 10000;
+
+    private ReconnectPolicy(boolean enabled, long initialDelayMs, long maxDelayMs) {
+        this.enabled = enabled;
+        this.initialDelayMs = initialDelayMs;
+        this.maxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * Throw on connection loss - the default
+     */
+    public static ReconnectPolicy disabled() {
+        return new ReconnectPolicy(false, 0, 0);
+    }
+
+    public static ReconnectPolicy backoff(long initialDelayMs, long maxDelayMs) {
+        return new ReconnectPolicy(true, initialDelayMs, maxDelayMs);
+    }
+
+    /**
+     * Randomly shorten every delay by up to this fraction, so many clients don't reconnect all at once. Default 0.5
+     */
+    public ReconnectPolicy withJitter(double jitter) {
+        this.jitter = jitter;
+        return this;
+    }
+
+    /**
+     * QoS 1 and 2 messages published while disconnected are buffered up to this number per client instance and sent
+     * after the reconnect, independent of the max inflight window. QoS 0 messages still go one at a time. 0 to fail
+     * publishes while disconnected instead. Default 10000
+     */
+    public ReconnectPolicy withDisconnectedBuffer(int disconnectedBufferSize) {
+        this.disconnectedBufferSize = disconnectedBufferSize;
+        return this;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    int getDisconnectedBufferSize() {
+        return disconnectedBufferSize;
+    }
+
+    /**
+     * @param attempt number of failed attempts so far
+     */
+    long getDelayMs(int attempt) {
+        long delay = initialDelayMs << Math.min(attempt, 30);
+        if (delay <= 0 || delay > maxDelayMs) {
+            delay = maxDelayMs;
+        }
+        return delay - (long) (delay * jitter * ThreadLocalRandom.current().nextDouble());
+    }
+}
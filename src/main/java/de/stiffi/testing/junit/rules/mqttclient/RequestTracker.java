@@ -0,0 +1,205 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import de.stiffi.testing.junit.helpers.mqtt.TopicTrie;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Matches responses to outstanding requests by correlation id and measures the round trip.
+ */
+class RequestTracker {
+
+    /**
+     * A response topic together with the extractors of the requests outstanding on it. Equal extractor instances
+     * are kept once, and an extractor is dropped once no outstanding request uses it.
+     */
+    private static class ResponseRoute {
+        final String responseTopic;
+        /**
+         * extractor - number of outstanding requests using it, guarded by the routes map
+         */
+        final Map<CorrelationExtractor, Integer> users = new IdentityHashMap<>();
+        volatile CorrelationExtractor[] extractors = new CorrelationExtractor[0];
+
+        ResponseRoute(String responseTopic) {
+            this.responseTopic = responseTopic;
+        }
+    }
+
+    private static class PendingRequest {
+        final ResponseRoute route;
+        final CorrelationExtractor extractor;
+        final CompletableFuture<ReceivedMessage> future = new CompletableFuture<>();
+        final long startNanos = System.nanoTime();
+        volatile ScheduledFuture<?> timeout;
+
+        PendingRequest(ResponseRoute route, CorrelationExtractor extractor) {
+            this.route = route;
+            this.extractor = extractor;
+        }
+    }
+
+    /**
+     * response topic - route, also the lock for adding and removing routes and their extractors
+     */
+    private final Map<String, ResponseRoute> routesByTopic = new HashMap<>();
+    private final TopicTrie<ResponseRoute> routes = new TopicTrie<>();
+    private final ConcurrentMap<String, PendingRequest> pending = new ConcurrentHashMap<>();
+    private final ScheduledThreadPoolExecutor timeouts;
+    private final LatencyHistogram roundTrip = new LatencyHistogram();
+    private final AtomicLong timedOut = new AtomicLong();
+
+    RequestTracker() {
+        timeouts = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "MqttClientRule-request-timeouts");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timeouts.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Register a request before it is published, so an early response is matched
+     */
+    CompletableFuture<ReceivedMessage> register(String correlationId, String responseTopic, CorrelationExtractor extractor, long timeoutMs) {
+        PendingRequest request = new PendingRequest(acquireRoute(responseTopic, extractor), extractor);
+        if (pending.putIfAbsent(correlationId, request) != null) {
+            releaseRoute(request);
+            request.future.completeExceptionally(new IllegalStateException("Request with correlation id " + correlationId + " already outstanding"));
+            return request.future;
+        }
+        request.timeout = timeouts.schedule(() -> {
+            if (pending.remove(correlationId, request)) {
+                releaseRoute(request);
+                timedOut.incrementAndGet();
+                request.future.completeExceptionally(new TimeoutException("No response on " + responseTopic
+                        + " for correlation id " + correlationId + " within " + timeoutMs + "ms"));
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+        return request.future;
+    }
+
+    private ResponseRoute acquireRoute(String responseTopic, CorrelationExtractor extractor) {
+        synchronized (routesByTopic) {
+            ResponseRoute route = routesByTopic.get(responseTopic);
+            if (route == null) {
+                route = new ResponseRoute(responseTopic);
+                routesByTopic.put(responseTopic, route);
+                routes.put(responseTopic, route);
+            }
+            Integer users = route.users.get(extractor);
+            route.users.put(extractor, users == null ? 1 : users + 1);
+            if (users == null) {
+                route.extractors = route.users.keySet().toArray(new CorrelationExtractor[0]);
+            }
+            return route;
+        }
+    }
+
+    /**
+     * Called once per request when it is no longer outstanding
+     */
+    private void releaseRoute(PendingRequest request) {
+        ResponseRoute route = request.route;
+        synchronized (routesByTopic) {
+            int users = route.users.get(request.extractor) - 1;
+            if (users > 0) {
+                route.users.put(request.extractor, users);
+                return;
+            }
+            route.users.remove(request.extractor);
+            route.extractors = route.users.keySet().toArray(new CorrelationExtractor[0]);
+            if (route.users.isEmpty()) {
+                routesByTopic.remove(route.responseTopic);
+                routes.remove(route.responseTopic, route);
+            }
+        }
+    }
+
+    void failed(String correlationId, Throwable error) {
+        PendingRequest request = pending.remove(correlationId);
+        if (request != null) {
+            releaseRoute(request);
+            cancelTimeout(request);
+            request.future.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Complete the request a received message answers, if any
+     */
+    void messageArrived(ReceivedMessage message) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        routes.matchFilters(message.getTopic(), route -> {
+            for (CorrelationExtractor extractor : route.extractors) {
+                String correlationId = extractor.getCorrelationId(message);
+                if (correlationId == null) {
+                    continue;
+                }
+                PendingRequest request = pending.get(correlationId);
+                if (request != null && request.route == route && request.extractor == extractor
+                        && pending.remove(correlationId, request)) {
+                    releaseRoute(request);
+                    roundTrip.recordNanos(System.nanoTime() - request.startNanos);
+                    cancelTimeout(request);
+                    request.future.complete(message);
+                    return;
+                }
+            }
+        });
+    }
+
+    private static void cancelTimeout(PendingRequest request) {
+        ScheduledFuture<?> timeout = request.timeout;
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+    }
+
+    /**
+     * @return number of distinct response topic and extractor pairs of the outstanding requests
+     */
+    int getRouteCount() {
+        synchronized (routesByTopic) {
+            int count = 0;
+            for (ResponseRoute route : routesByTopic.values()) {
+                count += route.users.size();
+            }
+            return count;
+        }
+    }
+
+    int getOutstanding() {
+        return pending.size();
+    }
+
+    long getTimedOut() {
+        return timedOut.get();
+    }
+
+    LatencyHistogram getRoundTrip() {
+        return roundTrip;
+    }
+
+    /**
+     * Fail all outstanding requests
+     */
+    void shutdown() {
+        for (String correlationId : pending.keySet()) {
+            failed(correlationId, new IllegalStateException("Disconnected"));
+        }
+        timeouts.shutdownNow();
+    }
+}
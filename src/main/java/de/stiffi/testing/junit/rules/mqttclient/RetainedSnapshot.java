@@ -0,0 +1,70 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Callback of the temporary client used by {@link MqttClientRule#snapshotRetained(String, long)}. Collects retained
+ * messages by topic and remembers when the last one arrived, so the snapshot can end as soon as the broker went quiet.
+ */
+class RetainedSnapshot implements MqttCallback {
+
+    private final Map<String, ReceivedMessage> messages = new ConcurrentHashMap<>(1024);
+    private volatile long lastArrivalNanos = System.nanoTime();
+    private volatile Throwable connectionLost;
+
+    /**
+     * Restart the quiet period, e.g. once the subscription was acknowledged
+     */
+    void touch() {
+        lastArrivalNanos = System.nanoTime();
+    }
+
+    /**
+     * Block until no retained message arrived for the quiet period
+     * @throws IllegalStateException if the connection was lost meanwhile
+     */
+    void awaitQuiet(long quietPeriodMs) throws InterruptedException {
+        long quietNanos = TimeUnit.MILLISECONDS.toNanos(quietPeriodMs);
+        while (true) {
+            if (connectionLost != null) {
+                throw new IllegalStateException("Connection lost while taking retained snapshot", connectionLost);
+            }
+            long idle = System.nanoTime() - lastArrivalNanos;
+            if (idle >= quietNanos) {
+                return;
+            }
+            Thread.sleep(Math.max(1, TimeUnit.NANOSECONDS.toMillis(quietNanos - idle)));
+        }
+    }
+
+    Map<String, ReceivedMessage> getMessages() {
+        return Collections.unmodifiableMap(messages);
+    }
+
+    @Override
+    public void connectionLost(Throwable cause) {
+        connectionLost = cause;
+    }
+
+    @Override
+    public void messageArrived(String topic, MqttMessage message) {
+        //Live messages on the same topics are not part of the retained state
+        if (!message.isRetained()) {
+            return;
+        }
+        byte[] payload = message.getPayload();
+        messages.put(topic, new ReceivedMessage(topic, payload, 0, payload.length, true, message.getQos()));
+        lastArrivalNanos = System.nanoTime();
+    }
+
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken token) {
+    }
+}
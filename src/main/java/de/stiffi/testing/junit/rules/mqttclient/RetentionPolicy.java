@@ -0,0 +1,98 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+/**
+ * Limits how many received messages {@link MqttClientRule} keeps. When a limit is exceeded, the oldest messages
+ * are evicted first. Counts used by the wait and assert methods still include evicted messages.
+ * <p>
+ * Usage:
+ * <pre>
+ *     new MqttClientRule(...)
+ *         .withRetention(RetentionPolicy.perTopic().withMaxMessages(1000))
+ *         .withRetention(RetentionPolicy.global().withMaxBytes(64 * 1024 * 1024).withOffHeapPayloads(64 * 1024 * 1024))
+ * </pre>
+ */
+public class RetentionPolicy {
+
+    public enum Scope {
+        /**
+         * Limits apply to every topic on its own
+         */
+        PER_TOPIC,
+        /**
+         * Limits apply to all topics together
+         */
+        GLOBAL
+    }
+
+    private final Scope scope;
+    private int maxMessages = Integer.MAX_VALUE;
+    private long maxBytes = Long.MAX_VALUE;
+    private long offHeapArenaBytes = 0;
+
+    private RetentionPolicy(Scope scope) {
+        this.scope = scope;
+    }
+
+    /**
+     * Keep everything - the default
+     */
+    public static RetentionPolicy unbounded() {
+        return new RetentionPolicy(Scope.GLOBAL);
+    }
+
+    public static RetentionPolicy perTopic() {
+        return new RetentionPolicy(Scope.PER_TOPIC);
+    }
+
+    public static RetentionPolicy global() {
+        return new RetentionPolicy(Scope.GLOBAL);
+    }
+
+    public RetentionPolicy withMaxMessages(int maxMessages) {
+        this.maxMessages = maxMessages;
+        return this;
+    }
+
+    /**
+     * Limit by the sum of payload sizes
+     */
+    public RetentionPolicy withMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * Keep payloads in an arena of direct memory instead of on the heap. If the arena runs full, the globally
+     * oldest messages are evicted, in any scope and whatever their size, until the payload fits. Payloads too large
+     * for the arena stay on the heap.
+     * @param arenaBytes capacity of the arena
+     */
+    public RetentionPolicy withOffHeapPayloads(long arenaBytes) {
+        this.offHeapArenaBytes = arenaBytes;
+        return this;
+    }
+
+    public Scope getScope() {
+        return scope;
+    }
+
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getOffHeapArenaBytes() {
+        return offHeapArenaBytes;
+    }
+
+    boolean isBounded() {
+        return maxMessages != Integer.MAX_VALUE || maxBytes != Long.MAX_VALUE;
+    }
+
+    boolean exceeds(int messages, long bytes) {
+        return messages > maxMessages || bytes > maxBytes;
+    }
+}
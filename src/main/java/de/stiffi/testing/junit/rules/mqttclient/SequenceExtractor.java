@@ -0,0 +1,55 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the sequence number of a received message for {@link MqttClientRule#withSequenceTracking(SequenceExtractor)}.
+ * Sequences are tracked per topic and publisher id.
+ */
+@FunctionalInterface
+public interface SequenceExtractor {
+
+    long NO_SEQUENCE = Long.MIN_VALUE;
+
+    /**
+     * @return sequence number of the message, {@link #NO_SEQUENCE} to ignore the message
+     */
+    long getSequence(ReceivedMessage message);
+
+    /**
+     * @return id of the publisher the sequence number belongs to, 0 if all messages of a topic share one sequence
+     */
+    default long getPublisherId(ReceivedMessage message) {
+        return 0;
+    }
+
+    /**
+     * Sequence number and publisher id of the {@link LatencyStamp}, needs latency stamping at the publisher and
+     * latency tracking at the receiver.
+     */
+    static SequenceExtractor latencyStamp() {
+        return new SequenceExtractor() {
+            @Override
+            public long getSequence(ReceivedMessage message) {
+                LatencyStamp stamp = message.getLatencyStamp();
+                return stamp != null ? stamp.getSequence() : NO_SEQUENCE;
+            }
+
+            @Override
+            public long getPublisherId(ReceivedMessage message) {
+                LatencyStamp stamp = message.getLatencyStamp();
+                return stamp != null ? stamp.getPublisherId() : 0;
+            }
+        };
+    }
+
+    /**
+     * Big endian long at the given payload position
+     */
+    static SequenceExtractor payloadLong(int offset) {
+        return message -> {
+            ByteBuffer payload = message.getPayloadBuffer();
+            return payload.remaining() >= offset + 8 ? payload.getLong(payload.position() + offset) : NO_SEQUENCE;
+        };
+    }
+}
@@ -0,0 +1,74 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+/**
+ * Sequence numbers missing, received twice or received late, see {@link MqttClientRule#getSequenceReport(String)}.
+ */
+public class SequenceReport {
+
+    private final long streams;
+    private final long received;
+    private final long gaps;
+    private final long duplicates;
+    private final long outOfOrder;
+    private final long tooLate;
+
+    SequenceReport(long streams, long received, long gaps, long duplicates, long outOfOrder, long tooLate) {
+        this.streams = streams;
+        this.received = received;
+        this.gaps = gaps;
+        this.duplicates = duplicates;
+        this.outOfOrder = outOfOrder;
+        this.tooLate = tooLate;
+    }
+
+    /**
+     * @return number of topic and publisher combinations tracked
+     */
+    public long getStreams() {
+        return streams;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * @return sequence numbers skipped and not received later
+     */
+    public long getGaps() {
+        return gaps;
+    }
+
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * @return messages received after a message with a higher sequence number, filling a gap
+     */
+    public long getOutOfOrder() {
+        return outOfOrder;
+    }
+
+    /**
+     * @return messages too far behind the highest sequence number to tell whether they are late or duplicate
+     */
+    public long getTooLate() {
+        return tooLate;
+    }
+
+    public boolean isIntact() {
+        return gaps == 0 && duplicates == 0 && outOfOrder == 0 && tooLate == 0;
+    }
+
+    SequenceReport add(SequenceReport other) {
+        return new SequenceReport(streams + other.streams, received + other.received, gaps + other.gaps,
+                duplicates + other.duplicates, outOfOrder + other.outOfOrder, tooLate + other.tooLate);
+    }
+
+    @Override
+    public String toString() {
+        return "streams=" + streams + " received=" + received + " gaps=" + gaps + " duplicates=" + duplicates
+                + " outOfOrder=" + outOfOrder + " tooLate=" + tooLate;
+    }
+}
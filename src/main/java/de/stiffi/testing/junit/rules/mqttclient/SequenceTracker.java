@@ -0,0 +1,58 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import de.stiffi.testing.junit.helpers.mqtt.TopicTrie;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Tracks the sequence numbers of received messages per topic and publisher.
+ */
+class SequenceTracker {
+
+    private final SequenceExtractor extractor;
+    private final int windowSize;
+    private final ConcurrentMap<String, ConcurrentMap<Long, SequenceWindow>> windows = new ConcurrentHashMap<>();
+
+    SequenceTracker(SequenceExtractor extractor, int windowSize) {
+        this.extractor = extractor;
+        this.windowSize = windowSize;
+    }
+
+    void record(ReceivedMessage message) {
+        long sequence = extractor.getSequence(message);
+        if (sequence == SequenceExtractor.NO_SEQUENCE) {
+            return;
+        }
+        Long publisherId = extractor.getPublisherId(message);
+        ConcurrentMap<Long, SequenceWindow> publishers = windows.get(message.getTopic());
+        if (publishers == null) {
+            publishers = windows.computeIfAbsent(message.getTopic(), t -> new ConcurrentHashMap<>());
+        }
+        SequenceWindow window = publishers.get(publisherId);
+        if (window == null) {
+            window = publishers.computeIfAbsent(publisherId, p -> new SequenceWindow(windowSize));
+        }
+        window.record(sequence);
+    }
+
+    /**
+     * @return report of a topic, or of all topics matching a filter merged together
+     */
+    SequenceReport getReport(String topicOrFilter) {
+        SequenceReport report = new SequenceReport(0, 0, 0, 0, 0, 0);
+        for (Map.Entry<String, ConcurrentMap<Long, SequenceWindow>> entry : windows.entrySet()) {
+            if (entry.getKey().equals(topicOrFilter) || TopicTrie.matches(topicOrFilter, entry.getKey())) {
+                for (SequenceWindow window : entry.getValue().values()) {
+                    report = report.add(window.getReport());
+                }
+            }
+        }
+        return report;
+    }
+
+    void reset() {
+        windows.clear();
+    }
+}
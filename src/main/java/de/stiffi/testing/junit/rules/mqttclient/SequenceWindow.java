@@ -0,0 +1,87 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import java.util.Arrays;
+
+/**
+ * Sequence state of one topic and publisher: the highest sequence number seen and a bitmap of the
+ * sequence numbers received below it. Memory stays constant no matter how many messages arrive.
+ */
+class SequenceWindow {
+
+    private final int windowSize;
+    private final long[] bits;
+
+    private boolean started = false;
+    private long first;
+    private long highest;
+
+    private long received = 0;
+    private long gaps = 0;
+    private long duplicates = 0;
+    private long outOfOrder = 0;
+    private long tooLate = 0;
+
+    /**
+     * @param windowSize number of sequence numbers below the highest one a late message is recognized in,
+     *                   rounded up to a multiple of 64
+     */
+    SequenceWindow(int windowSize) {
+        this.bits = new long[(windowSize + 63) / 64];
+        this.windowSize = bits.length * 64;
+    }
+
+    synchronized void record(long sequence) {
+        received++;
+        if (!started) {
+            started = true;
+            first = sequence;
+            highest = sequence;
+            set(sequence);
+        } else if (sequence > highest) {
+            long advance = sequence - highest;
+            if (advance >= windowSize) {
+                Arrays.fill(bits, 0);
+            } else {
+                for (long s = highest + 1; s < sequence; s++) {
+                    clear(s);
+                }
+            }
+            gaps += advance - 1;
+            highest = sequence;
+            set(sequence);
+        } else if (sequence <= highest - windowSize) {
+            tooLate++;
+        } else if (isSet(sequence)) {
+            duplicates++;
+        } else {
+            set(sequence);
+            outOfOrder++;
+            if (sequence > first) {
+                gaps--;
+            }
+        }
+    }
+
+    synchronized SequenceReport getReport() {
+        return new SequenceReport(1, received, gaps, duplicates, outOfOrder, tooLate);
+    }
+
+    private boolean isSet(long sequence) {
+        int bit = bitOf(sequence);
+        return (bits[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    private void set(long sequence) {
+        int bit = bitOf(sequence);
+        bits[bit >>> 6] |= 1L << bit;
+    }
+
+    private void clear(long sequence) {
+        int bit = bitOf(sequence);
+        bits[bit >>> 6] &= ~(1L << bit);
+    }
+
+    private int bitOf(long sequence) {
+        return (int) Math.floorMod(sequence, (long) windowSize);
+    }
+}
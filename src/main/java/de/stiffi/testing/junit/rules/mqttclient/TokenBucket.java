@@ -0,0 +1,76 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * Rate limiter: tokens refill continuously at a fixed rate up to a burst capacity. Callers block until a token is
+ * available, so the long term rate never exceeds the configured one regardless of the number of callers.
+ */
+class TokenBucket {
+
+    private final double nanosPerToken;
+    private final double maxCreditNanos;
+    private final LongSupplier nanoClock;
+    //Elapsed time not yet spent on tokens. Kept in nanoseconds, as adding up fractions of tokens drifts below the rate.
+    private double creditNanos;
+    private long lastRefillNanos;
+
+    /**
+     * An empty bucket, the first token is available after 1/tokensPerSecond
+     */
+    TokenBucket(double tokensPerSecond, double burstCapacity) {
+        this(tokensPerSecond, burstCapacity, 0, System::nanoTime);
+    }
+
+    /**
+     * @param initialTokens tokens available right away, at most burstCapacity
+     * @param nanoClock time source in nanoseconds, {@link System#nanoTime()} outside of tests
+     */
+    TokenBucket(double tokensPerSecond, double burstCapacity, double initialTokens, LongSupplier nanoClock) {
+        this.nanosPerToken = 1_000_000_000d / tokensPerSecond;
+        this.maxCreditNanos = Math.max(1, burstCapacity) * nanosPerToken;
+        this.nanoClock = nanoClock;
+        this.creditNanos = Math.min(maxCreditNanos, initialTokens * nanosPerToken);
+        this.lastRefillNanos = nanoClock.getAsLong();
+    }
+
+    /**
+     * Take one token, blocking until one is available
+     */
+    void acquire() throws InterruptedException {
+        while (true) {
+            long waitNanos;
+            synchronized (this) {
+                refill();
+                if (creditNanos >= nanosPerToken) {
+                    creditNanos -= nanosPerToken;
+                    return;
+                }
+                waitNanos = (long) Math.ceil(nanosPerToken - creditNanos);
+            }
+            LockSupport.parkNanos(waitNanos);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Take one token if available, never blocks
+     */
+    synchronized boolean tryAcquire() {
+        refill();
+        if (creditNanos >= nanosPerToken) {
+            creditNanos -= nanosPerToken;
+            return true;
+        }
+        return false;
+    }
+
+    private void refill() {
+        long now = nanoClock.getAsLong();
+        creditNanos = Math.min(maxCreditNanos, creditNanos + (now - lastRefillNanos));
+        lastRefillNanos = now;
+    }
+}
@@ -0,0 +1,206 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Messages of exactly one topic in arrival order. Every topic has its own monitor, so callback threads
+ * delivering to different topics don't contend with each other.
+ */
+class TopicMessages {
+
+    private final String topic;
+    private final ArrayDeque<ReceivedMessage> messages = new ArrayDeque<>();
+    private final List<MessageWaiter> waiters = new ArrayList<>();
+
+    /**
+     * Arrivals since the last clear, including evicted messages
+     */
+    private int receivedCount;
+    private long retainedBytes;
+    /**
+     * Dropped from the store by a clear, a new instance is created for the next arrival
+     */
+    private boolean removed;
+
+    TopicMessages(String topic) {
+        this.topic = topic;
+    }
+
+    String getTopic() {
+        return topic;
+    }
+
+    synchronized void add(ReceivedMessage message) {
+        messages.addLast(message);
+        receivedCount++;
+        retainedBytes += message.getPayloadSize();
+        for (int i = 0; i < waiters.size(); i++) {
+            waiters.get(i).messageArrived(topic, message);
+        }
+    }
+
+    /**
+     * @return the evicted message, null if there was none
+     */
+    synchronized ReceivedMessage evictOldest() {
+        return evictOldestIf(message -> true);
+    }
+
+    /**
+     * Evict the oldest message if it matches the condition
+     * @return the evicted message, null if there was none or it didn't match
+     */
+    synchronized ReceivedMessage evictOldestIf(Predicate<ReceivedMessage> condition) {
+        ReceivedMessage oldest = messages.peekFirst();
+        if (oldest == null || !condition.test(oldest)) {
+            return null;
+        }
+        messages.pollFirst();
+        retainedBytes -= oldest.getPayloadSize();
+        return oldest;
+    }
+
+    synchronized boolean exceeds(RetentionPolicy retentionPolicy) {
+        return retentionPolicy.exceeds(messages.size(), retainedBytes);
+    }
+
+    /**
+     * @return the sequence of the oldest retained message, Long.MAX_VALUE if there is none
+     */
+    synchronized long getOldestSequence() {
+        ReceivedMessage oldest = messages.peekFirst();
+        return oldest == null ? Long.MAX_VALUE : oldest.getSequence();
+    }
+
+    /**
+     * @return false if the topic was removed from the store, the waiter has to be added to its successor then
+     */
+    synchronized boolean addWaiter(MessageWaiter waiter) {
+        if (removed) {
+            return false;
+        }
+        waiter.alreadyStored(topic, this, Long.MAX_VALUE);
+        waiters.add(waiter);
+        return true;
+    }
+
+    synchronized void removeWaiter(MessageWaiter waiter) {
+        waiters.remove(waiter);
+    }
+
+    /**
+     * Number of messages received since the last clear, including evicted ones
+     */
+    synchronized int size() {
+        return receivedCount;
+    }
+
+    /**
+     * Number of received messages with a sequence after the first and up to the second one. Messages are ordered
+     * by sequence, so only the ones that arrived after the lower bound have to be looked at. Evicted messages
+     * are included only if the lower bound is 0.
+     */
+    synchronized int countBetween(long afterSequence, long upToSequence) {
+        int newer = 0;
+        int between = 0;
+        Iterator<ReceivedMessage> it = messages.descendingIterator();
+        while (it.hasNext()) {
+            long messageSequence = it.next().getSequence();
+            if (messageSequence <= afterSequence) {
+                break;
+            }
+            if (messageSequence > upToSequence) {
+                newer++;
+            } else {
+                between++;
+            }
+        }
+        return afterSequence <= 0 ? receivedCount - newer : between;
+    }
+
+    synchronized void forEachBetween(long afterSequence, long upToSequence, Consumer<ReceivedMessage> consumer) {
+        for (ReceivedMessage message : afterSequence <= 0 ? messages : newerThan(afterSequence)) {
+            if (message.getSequence() > upToSequence) {
+                return;
+            }
+            consumer.accept(message);
+        }
+    }
+
+    /**
+     * @return the messages with a sequence after the given one, in arrival order
+     */
+    synchronized List<ReceivedMessage> getMessagesAfter(long afterSequence) {
+        return afterSequence <= 0 ? new ArrayList<>(messages) : newerThan(afterSequence);
+    }
+
+    private List<ReceivedMessage> newerThan(long afterSequence) {
+        ArrayList<ReceivedMessage> newer = new ArrayList<>();
+        Iterator<ReceivedMessage> it = messages.descendingIterator();
+        while (it.hasNext()) {
+            ReceivedMessage message = it.next();
+            if (message.getSequence() <= afterSequence) {
+                break;
+            }
+            newer.add(message);
+        }
+        Collections.reverse(newer);
+        return newer;
+    }
+
+    /**
+     * Evict the oldest messages with a sequence up to the given one, at most maxCount so delivery to this topic
+     * isn't held up for long. Counts keep including them.
+     * @return the evicted messages
+     */
+    synchronized List<ReceivedMessage> evictUpTo(long sequence, int maxCount) {
+        List<ReceivedMessage> evicted = new ArrayList<>();
+        while (evicted.size() < maxCount && !messages.isEmpty() && messages.peekFirst().getSequence() <= sequence) {
+            ReceivedMessage message = messages.pollFirst();
+            retainedBytes -= message.getPayloadSize();
+            evicted.add(message);
+        }
+        return evicted;
+    }
+
+    synchronized List<byte[]> getPayloads() {
+        List<byte[]> payloads = new ArrayList<>(messages.size());
+        for (ReceivedMessage message : messages) {
+            payloads.add(message.getPayload());
+        }
+        return payloads;
+    }
+
+    /**
+     * Mark the topic as removed from the store, unless it is empty or somebody waits for it
+     * @return true if marked
+     */
+    synchronized boolean markRemovedIfUnused() {
+        if (!messages.isEmpty() || !waiters.isEmpty()) {
+            return false;
+        }
+        removed = true;
+        return true;
+    }
+
+    synchronized boolean isRemoved() {
+        return removed;
+    }
+
+    /**
+     * @return the removed messages
+     */
+    synchronized List<ReceivedMessage> clear() {
+        List<ReceivedMessage> removed = new ArrayList<>(messages);
+        messages.clear();
+        receivedCount = 0;
+        retainedBytes = 0;
+        return removed;
+    }
+}
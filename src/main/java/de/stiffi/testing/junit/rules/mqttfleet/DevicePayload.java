@@ -0,0 +1,13 @@
+package de.stiffi.testing.junit.rules.mqttfleet;
+
+/**
+ * Creates the payload of a scheduled message, called on the I/O thread of the device
+ */
+@FunctionalInterface
+public interface DevicePayload {
+
+    /**
+     * @param sequence number of the message per device and schedule, starting at 1
+     */
+    byte[] create(String vin, long sequence);
+}
@@ -0,0 +1,365 @@
+package de.stiffi.testing.junit.rules.mqttfleet;
+
+import de.stiffi.testing.junit.helpers.TemplateHelper;
+import de.stiffi.testing.junit.helpers.mqtt.MqttCodec;
+import de.stiffi.testing.junit.helpers.mqtt.MqttPacket;
+import de.stiffi.testing.junit.helpers.mqtt.MqttProtocolException;
+import de.stiffi.testing.junit.helpers.mqtt.MqttPublish;
+import de.stiffi.testing.junit.rules.mqttclient.ReceivedMessage;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MQTT session of one simulated device. Only touched on the thread of its {@link FleetIoLoop}.
+ */
+class DeviceSession {
+
+    private enum State {
+        IDLE, CONNECTING, AWAITING_CONNACK, CONNECTED, CLOSED
+    }
+
+    private static final int INITIAL_READ_BUFFER = 512;
+
+    private final String vin;
+    private final String clientId;
+    private final FleetConfig config;
+    private final FleetIoLoop loop;
+    private final byte[][] scheduleTopics;
+    private final long[] scheduleSequences;
+    private final String[] subscriptionTopics;
+
+    private State state = State.IDLE;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer readBuffer;
+    private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+    private long connectStartNanos;
+    private boolean connectSettled = false;
+    private int nextPacketId = 0;
+    private final Map<Integer, Long> inflight = new HashMap<>();
+
+    DeviceSession(String vin, FleetConfig config, FleetIoLoop loop) {
+        this.vin = vin;
+        this.config = config;
+        this.loop = loop;
+        this.clientId = render(config.clientIdTemplate);
+        List<PublishSchedule> schedules = config.schedules;
+        this.scheduleTopics = new byte[schedules.size()][];
+        for (int i = 0; i < scheduleTopics.length; i++) {
+            scheduleTopics[i] = render(schedules.get(i).getTopicTemplate()).getBytes(StandardCharsets.UTF_8);
+        }
+        this.scheduleSequences = new long[schedules.size()];
+        this.subscriptionTopics = new String[config.subscriptions.size()];
+        for (int i = 0; i < subscriptionTopics.length; i++) {
+            subscriptionTopics[i] = render(config.subscriptions.get(i));
+        }
+    }
+
+    private String render(String template) {
+        return TemplateHelper.get().withVin(vin).readString(template);
+    }
+
+    String getVin() {
+        return vin;
+    }
+
+    FleetIoLoop getLoop() {
+        return loop;
+    }
+
+    void connect() {
+        connectStartNanos = System.nanoTime();
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            state = State.CONNECTING;
+            if (channel.connect(config.address)) {
+                key = channel.register(loop.getSelector(), SelectionKey.OP_READ, this);
+                sendConnect();
+            } else {
+                key = channel.register(loop.getSelector(), SelectionKey.OP_CONNECT, this);
+            }
+        } catch (IOException e) {
+            close(e);
+            return;
+        }
+        loop.schedule(config.connectTimeoutNanos, () -> {
+            if (state == State.CONNECTING || state == State.AWAITING_CONNACK) {
+                close(new IOException("Connect timeout"));
+            }
+        });
+    }
+
+    void connectable() throws IOException {
+        if (channel.finishConnect()) {
+            key.interestOps(SelectionKey.OP_READ);
+            sendConnect();
+        }
+    }
+
+    private void sendConnect() throws IOException {
+        state = State.AWAITING_CONNACK;
+        write(MqttCodec.connect(clientId, true, config.keepAliveSeconds, config.username, config.password));
+    }
+
+    void readable() throws IOException {
+        if (readBuffer == null) {
+            readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+        }
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            throw new ClosedChannelException();
+        }
+        readBuffer.flip();
+        MqttPacket packet;
+        while (state != State.CLOSED && (packet = MqttCodec.decode(readBuffer, config.maxPacketSize)) != null) {
+            handle(packet);
+        }
+        if (state == State.CLOSED) {
+            return;
+        }
+        long frameLength = MqttCodec.frameLength(readBuffer, config.maxPacketSize);
+        if (frameLength > readBuffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate((int) Math.max(frameLength, readBuffer.capacity() * 2L));
+            larger.put(readBuffer);
+            readBuffer = larger;
+        } else if (!readBuffer.hasRemaining() && readBuffer.capacity() > INITIAL_READ_BUFFER) {
+            //Give memory of large packets back, 10k devices add up
+            readBuffer = null;
+        } else {
+            readBuffer.compact();
+        }
+    }
+
+    private void handle(MqttPacket packet) throws IOException {
+        switch (packet.getType()) {
+            case MqttPacket.CONNACK:
+                connack(MqttCodec.parseConnack(packet));
+                break;
+            case MqttPacket.PUBLISH:
+                received(MqttCodec.parsePublish(packet));
+                break;
+            case MqttPacket.PUBACK:
+            case MqttPacket.PUBCOMP:
+                acked(MqttCodec.parsePacketId(packet));
+                break;
+            case MqttPacket.PUBREC:
+                write(MqttCodec.pubrel(MqttCodec.parsePacketId(packet)));
+                break;
+            case MqttPacket.PUBREL:
+                write(MqttCodec.pubcomp(MqttCodec.parsePacketId(packet)));
+                break;
+            case MqttPacket.SUBACK:
+                for (int granted : MqttCodec.parseSuback(packet)) {
+                    if (granted == MqttCodec.SUBACK_FAILURE) {
+                        config.stats.subscribeFailed();
+                    }
+                }
+                break;
+            case MqttPacket.PINGRESP:
+                break;
+            default:
+                throw new MqttProtocolException("Unexpected packet type " + packet.getType());
+        }
+    }
+
+    private void connack(int returnCode) throws IOException {
+        if (returnCode != MqttCodec.CONNACK_ACCEPTED) {
+            throw new IOException("Connection refused with return code " + returnCode);
+        }
+        state = State.CONNECTED;
+        config.stats.connected(System.nanoTime() - connectStartNanos);
+        settleConnect();
+
+        if (subscriptionTopics.length > 0) {
+            int[] qos = new int[subscriptionTopics.length];
+            for (int i = 0; i < qos.length; i++) {
+                qos[i] = config.subscriptionQos.get(i);
+            }
+            write(MqttCodec.subscribe(nextPacketId(), subscriptionTopics, qos));
+        }
+        if (config.keepAliveSeconds > 0) {
+            scheduleKeepAlive();
+        }
+        for (int i = 0; i < scheduleTopics.length; i++) {
+            startSchedule(i);
+        }
+    }
+
+    private void scheduleKeepAlive() {
+        loop.schedule(TimeUnit.SECONDS.toNanos(config.keepAliveSeconds) * 3 / 4, () -> {
+            if (state == State.CONNECTED) {
+                writeQuietly(MqttCodec.pingreq());
+                scheduleKeepAlive();
+            }
+        });
+    }
+
+    private void startSchedule(int index) {
+        PublishSchedule schedule = config.schedules.get(index);
+        long intervalNanos = TimeUnit.MILLISECONDS.toNanos(schedule.getIntervalMs());
+        long initialDelayNanos = schedule.getInitialDelayMs() >= 0 ?
+                TimeUnit.MILLISECONDS.toNanos(schedule.getInitialDelayMs())
+                : ThreadLocalRandom.current().nextLong(Math.max(1, intervalNanos));
+        scheduledPublish(index, System.nanoTime() + initialDelayNanos, intervalNanos);
+    }
+
+    private void scheduledPublish(int index, long dueNanos, long intervalNanos) {
+        loop.scheduleAt(dueNanos, () -> {
+            if (state != State.CONNECTED) {
+                config.stats.publishSkipped();
+                return;
+            }
+            PublishSchedule schedule = config.schedules.get(index);
+            long sequence = ++scheduleSequences[index];
+            byte[] payload = schedule.getPayload().create(vin, sequence);
+            publish(scheduleTopics[index], payload, schedule.getQos(), schedule.isRetained());
+            if (sequence < schedule.getMessagesPerDevice()) {
+                //Fixed rate, a late run doesn't shift the following ones
+                scheduledPublish(index, dueNanos + intervalNanos, intervalNanos);
+            }
+        });
+    }
+
+    /**
+     * @return false if not connected
+     */
+    boolean publish(byte[] topic, byte[] payload, int qos, boolean retained) {
+        if (state != State.CONNECTED) {
+            config.stats.publishSkipped();
+            return false;
+        }
+        int packetId = 0;
+        if (qos > 0) {
+            packetId = nextPacketId();
+            inflight.put(packetId, System.nanoTime());
+        }
+        writeQuietly(MqttCodec.publish(topic, payload, qos, retained, false, packetId));
+        config.stats.published(payload != null ? payload.length : 0);
+        return true;
+    }
+
+    private void acked(int packetId) {
+        Long sentNanos = inflight.remove(packetId);
+        if (sentNanos != null) {
+            config.stats.publishAcked(System.nanoTime() - sentNanos);
+        }
+    }
+
+    private void received(MqttPublish publish) throws IOException {
+        config.stats.received(publish.getPayload().length);
+        if (publish.getQos() == 1) {
+            write(MqttCodec.puback(publish.getPacketId()));
+        } else if (publish.getQos() == 2) {
+            write(MqttCodec.pubrec(publish.getPacketId()));
+        }
+        if (config.messageHandler != null) {
+            config.messageHandler.messageReceived(vin, new ReceivedMessage(publish.getTopic(), publish.getPayload(), publish.isRetained()));
+        }
+    }
+
+    private int nextPacketId() {
+        nextPacketId = nextPacketId % 65535 + 1;
+        return nextPacketId;
+    }
+
+    private void write(ByteBuffer packet) throws IOException {
+        if (writeQueue.isEmpty()) {
+            channel.write(packet);
+            if (!packet.hasRemaining()) {
+                return;
+            }
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+        writeQueue.add(packet);
+    }
+
+    private void writeQuietly(ByteBuffer packet) {
+        try {
+            write(packet);
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    void writable() throws IOException {
+        ByteBuffer packet;
+        while ((packet = writeQueue.peek()) != null) {
+            channel.write(packet);
+            if (packet.hasRemaining()) {
+                return;
+            }
+            writeQueue.poll();
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Send DISCONNECT if connected, then close
+     */
+    void disconnect() {
+        if (state == State.CONNECTED) {
+            config.stats.closed();
+            try {
+                write(MqttCodec.disconnect());
+            } catch (IOException e) {
+                //Closing anyway
+            }
+        }
+        closeChannel();
+        settleConnect();
+    }
+
+    void close(Exception cause) {
+        if (state == State.CLOSED) {
+            return;
+        }
+        if (state == State.CONNECTED) {
+            config.stats.disconnected(cause);
+        } else {
+            config.stats.connectFailed(cause);
+        }
+        closeChannel();
+        settleConnect();
+    }
+
+    private void closeChannel() {
+        if (state == State.CONNECTED && !inflight.isEmpty()) {
+            config.stats.publishLost(inflight.size());
+        }
+        state = State.CLOSED;
+        inflight.clear();
+        writeQueue.clear();
+        readBuffer = null;
+        if (key != null) {
+            key.cancel();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void settleConnect() {
+        if (!connectSettled) {
+            connectSettled = true;
+            config.connectsSettled.countDown();
+        }
+    }
+}
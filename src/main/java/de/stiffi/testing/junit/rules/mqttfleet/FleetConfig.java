@@ -0,0 +1,43 @@
+package de.stiffi.testing.junit.rules.mqttfleet;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Settings shared by all device sessions of a fleet, fixed once the fleet connects
+ */
+class FleetConfig {
+
+    final InetSocketAddress address;
+    final String username;
+    final String password;
+    final String clientIdTemplate;
+    final int keepAliveSeconds;
+    final long connectTimeoutNanos;
+    final int maxPacketSize;
+    final List<PublishSchedule> schedules;
+    final List<String> subscriptions;
+    final List<Integer> subscriptionQos;
+    final FleetMessageHandler messageHandler;
+    final FleetStats stats;
+    final CountDownLatch connectsSettled;
+
+    FleetConfig(InetSocketAddress address, String username, String password, String clientIdTemplate, int keepAliveSeconds,
+                long connectTimeoutNanos, int maxPacketSize, List<PublishSchedule> schedules, List<String> subscriptions,
+                List<Integer> subscriptionQos, FleetMessageHandler messageHandler, FleetStats stats) {
+        this.address = address;
+        this.username = username;
+        this.password = password;
+        this.clientIdTemplate = clientIdTemplate;
+        this.keepAliveSeconds = keepAliveSeconds;
+        this.connectTimeoutNanos = connectTimeoutNanos;
+        this.maxPacketSize = maxPacketSize;
+        this.schedules = schedules;
+        this.subscriptions = subscriptions;
+        this.subscriptionQos = subscriptionQos;
+        this.messageHandler = messageHandler;
+        this.stats = stats;
+        this.connectsSettled = new CountDownLatch(stats.getDevices());
+    }
+}
@@ -0,0 +1,157 @@
+package de.stiffi.testing.junit.rules.mqttfleet;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One I/O thread serving many device sessions through a selector. All socket work and timers of its sessions run
+ * on this thread, so sessions need no locking; other threads hand work over with {@link #execute(Runnable)}.
+ */
+class FleetIoLoop implements Runnable {
+
+    private static class Timer implements Comparable<Timer> {
+        final long dueNanos;
+        final long order;
+        final Runnable action;
+
+        Timer(long dueNanos, long order, Runnable action) {
+            this.dueNanos = dueNanos;
+            this.order = order;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            int byDue = Long.compare(dueNanos - other.dueNanos, 0);
+            return byDue != 0 ? byDue : Long.compare(order, other.order);
+        }
+    }
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private long timerOrder = 0;
+    private volatile boolean running = true;
+
+    FleetIoLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Run the task on the loop thread
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Run the action on the loop thread after the delay, only to be called on the loop thread
+     */
+    void schedule(long delayNanos, Runnable action) {
+        timers.add(new Timer(System.nanoTime() + delayNanos, timerOrder++, action));
+    }
+
+    /**
+     * Schedule at an absolute {@link System#nanoTime()}, only to be called on the loop thread
+     */
+    void scheduleAt(long dueNanos, Runnable action) {
+        timers.add(new Timer(dueNanos, timerOrder++, action));
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                runTasks();
+                long timeoutMs = 0;
+                Timer next = timers.peek();
+                if (next != null) {
+                    timeoutMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(next.dueNanos - System.nanoTime()));
+                }
+                if (tasks.isEmpty()) {
+                    selector.select(timeoutMs);
+                } else {
+                    selector.selectNow();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+                runDueTimers();
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        //Tasks handed over while stopping, e.g. disconnects
+        runTasks();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        DeviceSession session = (DeviceSession) key.attachment();
+        try {
+            if (key.isConnectable()) {
+                session.connectable();
+            }
+            if (key.isValid() && key.isReadable()) {
+                session.readable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                session.writable();
+            }
+        } catch (IOException | CancelledKeyException e) {
+            session.close(e);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void runDueTimers() {
+        long now = System.nanoTime();
+        Timer next;
+        while ((next = timers.peek()) != null && next.dueNanos - now <= 0) {
+            timers.poll();
+            next.action.run();
+        }
+    }
+
+    void stop(long timeoutMs) {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
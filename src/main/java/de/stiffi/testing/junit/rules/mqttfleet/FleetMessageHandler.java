@@ -0,0 +1,12 @@
+package de.stiffi.testing.junit.rules.mqttfleet;
+
+import de.stiffi.testing.junit.rules.mqttclient.ReceivedMessage;
+
+/**
+ * Called on the I/O thread of the receiving device - keep it short
+ */
+@FunctionalInterface
+public interface FleetMessageHandler {
+
+    void messageReceived(String vin, ReceivedMessage message);
+}
@@ -0,0 +1,183 @@
+package de.stiffi.testing.junit.rules.mqttfleet;
+
+import de.stiffi.testing.junit.rules.mqttclient.LatencyHistogram;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Aggregated counters of all simulated devices, updated live
+ */
+public class FleetStats {
+
+    private final int devices;
+    private final AtomicInteger connected = new AtomicInteger();
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final LatencyHistogram connectLatency = new LatencyHistogram();
+    private final LongAdder published = new LongAdder();
+    private final LongAdder publishAcked = new LongAdder();
+    private final LongAdder publishSkipped = new LongAdder();
+    private final LongAdder publishLost = new LongAdder();
+    private final LatencyHistogram publishAckLatency = new LatencyHistogram();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder subscribeFailures = new LongAdder();
+    private final ConcurrentMap<String, LongAdder> closeCauses = new ConcurrentHashMap<>();
+
+    FleetStats(int devices) {
+        this.devices = devices;
+    }
+
+    public int getDevices() {
+        return devices;
+    }
+
+    /**
+     * @return devices with an accepted MQTT connection right now
+     */
+    public int getConnected() {
+        return connected.get();
+    }
+
+    public long getConnectFailures() {
+        return connectFailures.sum();
+    }
+
+    /**
+     * @return connections lost after they were established
+     */
+    public long getDisconnects() {
+        return disconnects.sum();
+    }
+
+    /**
+     * @return time from opening the socket to CONNACK
+     */
+    public LatencyHistogram getConnectLatency() {
+        return connectLatency;
+    }
+
+    public long getPublished() {
+        return published.sum();
+    }
+
+    /**
+     * @return QoS 1 and 2 messages acknowledged by the broker
+     */
+    public long getPublishAcked() {
+        return publishAcked.sum();
+    }
+
+    /**
+     * @return scheduled messages not sent because the device wasn't connected
+     */
+    public long getPublishSkipped() {
+        return publishSkipped.sum();
+    }
+
+    /**
+     * @return QoS 1 and 2 messages still unacknowledged when their connection was lost
+     */
+    public long getPublishLost() {
+        return publishLost.sum();
+    }
+
+    /**
+     * @return time from writing a QoS 1 or 2 message to its PUBACK or PUBCOMP
+     */
+    public LatencyHistogram getPublishAckLatency() {
+        return publishAckLatency;
+    }
+
+    public long getReceived() {
+        return received.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getSubscribeFailures() {
+        return subscribeFailures.sum();
+    }
+
+    /**
+     * @return number of failed connects and lost connections per cause, instead of a log line per device
+     */
+    public Map<String, Long> getCloseCauses() {
+        Map<String, Long> result = new TreeMap<>();
+        closeCauses.forEach((cause, count) -> result.put(cause, count.sum()));
+        return result;
+    }
+
+    void connected(long connectNanos) {
+        connected.incrementAndGet();
+        connectLatency.recordNanos(connectNanos);
+    }
+
+    void connectFailed(Exception cause) {
+        connectFailures.increment();
+        closedBy(cause);
+    }
+
+    void disconnected(Exception cause) {
+        connected.decrementAndGet();
+        disconnects.increment();
+        closedBy(cause);
+    }
+
+    private void closedBy(Exception cause) {
+        closeCauses.computeIfAbsent(String.valueOf(cause), c -> new LongAdder()).increment();
+    }
+
+    void closed() {
+        connected.decrementAndGet();
+    }
+
+    void published(int bytes) {
+        published.increment();
+        bytesOut.add(bytes);
+    }
+
+    void publishAcked(long ackNanos) {
+        publishAcked.increment();
+        publishAckLatency.recordNanos(ackNanos);
+    }
+
+    void publishSkipped() {
+        publishSkipped.increment();
+    }
+
+    void publishLost(int count) {
+        publishLost.add(count);
+    }
+
+    void received(int bytes) {
+        received.increment();
+        bytesIn.add(bytes);
+    }
+
+    void subscribeFailed() {
+        subscribeFailures.increment();
+    }
+
+    @Override
+    public String toString() {
+        return "Fleet: " + devices + " devices, " + getConnected() + " connected, " + getConnectFailures() + " connect failures, "
+                + getDisconnects() + " disconnects, connect p99 " + connectLatency.getPercentileMs(99) + "ms\n"
+                + "  out: " + getPublished() + " messages, " + getBytesOut() + " bytes, " + getPublishAcked() + " acked, "
+                + getPublishSkipped() + " skipped, " + getPublishLost() + " lost, ack p99 " + publishAckLatency.getPercentileMs(99) + "ms\n"
+                + "  in: " + getReceived() + " messages, " + getBytesIn() + " bytes"
+                + (closeCauses.isEmpty() ? "" : "\n  close causes: " + getCloseCauses());
+    }
+}
@@ -0,0 +1,233 @@
+package de.stiffi.testing.junit.rules.mqttfleet;
+
+import de.stiffi.testing.junit.helpers.TemplateHelper;
+import de.stiffi.testing.junit.helpers.mqtt.MqttCodec;
+import org.junit.rules.ExternalResource;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates a fleet of devices, each with its own MQTT connection and client id, e.g. 10k vehicles against one
+ * broker.
+ * <p>
+ * Usage:
+ * <pre>
+ *     &#64;Rule
+ *     public MqttFleetRule fleet = new MqttFleetRule("localhost", 1883, null, null)
+ *         .withDevices(10000)
+ *         .withSubscription("vehicles/{{vin}}/commands", 1)
+ *         .withPublishSchedule(PublishSchedule.every(1000, "vehicles/{{vin}}/telemetry", "{\"vin\":\"{{vin}}\",\"seq\":{{seq}}}").withQos(1));
+ * </pre>
+ * Devices don't get a Paho client each: a few I/O threads (see {@link #withIoThreads(int)}) serve all connections
+ * through selectors, with a minimal MQTT 3.1.1 implementation. Only plain TCP is supported, no TLS.
+ */
+public class MqttFleetRule extends ExternalResource {
+
+    private final String brokerhost;
+    private final int brokerPort;
+    private final String username;
+    private final String password;
+
+    private List<String> vins = new ArrayList<>();
+    private String clientIdTemplate = "MqttFleetRule_{{vin}}";
+    private int ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private int connectRate = 500;
+    private long connectTimeoutMs = 120000;
+    private int allowedConnectFailures = 0;
+    private int keepAliveSeconds = 60;
+    private int maxPacketSize = MqttCodec.DEFAULT_MAX_PACKET_SIZE;
+    private final List<PublishSchedule> schedules = new ArrayList<>();
+    private final List<String> subscriptions = new ArrayList<>();
+    private final List<Integer> subscriptionQos = new ArrayList<>();
+    private FleetMessageHandler messageHandler;
+
+    private final List<FleetIoLoop> loops = new ArrayList<>();
+    private final Map<String, DeviceSession> sessions = new HashMap<>();
+    private FleetStats stats = new FleetStats(0);
+
+    public MqttFleetRule(String brokerhost, int brokerPort, String username, String password) {
+        this.brokerhost = brokerhost;
+        this.brokerPort = brokerPort;
+        this.username = username;
+        this.password = password;
+    }
+
+    /**
+     * Simulate this many devices with generated VINs SIMVIN00000000001, SIMVIN00000000002, ...
+     */
+    public MqttFleetRule withDevices(int deviceCount) {
+        List<String> generated = new ArrayList<>();
+        for (int i = 1; i <= deviceCount; i++) {
+            generated.add(String.format("SIMVIN%011d", i));
+        }
+        return withVins(generated);
+    }
+
+    public MqttFleetRule withVins(List<String> vins) {
+        this.vins = new ArrayList<>(vins);
+        return this;
+    }
+
+    /**
+     * Client id per device, rendered with {@link TemplateHelper#withVin(String)}. Default MqttFleetRule_{{vin}}
+     */
+    public MqttFleetRule withClientIdTemplate(String clientIdTemplate) {
+        this.clientIdTemplate = clientIdTemplate;
+        return this;
+    }
+
+    /**
+     * Every device subscribes its own rendering of the topic template after connect
+     */
+    public MqttFleetRule withSubscription(String topicTemplate, int qos) {
+        subscriptions.add(topicTemplate);
+        subscriptionQos.add(qos);
+        return this;
+    }
+
+    public MqttFleetRule withPublishSchedule(PublishSchedule schedule) {
+        schedules.add(schedule);
+        return this;
+    }
+
+    /**
+     * Called for every message a device receives, on the I/O thread of the device
+     */
+    public MqttFleetRule withMessageHandler(FleetMessageHandler messageHandler) {
+        this.messageHandler = messageHandler;
+        return this;
+    }
+
+    /**
+     * Number of threads serving all device connections, default half the number of processors
+     */
+    public MqttFleetRule withIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+        return this;
+    }
+
+    /**
+     * New connections per second, default 500, 0 for no limit
+     */
+    public MqttFleetRule withConnectRate(int connectsPerSecond) {
+        this.connectRate = connectsPerSecond;
+        return this;
+    }
+
+    /**
+     * Time for connecting the whole fleet, default 120s
+     */
+    public MqttFleetRule withConnectTimeout(long connectTimeoutMs) {
+        this.connectTimeoutMs = connectTimeoutMs;
+        return this;
+    }
+
+    /**
+     * Number of devices allowed to fail connecting before the rule fails, default 0
+     */
+    public MqttFleetRule withAllowedConnectFailures(int allowedConnectFailures) {
+        this.allowedConnectFailures = allowedConnectFailures;
+        return this;
+    }
+
+    public MqttFleetRule withKeepAlive(int keepAliveSeconds) {
+        this.keepAliveSeconds = keepAliveSeconds;
+        return this;
+    }
+
+    public MqttFleetRule withMaxPacketSize(int maxPacketSize) {
+        this.maxPacketSize = maxPacketSize;
+        return this;
+    }
+
+    @Override
+    protected void before() throws Throwable {
+        connect();
+    }
+
+    @Override
+    protected void after() {
+        disconnect();
+    }
+
+    /**
+     * Connect all devices, at the configured connect rate, and wait until every connect succeeded or failed
+     */
+    public void connect() throws IOException, InterruptedException {
+        stats = new FleetStats(vins.size());
+        FleetConfig config = new FleetConfig(new InetSocketAddress(brokerhost, brokerPort), username, password,
+                clientIdTemplate, keepAliveSeconds, TimeUnit.MILLISECONDS.toNanos(connectTimeoutMs), maxPacketSize,
+                new ArrayList<>(schedules), new ArrayList<>(subscriptions), new ArrayList<>(subscriptionQos),
+                messageHandler, stats);
+
+        for (int i = 0; i < ioThreads; i++) {
+            FleetIoLoop loop = new FleetIoLoop("MqttFleetRule-io-" + i);
+            loops.add(loop);
+            loop.start();
+        }
+        System.out.println("Fleet connecting " + vins.size() + " devices to " + brokerhost + ":" + brokerPort
+                + " on " + ioThreads + " I/O threads...");
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < vins.size(); i++) {
+            FleetIoLoop loop = loops.get(i % loops.size());
+            DeviceSession session = new DeviceSession(vins.get(i), config, loop);
+            sessions.put(session.getVin(), session);
+            long delayNanos = connectRate > 0 ? i * 1_000_000_000L / connectRate : 0;
+            loop.execute(() -> loop.schedule(delayNanos, session::connect));
+        }
+
+        boolean settled = config.connectsSettled.await(connectTimeoutMs, TimeUnit.MILLISECONDS);
+        System.out.println("Fleet connected " + stats.getConnected() + " of " + vins.size() + " devices in "
+                + (System.currentTimeMillis() - start) + "ms, " + stats.getConnectFailures() + " failed"
+                + (stats.getConnectFailures() > 0 ? " " + stats.getCloseCauses() : ""));
+        if (!settled || stats.getConnectFailures() > allowedConnectFailures) {
+            disconnect();
+            throw new IOException("Fleet connect failed: " + stats.getConnected() + " of " + vins.size()
+                    + " devices connected, " + stats.getConnectFailures() + " failed"
+                    + (settled ? "" : ", timeout after " + connectTimeoutMs + "ms"));
+        }
+    }
+
+    /**
+     * Disconnect all devices and stop the I/O threads
+     */
+    public void disconnect() {
+        for (DeviceSession session : sessions.values()) {
+            session.getLoop().execute(session::disconnect);
+        }
+        for (FleetIoLoop loop : loops) {
+            loop.stop(5000);
+        }
+        loops.clear();
+        sessions.clear();
+        System.out.println(stats);
+    }
+
+    /**
+     * Publish once from one device, in addition to its schedules
+     * @param topicTemplate rendered with the VIN of the device
+     */
+    public void publishFrom(String vin, String topicTemplate, byte[] payload, int qos) {
+        DeviceSession session = sessions.get(vin);
+        if (session == null) {
+            throw new IllegalArgumentException("Unknown device " + vin);
+        }
+        byte[] topic = TemplateHelper.get().withVin(vin).readString(topicTemplate).getBytes(StandardCharsets.UTF_8);
+        session.getLoop().execute(() -> session.publish(topic, payload, qos, false));
+    }
+
+    public List<String> getVins() {
+        return new ArrayList<>(vins);
+    }
+
+    public FleetStats getStats() {
+        return stats;
+    }
+}
@@ -0,0 +1,95 @@
+package de.stiffi.testing.junit.rules.mqttfleet;
+
+import de.stiffi.testing.junit.helpers.TemplateHelper;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * What every simulated device publishes, and how often.
+ * <p>
+ * Topic and payload templates are rendered per device through {@link TemplateHelper#withVin(String)};
+ * payload templates may also contain {{seq}}, the number of the message per device and schedule starting at 1.
+ */
+public class PublishSchedule {
+
+    private final long intervalMs;
+    private final String topicTemplate;
+    private final DevicePayload payload;
+    private int qos = 0;
+    private boolean retained = false;
+    private long initialDelayMs = -1;
+    private long messagesPerDevice = Long.MAX_VALUE;
+
+    private PublishSchedule(long intervalMs, String topicTemplate, DevicePayload payload) {
+        this.intervalMs = intervalMs;
+        this.topicTemplate = topicTemplate;
+        this.payload = payload;
+    }
+
+    public static PublishSchedule every(long intervalMs, String topicTemplate, String payloadTemplate) {
+        return new PublishSchedule(intervalMs, topicTemplate, (vin, sequence) -> TemplateHelper.get()
+                .withVin(vin)
+                .with("{{seq}}", "" + sequence)
+                .readString(payloadTemplate)
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static PublishSchedule every(long intervalMs, String topicTemplate, DevicePayload payload) {
+        return new PublishSchedule(intervalMs, topicTemplate, payload);
+    }
+
+    public PublishSchedule withQos(int qos) {
+        this.qos = qos;
+        return this;
+    }
+
+    public PublishSchedule withRetained(boolean retained) {
+        this.retained = retained;
+        return this;
+    }
+
+    /**
+     * Delay between connect and the first message. By default every device starts at a random point of the first
+     * interval, so the fleet doesn't publish in bursts.
+     */
+    public PublishSchedule withInitialDelay(long initialDelayMs) {
+        this.initialDelayMs = initialDelayMs;
+        return this;
+    }
+
+    /**
+     * Stop after this many messages per device, default unlimited
+     */
+    public PublishSchedule withMessagesPerDevice(long messagesPerDevice) {
+        this.messagesPerDevice = messagesPerDevice;
+        return this;
+    }
+
+    long getIntervalMs() {
+        return intervalMs;
+    }
+
+    String getTopicTemplate() {
+        return topicTemplate;
+    }
+
+    DevicePayload getPayload() {
+        return payload;
+    }
+
+    int getQos() {
+        return qos;
+    }
+
+    boolean isRetained() {
+        return retained;
+    }
+
+    long getInitialDelayMs() {
+        return initialDelayMs;
+    }
+
+    long getMessagesPerDevice() {
+        return messagesPerDevice;
+    }
+}
@@ -0,0 +1,62 @@
+package de.stiffi.testing.junit.helpers.mqtt;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class MqttCodecTest {
+
+    @Test
+    public void testPublishRoundTrip() throws Exception {
+        // Given
+        byte[] payload = new byte[300];
+        payload[299] = 42;
+        ByteBuffer encoded = MqttCodec.publish("vehicles/1/telemetry", payload, 1, true, false, 7);
+
+        //When
+        ByteBuffer partial = ByteBuffer.allocate(encoded.remaining());
+        partial.put(encoded.array(), 0, 100).flip();
+        MqttPacket incomplete = MqttCodec.decode(partial, MqttCodec.DEFAULT_MAX_PACKET_SIZE);
+        MqttPacket packet = MqttCodec.decode(encoded, MqttCodec.DEFAULT_MAX_PACKET_SIZE);
+        MqttPublish publish = MqttCodec.parsePublish(packet);
+
+        //Then
+        Assert.assertNull(incomplete);
+        Assert.assertEquals(0, partial.position());
+        Assert.assertFalse(encoded.hasRemaining());
+        Assert.assertEquals("vehicles/1/telemetry", publish.getTopic());
+        Assert.assertEquals(1, publish.getQos());
+        Assert.assertTrue(publish.isRetained());
+        Assert.assertEquals(7, publish.getPacketId());
+        Assert.assertArrayEquals(payload, publish.getPayload());
+    }
+
+    @Test
+    public void testConnectAndSubscribeRoundTrip() throws Exception {
+        // Given
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        buffer.put(MqttCodec.connect("device-1", true, 60, "user", "secret"));
+        buffer.put(MqttCodec.subscribe(3, new String[]{"a/+", "b/#"}, new int[]{0, 1}));
+        buffer.flip();
+
+        //When
+        MqttConnect connect = MqttCodec.parseConnect(MqttCodec.decode(buffer, MqttCodec.DEFAULT_MAX_PACKET_SIZE));
+        MqttSubscribe subscribe = MqttCodec.parseSubscribe(MqttCodec.decode(buffer, MqttCodec.DEFAULT_MAX_PACKET_SIZE));
+
+        //Then
+        Assert.assertEquals("device-1", connect.getClientId());
+        Assert.assertTrue(connect.isCleanSession());
+        Assert.assertEquals(60, connect.getKeepAliveSeconds());
+        Assert.assertEquals("user", connect.getUsername());
+        Assert.assertEquals("secret", new String(connect.getPassword()));
+        Assert.assertEquals(3, subscribe.getPacketId());
+        Assert.assertArrayEquals(new String[]{"a/+", "b/#"}, subscribe.getTopicFilters());
+        Assert.assertArrayEquals(new int[]{0, 1}, subscribe.getQos());
+    }
+
+    @Test(expected = MqttProtocolException.class)
+    public void testPacketTooLarge() throws Exception {
+        MqttCodec.decode(MqttCodec.publish("t", new byte[2000], 0, false, false, 0), 1024);
+    }
+}
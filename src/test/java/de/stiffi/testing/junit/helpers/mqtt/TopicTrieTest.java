@@ -0,0 +1,93 @@
+package de.stiffi.testing.junit.helpers.mqtt;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+public class TopicTrieTest {
+
+    @Test
+    public void testMatchFilters() {
+        // Given
+        TopicTrie<String> trie = new TopicTrie<>();
+        for (String filter : Arrays.asList("vehicles/+/telemetry/#", "vehicles/#", "vehicles/1/telemetry", "#", "+/+", "other/+")) {
+            trie.put(filter, filter);
+        }
+
+        //When
+        Set<String> matched = new HashSet<>(trie.matchFilters("vehicles/1/telemetry"));
+
+        //Then
+        Assert.assertEquals(new HashSet<>(Arrays.asList("vehicles/+/telemetry/#", "vehicles/#", "vehicles/1/telemetry", "#")), matched);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("vehicles/#", "#", "+/+")), new HashSet<>(trie.matchFilters("vehicles/2")));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("vehicles/#", "#")), new HashSet<>(trie.matchFilters("vehicles")));
+        Assert.assertTrue(trie.matchFilters("$SYS/broker").isEmpty());
+    }
+
+    @Test
+    public void testMatchTopics() {
+        // Given
+        TopicTrie<String> trie = new TopicTrie<>();
+        for (String topic : Arrays.asList("vehicles/1/telemetry", "vehicles/1/telemetry/speed", "vehicles/2/telemetry/gps", "vehicles/2/status", "vehicles", "$SYS/load")) {
+            trie.put(topic, topic);
+        }
+
+        //Then
+        Assert.assertEquals(new HashSet<>(Arrays.asList("vehicles/1/telemetry", "vehicles/1/telemetry/speed", "vehicles/2/telemetry/gps")),
+                new HashSet<>(trie.matchTopics("vehicles/+/telemetry/#")));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("vehicles/2/status")), new HashSet<>(trie.matchTopics("+/+/status")));
+        Assert.assertEquals(5, trie.matchTopics("#").size());
+        Assert.assertEquals(Arrays.asList("$SYS/load"), trie.matchTopics("$SYS/#"));
+    }
+
+    @Test
+    public void testRemove() {
+        // Given
+        TopicTrie<String> trie = new TopicTrie<>();
+        trie.put("a/+", "x");
+
+        //When
+        Assert.assertTrue(trie.remove("a/+", "x"));
+
+        //Then
+        Assert.assertTrue(trie.isEmpty());
+        Assert.assertTrue(trie.matchFilters("a/b").isEmpty());
+        Assert.assertFalse(trie.remove("a/+", "x"));
+    }
+
+    @Test
+    public void testRemovePrunesEmptyLevels() {
+        // Given
+        TopicTrie<String> trie = new TopicTrie<>();
+        trie.put("vehicles/1/telemetry/speed", "speed");
+        trie.put("vehicles/1/telemetry", "telemetry");
+        trie.put("vehicles/2/status", "status");
+
+        //When
+        trie.remove("vehicles/1/telemetry/speed", "speed");
+        int afterLeaf = trie.getNodeCount();
+        trie.remove("vehicles/1/telemetry", "telemetry");
+        int afterInner = trie.getNodeCount();
+        trie.remove("vehicles/2/status", "status");
+
+        //Then
+        Assert.assertEquals(6, afterLeaf);
+        Assert.assertEquals(4, afterInner);
+        Assert.assertEquals(1, trie.getNodeCount());
+        trie.put("vehicles/1/telemetry", "again");
+        Assert.assertEquals(Arrays.asList("again"), trie.matchTopics("vehicles/+/telemetry"));
+    }
+
+    @Test
+    public void testMatches() {
+        Assert.assertTrue(TopicTrie.matches("vehicles/+/telemetry/#", "vehicles/1/telemetry"));
+        Assert.assertTrue(TopicTrie.matches("vehicles/+/telemetry/#", "vehicles/1/telemetry/a/b"));
+        Assert.assertFalse(TopicTrie.matches("vehicles/+/telemetry/#", "vehicles/1/status"));
+        Assert.assertFalse(TopicTrie.matches("+/load", "$SYS/load"));
+        Assert.assertTrue(TopicTrie.matches("a/b", "a/b"));
+        Assert.assertFalse(TopicTrie.matches("a/b", "a/b/c"));
+    }
+}
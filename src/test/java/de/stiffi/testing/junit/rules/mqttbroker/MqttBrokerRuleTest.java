@@ -0,0 +1,190 @@
+package de.stiffi.testing.junit.rules.mqttbroker;
+
+import de.stiffi.testing.junit.rules.mqttclient.LoadDistribution;
+import de.stiffi.testing.junit.rules.mqttclient.MqttClientRule;
+import de.stiffi.testing.junit.rules.mqttclient.ReconnectPolicy;
+import org.junit.Assert;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MqttBrokerRuleTest {
+
+    @ClassRule
+    public static MqttBrokerRule broker = new MqttBrokerRule();
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private MqttClientRule client() {
+        return new MqttClientRule("localhost", false, broker.getPort(), null, null, null, null)
+                .doPrintOnMessageReceived(false);
+    }
+
+    @Test
+    public void testPublishSubscribeWithWildcards() throws Exception {
+        // Given
+        MqttClientRule subscriber = client();
+        MqttClientRule publisher = client();
+        subscriber.connect();
+        publisher.connect();
+        try {
+            subscriber.subscribe("vehicles/+/telemetry");
+            subscriber.subscribe("vehicles/#", 0);
+
+            //When
+            publisher.publish("vehicles/1/telemetry", "hello".getBytes(), 1);
+            publisher.publish("vehicles/2/status", "online".getBytes(), 0);
+            subscriber.waitForMessage("vehicles/2/status", 5000);
+
+            //Then
+            Assert.assertEquals(1, subscriber.getMessageCount("vehicles/1/telemetry"));
+            Assert.assertEquals("hello", subscriber.getReceivedMessages("vehicles/1/telemetry").get(0).getPayloadAsString());
+            Assert.assertEquals(1, subscriber.getMessageCount("vehicles/2/status"));
+        } finally {
+            subscriber.disconnect();
+            publisher.disconnect();
+        }
+    }
+
+    @Test
+    public void testRetainedMessage() throws Exception {
+        // Given
+        broker.publish("config/vehicle/1", "retained".getBytes(), 1, true);
+        MqttClientRule subscriber = client();
+        subscriber.connect();
+        try {
+            //When
+            subscriber.subscribe("config/#");
+            subscriber.waitForMessage("config/vehicle/1", 5000);
+
+            //Then
+            Assert.assertTrue(subscriber.getReceivedMessages("config/vehicle/1").get(0).isRetained());
+            Assert.assertEquals(1, broker.getRetainedMessageCount());
+        } finally {
+            subscriber.disconnect();
+            broker.publish("config/vehicle/1", new byte[0], 1, true);
+        }
+    }
+
+    @Test
+    public void testSharedSubscription() throws Exception {
+        // Given
+        MqttClientRule consumers = client().withMqttClientInstances(3).withMetrics(true);
+        MqttClientRule publisher = client();
+        consumers.connect();
+        publisher.connect();
+        try {
+            consumers.subscribe("orders/+");
+
+            //When
+            for (int i = 0; i < 300; i++) {
+                publisher.publishAsync("orders/" + (i % 10), ("order " + i).getBytes(), 1);
+            }
+            publisher.waitForPublishAcks(5000);
+            consumers.waitForMessage("orders/#", 5000, 300);
+
+            //Then
+            LoadDistribution distribution = consumers.getLoadDistribution();
+            Assert.assertEquals(300, distribution.getTotal());
+            Assert.assertArrayEquals(new long[]{100, 100, 100}, distribution.getCounts());
+        } finally {
+            consumers.disconnect();
+            publisher.disconnect();
+        }
+    }
+
+    @Test
+    public void testReconnectAfterConnectionDrop() throws Exception {
+        // Given
+        MqttClientRule subscriber = client()
+                .withClientId("reconnecting")
+                .withReconnect(ReconnectPolicy.backoff(50, 500));
+        MqttClientRule publisher = client();
+        subscriber.connect();
+        publisher.connect();
+        try {
+            subscriber.subscribe("commands/1");
+
+            //When
+            Assert.assertTrue(broker.dropConnection("reconnecting_0"));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (subscriber.getReconnectCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            //Resubscribe is sent right after the reconnect, give it a moment
+            Thread.sleep(200);
+            publisher.publish("commands/1", "unlock".getBytes(), 1);
+            subscriber.waitForMessage("commands/1", 5000);
+
+            //Then
+            Assert.assertEquals(1, subscriber.getReconnectCount());
+            Assert.assertEquals(1, subscriber.getMessageCount("commands/1"));
+        } finally {
+            subscriber.disconnect();
+            publisher.disconnect();
+        }
+    }
+
+    @Test
+    public void testOfflineQueueBeyondPacketIds() throws Exception {
+        // Given
+        MqttClientRule subscriber = client()
+                .withClientId("offline")
+                .withPersistentSession(temporaryFolder.newFolder().getAbsolutePath());
+        subscriber.connect();
+        subscriber.subscribe("queued/1");
+        subscriber.disconnect();
+        long droppedBefore = broker.getPublishesDropped();
+
+        //When
+        //More messages than packet ids, ids are only assigned when a message is sent
+        for (int i = 0; i < 70000; i++) {
+            broker.publish("queued/1", ("" + i).getBytes(), 1, false);
+        }
+        subscriber.connect();
+        try {
+            subscriber.waitForMessage("queued/1", 30000, 70000);
+
+            //Then
+            Assert.assertEquals(0, broker.getPublishesDropped() - droppedBefore);
+            Assert.assertEquals(70000, subscriber.getMessageCount("queued/1"));
+            Assert.assertEquals("0", subscriber.getReceivedMessages("queued/1").get(0).getPayloadAsString());
+            Assert.assertEquals("69999", subscriber.getReceivedMessages("queued/1").get(69999).getPayloadAsString());
+        } finally {
+            subscriber.disconnect();
+        }
+    }
+
+    @Test
+    public void testOfflineQueueDropsOldest() throws Exception {
+        // Given
+        MqttBrokerRule smallBroker = new MqttBrokerRule().withMaxQueuedMessages(100);
+        smallBroker.start();
+        MqttClientRule subscriber = new MqttClientRule("localhost", false, smallBroker.getPort(), null, null, null, null)
+                .doPrintOnMessageReceived(false)
+                .withClientId("offline")
+                .withPersistentSession(temporaryFolder.newFolder().getAbsolutePath());
+        try {
+            subscriber.connect();
+            subscriber.subscribe("queued/1");
+            subscriber.disconnect();
+
+            //When
+            for (int i = 0; i < 150; i++) {
+                smallBroker.publish("queued/1", ("" + i).getBytes(), 1, false);
+            }
+            subscriber.connect();
+            subscriber.waitForMessage("queued/1", 5000, 100);
+
+            //Then
+            Assert.assertEquals(50, smallBroker.getPublishesDropped());
+            Assert.assertEquals(100, subscriber.getMessageCount("queued/1"));
+            Assert.assertEquals("50", subscriber.getReceivedMessages("queued/1").get(0).getPayloadAsString());
+        } finally {
+            subscriber.disconnect();
+            smallBroker.stop();
+        }
+    }
+}
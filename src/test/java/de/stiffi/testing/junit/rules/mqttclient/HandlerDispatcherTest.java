@@ -0,0 +1,111 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+public class HandlerDispatcherTest {
+
+    @Test
+    public void testPerTopicOrder() throws InterruptedException {
+        // Given
+        HandlerDispatcher dispatcher = new HandlerDispatcher(HandlerDispatch.perTopicOrdered(4, 100));
+        List<Integer> handled = Collections.synchronizedList(new ArrayList<>());
+
+        //When
+        for (int i = 0; i < 1000; i++) {
+            final int n = i;
+            dispatcher.dispatch("topic", () -> handled.add(n));
+        }
+        dispatcher.shutdown(5000);
+
+        //Then
+        Assert.assertEquals(1000, handled.size());
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(i, (int) handled.get(i));
+        }
+        Assert.assertEquals(1000, dispatcher.getLag().getCount());
+    }
+
+    @Test
+    public void testDropOldest() throws InterruptedException {
+        // Given
+        HandlerDispatcher dispatcher = new HandlerDispatcher(HandlerDispatch.parallel(1, 2).withOverflow(HandlerDispatch.Overflow.DROP_OLDEST));
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        dispatcher.dispatch("topic", () -> {
+            blocked.countDown();
+            await(release);
+        });
+        blocked.await();
+
+        //When
+        for (int i = 0; i < 5; i++) {
+            dispatcher.dispatch("topic", () -> {
+            });
+        }
+
+        //Then
+        Assert.assertEquals(2, dispatcher.getQueueDepth());
+        Assert.assertEquals(3, dispatcher.getDropped());
+        release.countDown();
+        dispatcher.shutdown(5000);
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void testFail() throws InterruptedException {
+        // Given
+        HandlerDispatcher dispatcher = new HandlerDispatcher(HandlerDispatch.parallel(1, 1).withOverflow(HandlerDispatch.Overflow.FAIL));
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        dispatcher.dispatch("topic", () -> {
+            blocked.countDown();
+            await(release);
+        });
+        blocked.await();
+
+        try {
+            //When
+            dispatcher.dispatch("topic", () -> {
+            });
+            dispatcher.dispatch("topic", () -> {
+            });
+        } finally {
+            release.countDown();
+            dispatcher.shutdown(5000);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParallelWithoutThreads() {
+        HandlerDispatch.parallel(0, 100);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParallelWithoutQueue() {
+        HandlerDispatch.parallel(4, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPerTopicOrderedWithoutThreads() {
+        HandlerDispatch.perTopicOrdered(0, 100);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPerTopicOrderedWithoutQueue() {
+        HandlerDispatch.perTopicOrdered(4, -1);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
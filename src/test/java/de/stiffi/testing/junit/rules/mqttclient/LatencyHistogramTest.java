@@ -0,0 +1,59 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testPercentiles() {
+        // Given
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        //When
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(i);
+        }
+
+        //Then
+        Assert.assertEquals(10000, histogram.getCount());
+        Assert.assertEquals(10000, histogram.getMaxMicros());
+        assertWithinTwoPercent(5000, histogram.getPercentileMicros(50));
+        assertWithinTwoPercent(9900, histogram.getPercentileMicros(99));
+        assertWithinTwoPercent(9990, histogram.getPercentileMicros(99.9));
+        Assert.assertEquals(10000, histogram.getPercentileMicros(100));
+        Assert.assertEquals(5000.5, histogram.getMeanMicros(), 0.001);
+    }
+
+    @Test
+    public void testBucketBoundaries() {
+        for (long value : new long[]{0, 1, 127, 128, 129, 1000, 123456789, Long.MAX_VALUE}) {
+            int index = LatencyHistogram.indexOf(value);
+            Assert.assertTrue("value " + value, LatencyHistogram.highestValueOf(index) >= value);
+            if (index > 0) {
+                Assert.assertTrue("value " + value, LatencyHistogram.highestValueOf(index - 1) < value);
+            }
+        }
+    }
+
+    @Test
+    public void testAdd() {
+        // Given
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        a.record(10);
+        b.record(20000);
+
+        //When
+        a.add(b);
+
+        //Then
+        Assert.assertEquals(2, a.getCount());
+        Assert.assertEquals(20000, a.getMaxMicros());
+        Assert.assertEquals(10, a.getPercentileMicros(50));
+    }
+
+    private static void assertWithinTwoPercent(long expected, long actual) {
+        Assert.assertEquals(expected, actual, expected * 0.02);
+    }
+}
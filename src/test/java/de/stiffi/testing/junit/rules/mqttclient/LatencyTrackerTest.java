@@ -0,0 +1,28 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyTrackerTest {
+
+    @Test
+    public void testStampAndRecord() {
+        // Given
+        LatencyTracker sender = new LatencyTracker();
+        LatencyTracker receiver = new LatencyTracker();
+        byte[] first = sender.stamp("vehicles/1/telemetry", "hello".getBytes());
+        byte[] second = sender.stamp("vehicles/1/telemetry", "world".getBytes());
+
+        //When
+        LatencyStamp stamp = receiver.record("vehicles/1/telemetry", second);
+        receiver.record("vehicles/1/telemetry", first);
+
+        //Then
+        Assert.assertEquals(2, stamp.getSequence());
+        Assert.assertEquals("world", new ReceivedMessage("t", second, LatencyStamp.LENGTH, second.length - LatencyStamp.LENGTH, false).getPayloadAsString());
+        Assert.assertEquals(2, receiver.getHistogram("vehicles/1/telemetry").getCount());
+        Assert.assertEquals(2, receiver.getHistogram("vehicles/+/telemetry").getCount());
+        Assert.assertEquals(0, receiver.getHistogram("vehicles/2/telemetry").getCount());
+        Assert.assertNull(receiver.record("vehicles/1/telemetry", "not stamped".getBytes()));
+    }
+}
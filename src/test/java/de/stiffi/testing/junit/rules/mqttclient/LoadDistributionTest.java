@@ -0,0 +1,31 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LoadDistributionTest {
+
+    @Test
+    public void testSkew() {
+        // Given
+        LoadDistribution even = new LoadDistribution(new long[]{100, 100, 100}, 1_000_000_000L);
+        LoadDistribution skewed = new LoadDistribution(new long[]{300, 100, 200}, 1_000_000_000L);
+        LoadDistribution starved = new LoadDistribution(new long[]{300, 0}, 0);
+
+        //When
+        double evenRatio = even.getMaxMinRatio();
+        double evenCv = even.getCoefficientOfVariation();
+        double skewedRatio = skewed.getMaxMinRatio();
+        double skewedCv = skewed.getCoefficientOfVariation();
+        double starvedRatio = starved.getMaxMinRatio();
+
+        //Then
+        Assert.assertEquals(1, evenRatio, 0.001);
+        Assert.assertEquals(0, evenCv, 0.001);
+        Assert.assertEquals(100, even.getRates()[0], 0.001);
+        Assert.assertEquals(3, skewedRatio, 0.001);
+        Assert.assertEquals(Math.sqrt(20000.0 / 3) / 200, skewedCv, 0.001);
+        Assert.assertTrue(Double.isInfinite(starvedRatio));
+        Assert.assertEquals(0, starved.getRates()[0], 0.001);
+    }
+}
@@ -0,0 +1,90 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MessageTraceLoggerTest {
+
+    private final List<String> lines = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicLong nanos = new AtomicLong(1_000_000_000L);
+
+    @Test
+    public void testSampling() {
+        // Given
+        MessageTraceLogger logger = new MessageTraceLogger(10, 0, 100, lines::add, nanos::get);
+
+        //When
+        for (int i = 1; i <= 100; i++) {
+            logger.messageReceived(new ReceivedMessage("trace/sampled", ("" + i).getBytes(), false), i);
+        }
+        logger.stop();
+
+        //Then
+        Assert.assertEquals(10, lines.size());
+        Assert.assertTrue(lines.get(0), lines.get(0).startsWith("Received MQTT message on topic trace/sampled, Count: 10,"));
+        Assert.assertTrue(lines.get(9), lines.get(9).startsWith("Received MQTT message on topic trace/sampled, Count: 100,"));
+    }
+
+    @Test
+    public void testRateLimit() {
+        // Given
+        MessageTraceLogger logger = new MessageTraceLogger(1, 5, 100, lines::add, nanos::get);
+
+        //When
+        for (int i = 1; i <= 20; i++) {
+            logger.messageReceived(new ReceivedMessage("trace/limited", ("" + i).getBytes(), false), i);
+        }
+        logger.stop();
+
+        //Then
+        long printed = 0;
+        long notPrinted = 0;
+        for (String line : lines) {
+            if (line.startsWith("Received MQTT message")) {
+                printed++;
+            } else {
+                //The printer may report the dropped lines in several parts
+                notPrinted += Long.parseLong(line.replaceAll("^\\.\\.\\. (\\d+) received MQTT messages not printed$", "$1"));
+            }
+        }
+        Assert.assertEquals(5, printed);
+        Assert.assertEquals(15, notPrinted);
+    }
+
+    @Test
+    public void testFirstLineIsPrintedRightAway() {
+        // Given
+        MessageTraceLogger logger = new MessageTraceLogger(1, 1, 100, lines::add, nanos::get);
+
+        //When
+        logger.messageReceived(new ReceivedMessage("trace/first", "1".getBytes(), false), 1);
+        logger.stop();
+
+        //Then
+        Assert.assertEquals(1, lines.size());
+        Assert.assertTrue(lines.get(0), lines.get(0).startsWith("Received MQTT message on topic trace/first, Count: 1,"));
+    }
+
+    @Test
+    public void testPreviewIsTruncated() {
+        // Given
+        MessageTraceLogger logger = new MessageTraceLogger(1, 0, 3, lines::add, nanos::get);
+
+        //When
+        logger.messageReceived(new ReceivedMessage("trace/preview", "abc".getBytes(), false), 1);
+        logger.messageReceived(new ReceivedMessage("trace/preview", "abcdefgh".getBytes(), false), 2);
+        logger.messageReceived(new ReceivedMessage("trace/preview", null, false), 3);
+        logger.stop();
+
+        //Then
+        Assert.assertEquals(3, lines.size());
+        Assert.assertTrue(lines.get(0), lines.get(0).endsWith("Content: YWJj"));
+        Assert.assertTrue(lines.get(1), lines.get(1).endsWith("Content: YWJj... (8 bytes)"));
+        Assert.assertTrue(lines.get(2), lines.get(2).endsWith("Content: null"));
+    }
+}
@@ -0,0 +1,115 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import de.stiffi.testing.junit.rules.mqttbroker.MqttBrokerRule;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.Assert;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class MqttClientRuleConnectTest {
+
+    @ClassRule
+    public static MqttBrokerRule broker = new MqttBrokerRule();
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testQueuedSessionMessagesAreDispatched() throws Exception {
+        // Given
+        List<String> handlerThreads = Collections.synchronizedList(new ArrayList<>());
+        MqttClientRule subscriber = new MqttClientRule("localhost", false, broker.getPort(), null, null, null, null)
+                .doPrintOnMessageReceived(false)
+                .withClientId("dispatched")
+                .withPersistentSession(temporaryFolder.newFolder().getAbsolutePath())
+                .withHandlerDispatch(HandlerDispatch.perTopicOrdered(1, 100))
+                .withMessageHandler(message -> handlerThreads.add(Thread.currentThread().getName()));
+        subscriber.connect();
+        subscriber.subscribe("queued/dispatch", 1);
+        subscriber.disconnect();
+        for (int i = 0; i < 20; i++) {
+            broker.publish("queued/dispatch", ("" + i).getBytes(), 1, false);
+        }
+
+        //When
+        subscriber.connect();
+        try {
+            subscriber.waitForMessage("queued/dispatch", 5000, 20);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (handlerThreads.size() < 20 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            //Then
+            Assert.assertEquals(20, handlerThreads.size());
+            for (String thread : handlerThreads) {
+                Assert.assertTrue(thread, thread.startsWith("MqttClientRule-handler-"));
+            }
+        } finally {
+            subscriber.disconnect();
+        }
+    }
+
+    @Test
+    public void testConnectSeveralInstances() throws Exception {
+        // Given
+        MqttClientRule rule = new MqttClientRule("localhost", false, broker.getPort(), null, null, null, null)
+                .withMqttClientInstances(5)
+                .withConnectParallelism(2)
+                .doPrintOnMessageReceived(false);
+
+        //When
+        rule.connect();
+
+        //Then
+        try {
+            Assert.assertEquals(5, broker.getConnectedClientIds().size());
+            rule.publish("connect/test", "hello".getBytes(), 1);
+        } finally {
+            rule.disconnect();
+        }
+    }
+
+    @Test
+    public void testConnectTimeoutWithInstancesNotIssued() throws Exception {
+        // Given
+        //Accepts connections but never answers CONNECT
+        List<Socket> accepted = new ArrayList<>();
+        try (ServerSocket silentBroker = new ServerSocket(0)) {
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        accepted.add(silentBroker.accept());
+                    }
+                } catch (Exception e) {
+                    //closed
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+            MqttClientRule rule = new MqttClientRule("localhost", false, silentBroker.getLocalPort(), null, null, null, null)
+                    .withMqttClientInstances(3)
+                    .withConnectParallelism(1)
+                    .withConnectTimeout(500);
+
+            //When
+            long start = System.currentTimeMillis();
+            try {
+                rule.connect();
+                Assert.fail("Connect should have timed out");
+            } catch (MqttException e) {
+                //Then
+                Assert.assertEquals(MqttException.REASON_CODE_CLIENT_TIMEOUT, e.getReasonCode());
+                Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import de.stiffi.testing.junit.rules.mqttbroker.MqttBrokerRule;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class MqttDisconnectedBufferTest {
+
+    @Test(timeout = 30000)
+    public void testBufferBeyondInflightWindow() throws Throwable {
+        // Given
+        MqttBrokerRule broker = new MqttBrokerRule();
+        broker.start();
+        MqttClientRule publisher = new MqttClientRule("localhost", false, broker.getPort(), null, null, null, null)
+                .withReconnect(ReconnectPolicy.backoff(100, 500))
+                .withMaxInflight(10)
+                .doPrintOnMessageReceived(false);
+        publisher.connect();
+        MqttBrokerRule restartedBroker = new MqttBrokerRule().withPort(broker.getPort());
+        try {
+            broker.stop();
+            while (publisher.getDisconnectedClientCount() == 0) {
+                Thread.sleep(10);
+            }
+
+            //When
+            List<CompletableFuture<Void>> acks = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                acks.add(publisher.publishAsync("buffered/topic", String.valueOf(i).getBytes(), 1));
+            }
+            restartedBroker.start();
+
+            //Then
+            CompletableFuture.allOf(acks.toArray(new CompletableFuture[0])).get(20, TimeUnit.SECONDS);
+            Assert.assertTrue(publisher.waitForPublishAcks(5000));
+            Assert.assertEquals(0, publisher.getInflight());
+        } finally {
+            publisher.disconnect();
+            restartedBroker.stop();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import de.stiffi.testing.junit.rules.mqttbroker.MqttBrokerRule;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+public class MqttLoadGeneratorTest {
+
+    @ClassRule
+    public static MqttBrokerRule broker = new MqttBrokerRule();
+
+    private MqttClientRule publisher;
+    private MqttClientRule subscriber;
+
+    @Before
+    public void setUp() throws Exception {
+        publisher = new MqttClientRule("localhost", false, broker.getPort(), null, null, null, null)
+                .doPrintOnMessageReceived(false);
+        subscriber = new MqttClientRule("localhost", false, broker.getPort(), null, null, null, null)
+                .doPrintOnMessageReceived(false);
+        publisher.connect();
+        subscriber.connect();
+        subscriber.subscribe("load/#");
+    }
+
+    @After
+    public void tearDown() {
+        publisher.disconnect();
+        subscriber.disconnect();
+    }
+
+    @Test
+    public void testRunReportsCounts() throws Exception {
+        // Given
+        MqttLoadGenerator generator = new MqttLoadGenerator(publisher)
+                .withRate(1000)
+                .withPayloadSize(16)
+                .withTopics("load/{{n}}", 4)
+                .withMaxMessages(200)
+                .withDuration(10000)
+                .withReportInterval(0);
+
+        //When
+        LoadGeneratorReport report = generator.run();
+
+        //Then
+        Assert.assertEquals(200, report.getPublished());
+        Assert.assertEquals(200, report.getAcknowledged());
+        Assert.assertEquals(0, report.getErrors());
+        Assert.assertEquals(200, report.getAckLatency().getCount());
+        //200 messages at 1000 msg/s
+        Assert.assertTrue("Sending took " + report.getSendMs() + "ms", report.getSendMs() >= 190 && report.getSendMs() < 5000);
+        Assert.assertEquals(report.getSendMs() + report.getDrainMs(), report.getElapsedMs());
+        Assert.assertEquals(200 * 1000d / report.getSendMs(), report.getThroughput(), 0.001);
+        subscriber.assertMessagesReceived("Not all messages received", "load/#", 200, 10000);
+        Assert.assertEquals(50, subscriber.getMessageCount("load/3"));
+    }
+
+    @Test
+    public void testInterruptedRunDoesntCountWaitingPublishes() throws Exception {
+        // Given
+        MqttLoadGenerator generator = new MqttLoadGenerator(publisher)
+                .withRate(1)
+                .withPayloadSize(16)
+                .withTopics("load/{{n}}", 1)
+                .withDuration(10000)
+                .withReportInterval(0);
+        Thread runner = Thread.currentThread();
+        new Thread(() -> {
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException e) {
+                return;
+            }
+            runner.interrupt();
+        }).start();
+
+        //When
+        try {
+            generator.run();
+            Assert.fail("Run wasn't interrupted");
+        } catch (InterruptedException e) {
+            //expected
+        }
+        LoadGeneratorReport report = generator.getReport();
+
+        //Then
+        Assert.assertEquals(0, report.getPublished());
+        Assert.assertTrue("Sending took " + report.getSendMs() + "ms", report.getSendMs() >= 250 && report.getSendMs() < 5000);
+        Assert.assertEquals(0, report.getDrainMs());
+    }
+
+    @Test
+    public void testReportBeforeRun() {
+        //When
+        LoadGeneratorReport report = new MqttLoadGenerator(publisher).getReport();
+
+        //Then
+        Assert.assertEquals(0, report.getPublished());
+        Assert.assertEquals(0, report.getElapsedMs());
+        Assert.assertEquals(0, report.getThroughput(), 0);
+    }
+}
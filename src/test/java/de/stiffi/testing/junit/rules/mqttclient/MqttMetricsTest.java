@@ -0,0 +1,65 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import de.stiffi.testing.junit.rules.mqttbroker.MqttBrokerRule;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Assert;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+public class MqttMetricsTest {
+
+    @ClassRule
+    public static MqttBrokerRule broker = new MqttBrokerRule();
+
+    @Test
+    public void testCountReceivedMessages() throws Exception {
+        // Given
+        MqttClientRule rule = new MqttClientRule("localhost", false, 1883, null, null, null, null)
+                .doPrintOnMessageReceived(false)
+                .withMetrics(true);
+
+        //When
+        rule.messageArrived("vehicles/1/telemetry", new MqttMessage("hello".getBytes()));
+        rule.messageArrived("vehicles/1/telemetry", new MqttMessage("world".getBytes()));
+        rule.messageArrived("vehicles/2/telemetry", new MqttMessage("!".getBytes()));
+
+        //Then
+        MqttClientRuleMXBean metrics = rule.getMetrics();
+        Assert.assertEquals(3, metrics.getMessagesIn());
+        Assert.assertEquals(11, metrics.getBytesIn());
+        Assert.assertEquals(3, metrics.getStoredMessageCount());
+        Assert.assertEquals(2, metrics.getMessagesInPerSecondByTopic().size());
+        Assert.assertEquals(0, metrics.getInflight());
+    }
+
+    @Test
+    public void testJmxRegisteredWhileConnected() throws Exception {
+        // Given
+        MqttClientRule rule = new MqttClientRule("localhost", false, broker.getPort(), null, null, null, null)
+                .doPrintOnMessageReceived(false)
+                .withJmx("metrics-test");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("de.stiffi.testing:type=MqttClientRule,name=" + ObjectName.quote("metrics-test"));
+        Assert.assertFalse(server.isRegistered(name));
+
+        //When
+        rule.connect();
+        try {
+            rule.publishAsync("metrics/jmx", "hello".getBytes(), 1);
+            Assert.assertTrue(rule.waitForPublishAcks(5000));
+
+            //Then
+            Assert.assertTrue(server.isRegistered(name));
+            Assert.assertEquals(1L, server.getAttribute(name, "MessagesOut"));
+            Assert.assertEquals(5L, server.getAttribute(name, "BytesOut"));
+            Assert.assertNotNull(server.getAttribute(name, "MessagesInPerSecondByTopic"));
+        } finally {
+            rule.disconnect();
+        }
+        Assert.assertFalse(server.isRegistered(name));
+    }
+}
@@ -0,0 +1,149 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import de.stiffi.testing.junit.rules.mqttbroker.MqttBrokerRule;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class MqttPublisherTest {
+
+    @ClassRule
+    public static MqttBrokerRule broker = new MqttBrokerRule();
+
+    private MqttClientRule subscriber;
+
+    @Before
+    public void setUp() throws Exception {
+        subscriber = client();
+        subscriber.connect();
+        subscriber.subscribe("publisher/#");
+    }
+
+    @After
+    public void tearDown() {
+        subscriber.disconnect();
+    }
+
+    private MqttClientRule client() {
+        return new MqttClientRule("localhost", false, broker.getPort(), null, null, null, null)
+                .doPrintOnMessageReceived(false);
+    }
+
+    @Test
+    public void testPublishAsyncKeepsWindowFull() throws Exception {
+        // Given
+        MqttClientRule publisher = client().withMaxInflight(5).withMetrics(true);
+        publisher.connect();
+        try {
+            //When
+            List<CompletableFuture<Void>> acks = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                acks.add(publisher.publishAsync("publisher/async", ("" + i).getBytes(), 1));
+            }
+
+            //Then
+            Assert.assertTrue(publisher.waitForPublishAcks(10000));
+            Assert.assertTrue(acks.stream().allMatch(CompletableFuture::isDone));
+            Assert.assertEquals(0, publisher.getInflight());
+            Assert.assertEquals(2000, publisher.getMetrics().getMessagesOut());
+            subscriber.assertMessagesReceived("Not all messages received", "publisher/async", 2000, 10000);
+        } finally {
+            publisher.disconnect();
+        }
+    }
+
+    @Test
+    public void testPublishAllWithMixedQos() throws Exception {
+        // Given
+        MqttClientRule publisher = client();
+        publisher.connect();
+        List<OutgoingMessage> messages = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            messages.add(new OutgoingMessage("publisher/all/" + (i % 3), ("" + i).getBytes(), i % 3));
+        }
+
+        //When
+        try {
+            publisher.publishAll(messages).get(10, TimeUnit.SECONDS);
+
+            //Then
+            Assert.assertTrue(publisher.waitForPublishAcks(0));
+            subscriber.waitForMessage("publisher/all/+", 10000, 300);
+            Assert.assertEquals(100, subscriber.getMessageCount("publisher/all/0"));
+            Assert.assertEquals(100, subscriber.getMessageCount("publisher/all/1"));
+            Assert.assertEquals(100, subscriber.getMessageCount("publisher/all/2"));
+        } finally {
+            publisher.disconnect();
+        }
+    }
+
+    @Test
+    public void testRoundRobinUsesEveryInstance() throws Exception {
+        // Given
+        MqttClientRule publisher = client()
+                .withMqttClientInstances(3)
+                .withPublishDistribution(PublishDistribution.ROUND_ROBIN)
+                .withMetrics(true);
+        publisher.connect();
+        try {
+            //When
+            for (int i = 0; i < 300; i++) {
+                publisher.publishAsync("publisher/roundrobin", ("" + i).getBytes(), 1);
+            }
+
+            //Then
+            Assert.assertTrue(publisher.waitForPublishAcks(10000));
+            Assert.assertArrayEquals(new long[]{100, 100, 100}, publisher.getMetrics().getMessagesOutPerClient());
+        } finally {
+            publisher.disconnect();
+        }
+    }
+
+    @Test
+    public void testTopicHashKeepsOrderPerTopic() throws Exception {
+        // Given
+        MqttClientRule publisher = client()
+                .withMqttClientInstances(4)
+                .withMaxInflight(20)
+                .withPublishDistribution(PublishDistribution.TOPIC_HASH)
+                .withMetrics(true);
+        publisher.connect();
+        try {
+            //When
+            for (int i = 0; i < 1000; i++) {
+                publisher.publishAsync("publisher/hash/" + (i % 5), ("" + i).getBytes(), 1);
+            }
+
+            //Then
+            Assert.assertTrue(publisher.waitForPublishAcks(10000));
+            subscriber.waitForMessage("publisher/hash/+", 10000, 1000);
+            for (int topic = 0; topic < 5; topic++) {
+                List<ReceivedMessage> received = subscriber.getReceivedMessages("publisher/hash/" + topic);
+                Assert.assertEquals(200, received.size());
+                for (int i = 0; i < received.size(); i++) {
+                    Assert.assertEquals("" + (i * 5 + topic), received.get(i).getPayloadAsString());
+                }
+            }
+            int usedInstances = 0;
+            for (long published : publisher.getMetrics().getMessagesOutPerClient()) {
+                Assert.assertEquals(0, published % 200);
+                usedInstances += published > 0 ? 1 : 0;
+            }
+            Assert.assertTrue(usedInstances > 1);
+        } finally {
+            publisher.disconnect();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testPublishAsyncBeforeConnect() {
+        client().publishAsync("publisher/never", new byte[0], 1);
+    }
+}
@@ -0,0 +1,86 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import de.stiffi.testing.junit.rules.mqttbroker.MqttBrokerRule;
+import org.junit.Assert;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class MqttRequestResponseTest {
+
+    @ClassRule
+    public static MqttBrokerRule broker = new MqttBrokerRule();
+
+    @Test
+    public void testManyOutstandingRequests() throws Exception {
+        // Given
+        //Responding from a worker thread, a handler blocked on Paho's callback thread would hold up the acks
+        MqttClientRule device = new MqttClientRule("localhost", false, broker.getPort(), null, null, null, null)
+                .withHandlerDispatch(HandlerDispatch.parallel(1, 1000))
+                .doPrintOnMessageReceived(false);
+        device.withMessageHandler("devices/1/request/+", message -> device.publishAsync(
+                message.getTopic().replace("/request/", "/response/"), "done".getBytes(), 1));
+        MqttClientRule backend = new MqttClientRule("localhost", false, broker.getPort(), null, null, null, null)
+                .withMaxInflight(100)
+                .doPrintOnMessageReceived(false);
+        device.connect();
+        backend.connect();
+        try {
+            device.subscribe("devices/1/request/+");
+
+            //When
+            List<CompletableFuture<ReceivedMessage>> responses = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                responses.add(backend.request("devices/1/request/" + i, "unlock".getBytes(), "devices/1/response/+",
+                        CorrelationExtractor.topicLevel(3), 10000));
+            }
+            CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+
+            //Then
+            Assert.assertEquals("devices/1/response/42", responses.get(42).get().getTopic());
+            Assert.assertEquals(500, backend.getRequestLatency().getCount());
+            Assert.assertEquals(0, backend.getOutstandingRequestCount());
+        } finally {
+            device.disconnect();
+            backend.disconnect();
+        }
+    }
+
+    @Test
+    public void testRequestTimeout() throws Exception {
+        // Given
+        MqttClientRule backend = new MqttClientRule("localhost", false, broker.getPort(), null, null, null, null)
+                .doPrintOnMessageReceived(false);
+        backend.connect();
+        try {
+            //When
+            CompletableFuture<ReceivedMessage> response = backend.request("devices/2/request", "{\"requestId\": \"r-1\"}".getBytes(),
+                    "devices/2/response", CorrelationExtractor.jsonField("requestId"), 100);
+
+            //Then
+            try {
+                response.get(5, TimeUnit.SECONDS);
+                Assert.fail("Expected timeout");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof TimeoutException);
+            }
+            Assert.assertEquals(1, backend.getTimedOutRequestCount());
+        } finally {
+            backend.disconnect();
+        }
+    }
+
+    @Test
+    public void testJsonFieldExtractor() {
+        CorrelationExtractor extractor = CorrelationExtractor.jsonField("requestId");
+        Assert.assertEquals("r-1", extractor.getCorrelationId(new ReceivedMessage("t", "{\"a\":1, \"requestId\" : \"r-1\"}".getBytes(), false)));
+        Assert.assertEquals("17", extractor.getCorrelationId(new ReceivedMessage("t", "{\"requestId\":17}".getBytes(), false)));
+        Assert.assertNull(extractor.getCorrelationId(new ReceivedMessage("t", "{\"id\":17}".getBytes(), false)));
+    }
+}
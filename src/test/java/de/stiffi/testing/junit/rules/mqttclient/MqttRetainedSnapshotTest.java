@@ -0,0 +1,54 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import de.stiffi.testing.junit.rules.mqttbroker.MqttBrokerRule;
+import org.junit.Assert;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.util.Map;
+
+public class MqttRetainedSnapshotTest {
+
+    @ClassRule
+    public static MqttBrokerRule broker = new MqttBrokerRule();
+
+    @Test
+    public void testSnapshotRetained() throws Exception {
+        // Given
+        for (int i = 0; i < 10000; i++) {
+            broker.publish("plant/" + (i % 10) + "/sensor/" + i, ("" + i).getBytes(), 1, true);
+        }
+        broker.publish("plant/0/sensor/0", "latest".getBytes(), 1, true);
+        broker.publish("plant/1/sensor/1", new byte[0], 1, true);
+        broker.publish("office/sensor/1", "other".getBytes(), 1, true);
+        MqttClientRule rule = new MqttClientRule("localhost", false, broker.getPort(), null, null, null, null)
+                .doPrintOnMessageReceived(false);
+
+        //When
+        long start = System.currentTimeMillis();
+        Map<String, ReceivedMessage> snapshot = rule.snapshotRetained("plant/#", 200);
+        long duration = System.currentTimeMillis() - start;
+
+        //Then
+        Assert.assertEquals(9999, snapshot.size());
+        Assert.assertEquals("latest", snapshot.get("plant/0/sensor/0").getPayloadAsString());
+        Assert.assertEquals("42", snapshot.get("plant/2/sensor/42").getPayloadAsString());
+        Assert.assertTrue(snapshot.get("plant/2/sensor/42").isRetained());
+        Assert.assertFalse(snapshot.containsKey("plant/1/sensor/1"));
+        Assert.assertFalse(snapshot.containsKey("office/sensor/1"));
+        Assert.assertTrue("Snapshot took " + duration + "ms", duration < 10000);
+        Assert.assertEquals(0, rule.getMessages().size());
+    }
+
+    @Test
+    public void testSnapshotWithoutRetainedMessages() throws Exception {
+        // Given
+        MqttClientRule rule = new MqttClientRule("localhost", false, broker.getPort(), null, null, null, null);
+
+        //When
+        Map<String, ReceivedMessage> snapshot = rule.snapshotRetained("nothing/here/#", 0, 100);
+
+        //Then
+        Assert.assertTrue(snapshot.isEmpty());
+    }
+}
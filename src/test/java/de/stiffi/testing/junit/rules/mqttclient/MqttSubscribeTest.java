@@ -0,0 +1,95 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import de.stiffi.testing.junit.rules.mqttbroker.MqttBrokerRule;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class MqttSubscribeTest {
+
+    @ClassRule
+    public static MqttBrokerRule broker = new MqttBrokerRule();
+
+    private MqttClientRule subscriber;
+
+    @Before
+    public void setUp() throws Exception {
+        subscriber = new MqttClientRule("localhost", false, broker.getPort(), null, null, null, null)
+                .doPrintOnMessageReceived(false);
+        subscriber.connect();
+    }
+
+    @After
+    public void tearDown() {
+        subscriber.disconnect();
+    }
+
+    @Test
+    public void testSubscribeBatch() throws Exception {
+        // Given
+        Map<String, Integer> topics = new LinkedHashMap<>();
+        topics.put("batch/qos0", 0);
+        topics.put("batch/qos1", 1);
+        long subscribesBefore = broker.getSubscribesReceived();
+
+        //When
+        subscriber.subscribe(topics);
+        broker.publish("batch/qos0", "0".getBytes(), 1, false);
+        broker.publish("batch/qos1", "1".getBytes(), 1, false);
+        subscriber.waitForMessage("batch/+", 5000, 2);
+
+        //Then
+        Assert.assertEquals(subscribesBefore + 1, broker.getSubscribesReceived());
+        Assert.assertEquals(0, subscriber.getReceivedMessages("batch/qos0").get(0).getQos());
+        Assert.assertEquals(1, subscriber.getReceivedMessages("batch/qos1").get(0).getQos());
+    }
+
+    @Test
+    public void testSubscribedTopicsAreSkipped() throws Exception {
+        // Given
+        subscriber.subscribe("skip/a");
+        long subscribesBefore = broker.getSubscribesReceived();
+        int subscriptionsBefore = broker.getSubscriptionCount();
+        Map<String, Integer> topics = new LinkedHashMap<>();
+        topics.put("skip/a", 1);
+        topics.put("skip/b", 1);
+
+        //When
+        subscriber.subscribe(topics);
+        subscriber.subscribe(topics);
+
+        //Then
+        Assert.assertEquals(subscribesBefore + 1, broker.getSubscribesReceived());
+        Assert.assertEquals(subscriptionsBefore + 1, broker.getSubscriptionCount());
+    }
+
+    @Test
+    public void testFailedSubscribeCanBeRetried() throws Exception {
+        // Given
+        Map<String, Integer> topics = new LinkedHashMap<>();
+        topics.put("retry/a", 1);
+        //Accepted by Paho, rejected by the broker: the shared subscription has an empty topic filter
+        topics.put("$share:group:", 1);
+
+        //When
+        try {
+            subscriber.subscribe(topics);
+            Assert.fail("Subscribe should have failed");
+        } catch (MqttException e) {
+            Assert.assertEquals(MqttException.REASON_CODE_SUBSCRIBE_FAILED, e.getReasonCode());
+        }
+        long subscribesBefore = broker.getSubscribesReceived();
+        subscriber.subscribe("retry/a");
+
+        //Then
+        Assert.assertEquals(subscribesBefore + 1, broker.getSubscribesReceived());
+        broker.publish("retry/a", "hello".getBytes(), 1, false);
+        subscriber.assertMessagesReceived("Retried subscription not active", "retry/a", 1, 5000);
+    }
+}
@@ -0,0 +1,45 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class MqttTrafficRecorderTest {
+
+    @Test
+    public void testRecordAcrossSegments() throws Exception {
+        // Given
+        Path journal = Files.createTempFile("mqtt-traffic", ".journal");
+        MqttTrafficRecorder recorder = new MqttTrafficRecorder(journal, 64);
+
+        //When
+        for (int i = 0; i < 10; i++) {
+            recorder.messageReceived(new ReceivedMessage("vehicles/" + i, ("payload " + i).getBytes(), false));
+        }
+        recorder.close();
+
+        //Then
+        ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(journal));
+        Assert.assertEquals(MqttTrafficRecorder.MAGIC, content.getInt());
+        Assert.assertEquals(MqttTrafficRecorder.VERSION, content.getInt());
+        content.getLong();
+        int records = 0;
+        long lastNanos = 0;
+        int recordLength;
+        while ((recordLength = content.getInt()) != 0) {
+            int recordStart = content.position();
+            long nanos = content.getLong();
+            Assert.assertTrue(nanos >= lastNanos);
+            lastNanos = nanos;
+            content.position(recordStart + recordLength - 4);
+            records++;
+        }
+        Assert.assertEquals(10, records);
+        Assert.assertEquals(10, recorder.getRecordCount());
+        Assert.assertFalse(content.hasRemaining());
+        Files.delete(journal);
+    }
+}
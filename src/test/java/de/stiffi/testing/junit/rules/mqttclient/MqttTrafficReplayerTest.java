@@ -0,0 +1,87 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import de.stiffi.testing.junit.rules.mqttbroker.MqttBrokerRule;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class MqttTrafficReplayerTest {
+
+    @ClassRule
+    public static MqttBrokerRule broker = new MqttBrokerRule();
+
+    private Path journal;
+    private MqttClientRule publisher;
+    private MqttClientRule subscriber;
+
+    @Before
+    public void setUp() throws Exception {
+        //Three messages 300ms apart, recorded after an idle second
+        journal = Files.createTempFile("mqtt-traffic", ".journal");
+        try (MqttTrafficRecorder recorder = new MqttTrafficRecorder(journal)) {
+            Thread.sleep(1000);
+            for (int i = 0; i < 3; i++) {
+                if (i > 0) {
+                    Thread.sleep(300);
+                }
+                recorder.record(new ReceivedMessage("replay/" + i, ("" + i).getBytes(), false));
+            }
+        }
+        publisher = new MqttClientRule("localhost", false, broker.getPort(), null, null, null, null)
+                .doPrintOnMessageReceived(false);
+        subscriber = new MqttClientRule("localhost", false, broker.getPort(), null, null, null, null)
+                .doPrintOnMessageReceived(false);
+        publisher.connect();
+        subscriber.connect();
+        subscriber.subscribe("replay/#");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        publisher.disconnect();
+        subscriber.disconnect();
+        Files.delete(journal);
+    }
+
+    @Test
+    public void testReplayKeepsOrderAndTiming() throws Exception {
+        //When
+        long start = System.currentTimeMillis();
+        long published = new MqttTrafficReplayer(journal).replay(publisher);
+        long duration = System.currentTimeMillis() - start;
+        subscriber.waitForMessage("replay/#", 5000, 3);
+
+        //Then
+        Assert.assertEquals(3, published);
+        //The idle time before the first record isn't replayed
+        Assert.assertTrue("Replay took " + duration + "ms", duration >= 550 && duration < 1000);
+        List<ReceivedMessage> received = subscriber.getReceivedMessages("replay/#");
+        Assert.assertEquals(3, received.size());
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals("replay/" + i, received.get(i).getTopic());
+        }
+    }
+
+    @Test
+    public void testReplaySpeedScaling() throws Exception {
+        //When
+        long start = System.currentTimeMillis();
+        new MqttTrafficReplayer(journal).withSpeed(4).replay(publisher);
+        long fourTimes = System.currentTimeMillis() - start;
+        start = System.currentTimeMillis();
+        new MqttTrafficReplayer(journal).withSpeed(MqttTrafficReplayer.MAX_SPEED).replay(publisher);
+        long maxSpeed = System.currentTimeMillis() - start;
+        subscriber.waitForMessage("replay/#", 5000, 6);
+
+        //Then
+        Assert.assertTrue("Replay at 4x took " + fourTimes + "ms", fourTimes >= 140 && fourTimes < 450);
+        Assert.assertTrue("Replay at max speed took " + maxSpeed + "ms", maxSpeed < 140);
+        Assert.assertEquals(6, subscriber.getMessageCount("replay/#"));
+    }
+}
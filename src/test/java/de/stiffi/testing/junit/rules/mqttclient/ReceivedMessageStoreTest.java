@@ -0,0 +1,342 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ReceivedMessageStoreTest {
+
+    @Test
+    public void testMessagesAreIndexedByTopic() {
+        // Given
+        ReceivedMessageStore store = new ReceivedMessageStore();
+
+        //When
+        store.add(message("a/1", "first"));
+        store.add(message("b/1", "second"));
+        store.add(message("a/1", "third"));
+
+        //Then
+        Assert.assertEquals(2, store.count("a/1"));
+        Assert.assertEquals(1, store.count("b/1"));
+        Assert.assertEquals(0, store.count("c/1"));
+        Assert.assertEquals("third", new String(store.getPayloads("a/1").get(1)));
+
+        List<ReceivedMessage> all = store.getMessages();
+        Assert.assertEquals(3, all.size());
+        Assert.assertEquals("first", new String(all.get(0).getPayload()));
+        Assert.assertEquals("second", new String(all.get(1).getPayload()));
+        Assert.assertEquals("third", new String(all.get(2).getPayload()));
+    }
+
+    @Test
+    public void testConcurrentAdd() throws InterruptedException {
+        // Given
+        ReceivedMessageStore store = new ReceivedMessageStore();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final String topic = "topic/" + (t % 2);
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    store.add(message(topic, "" + i));
+                }
+            });
+        }
+
+        //When
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        //Then
+        Assert.assertEquals(2000, store.count("topic/0"));
+        Assert.assertEquals(2000, store.count("topic/1"));
+        Assert.assertEquals(4000, store.getMessages().size());
+
+        store.clear();
+        Assert.assertEquals(0, store.count("topic/0"));
+    }
+
+    @Test
+    public void testClearDropsTopicsWithoutWaiters() throws InterruptedException {
+        // Given
+        ReceivedMessageStore store = new ReceivedMessageStore();
+        for (int i = 0; i < 1000; i++) {
+            store.add(message("devices/" + i, "" + i));
+        }
+        Thread waiting = new Thread(() -> {
+            try {
+                store.awaitCounts(Collections.singletonMap("devices/waited", 1), 5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiting.start();
+        while (store.getTopicCount() < 1001) {
+            Thread.sleep(1);
+        }
+
+        //When
+        store.clear();
+
+        //Then
+        Assert.assertEquals(1, store.getTopicCount());
+        Assert.assertEquals(0, store.count("devices/+"));
+        store.add(message("devices/waited", "arrived"));
+        waiting.join(5000);
+        Assert.assertFalse(waiting.isAlive());
+        store.add(message("devices/1", "again"));
+        Assert.assertEquals(1, store.count("devices/1"));
+        Assert.assertEquals("again", new String(store.getMessages("devices/+").get(1).getPayload()));
+        store.clear();
+        Assert.assertEquals(0, store.getTopicCount());
+    }
+
+    @Test
+    public void testAwaitCountsOnSeveralTopics() throws InterruptedException {
+        // Given
+        ReceivedMessageStore store = new ReceivedMessageStore();
+        store.add(message("a", "already there"));
+        Map<String, Integer> counts = new HashMap<>();
+        counts.put("a", 2);
+        counts.put("b", 1);
+
+        //When
+        new Thread(() -> {
+            store.add(message("b", "1"));
+            store.add(message("a", "2"));
+        }).start();
+        boolean reached = store.awaitCounts(counts, 5000);
+
+        //Then
+        Assert.assertTrue(reached);
+        Assert.assertFalse(store.awaitCounts(Collections.singletonMap("a", 3), 100));
+        Assert.assertTrue(store.awaitCounts(Collections.singletonMap("a", 0), 100));
+    }
+
+    @Test
+    public void testWildcardQueriesAndWaits() throws InterruptedException {
+        // Given
+        ReceivedMessageStore store = new ReceivedMessageStore();
+        store.add(message("vehicles/1/telemetry", "1"));
+        store.add(message("vehicles/2/status", "2"));
+        store.add(message("vehicles/2/telemetry/gps", "3"));
+
+        //Then
+        Assert.assertEquals(2, store.count("vehicles/+/telemetry/#"));
+        Assert.assertEquals("3", new String(store.getMessages("vehicles/+/telemetry/#").get(1).getPayload()));
+
+        //When
+        new Thread(() -> store.add(message("vehicles/3/telemetry", "4"))).start();
+
+        //Then
+        Assert.assertTrue(store.awaitCounts(Collections.singletonMap("vehicles/+/telemetry/#", 3), 5000));
+        Assert.assertFalse(store.awaitCounts(Collections.singletonMap("vehicles/+/telemetry/#", 4), 100));
+    }
+
+    @Test
+    public void testPerTopicRetentionEvictsOldestFirst() {
+        // Given
+        ReceivedMessageStore store = new ReceivedMessageStore(RetentionPolicy.perTopic().withMaxMessages(2));
+
+        //When
+        for (int i = 0; i < 5; i++) {
+            store.add(message("a", "" + i));
+        }
+        store.add(message("b", "b"));
+
+        //Then
+        Assert.assertEquals(5, store.count("a"));
+        Assert.assertEquals(2, store.getMessages("a").size());
+        Assert.assertEquals("3", new String(store.getPayloads("a").get(0)));
+        Assert.assertEquals(3, store.getRetainedMessageCount());
+        Assert.assertEquals(3, store.getEvictedMessageCount());
+    }
+
+    @Test
+    public void testGlobalRetentionByBytesWithOffHeapPayloads() {
+        // Given
+        ReceivedMessageStore store = new ReceivedMessageStore(RetentionPolicy.global().withMaxBytes(300).withOffHeapPayloads(64 * 1024));
+
+        //When
+        for (int i = 0; i < 10; i++) {
+            store.add(message("topic/" + (i % 3), String.format("%0100d", i)));
+        }
+
+        //Then
+        List<ReceivedMessage> retained = store.getMessages();
+        Assert.assertEquals(3, retained.size());
+        Assert.assertEquals(300, store.getRetainedBytes());
+        Assert.assertEquals(String.format("%0100d", 7), new String(retained.get(0).getPayload()));
+        Assert.assertEquals(String.format("%0100d", 9), new String(retained.get(2).getPayload()));
+
+        store.clear();
+        Assert.assertEquals(0, store.getRetainedBytes());
+    }
+
+    @Test
+    public void testFullArenaEvictsOldestMessages() {
+        // Given
+        ReceivedMessageStore store = new ReceivedMessageStore(RetentionPolicy.global().withOffHeapPayloads(PayloadArena.MIN_BLOCK_SIZE * 4));
+
+        //When
+        for (int i = 0; i < 6; i++) {
+            store.add(message("a", "" + i));
+        }
+
+        //Then
+        Assert.assertEquals(6, store.count("a"));
+        Assert.assertEquals(4, store.getRetainedMessageCount());
+        Assert.assertEquals("2", new String(store.getPayloads("a").get(0)));
+    }
+
+    @Test
+    public void testFullArenaWithMixedSizesStaysBounded() {
+        // Given
+        long arenaBytes = 3 * 1024 * 1024;
+        ReceivedMessageStore store = new ReceivedMessageStore(RetentionPolicy.perTopic().withMaxMessages(1000).withOffHeapPayloads(arenaBytes));
+        byte[] small = new byte[100];
+        byte[] large = new byte[50 * 1024];
+
+        //When
+        //Phases of small and large payloads, so each size class has to take over chunks freed by the other
+        for (int i = 0; i < 4000; i++) {
+            boolean largePhase = (i / 500) % 2 == 1;
+            store.add(new ReceivedMessage("mixed/" + (i % 7), largePhase ? large : small, false));
+        }
+
+        //Then
+        List<ReceivedMessage> retained = store.getMessages();
+        Assert.assertTrue(store.getEvictedMessageCount() > 0);
+        Assert.assertTrue(store.getRetainedBytes() <= arenaBytes);
+        Assert.assertEquals(store.getRetainedMessageCount(), retained.size());
+        for (ReceivedMessage message : retained) {
+            Assert.assertTrue(message.isOffHeap());
+        }
+        Assert.assertEquals(4000, retained.get(retained.size() - 1).getSequence());
+        Assert.assertEquals(large.length, retained.get(retained.size() - 1).getPayloadSize());
+    }
+
+    @Test
+    public void testPayloadViewsWithoutCopy() {
+        // Given
+        byte[] delivered = "XXhello".getBytes();
+        ReceivedMessage message = new ReceivedMessage("a", delivered, 2, 5, false);
+
+        //Then
+        Assert.assertEquals("hello", message.getPayloadAsString());
+        Assert.assertSame(message.getPayloadAsString(), message.getPayloadAsString());
+        Assert.assertEquals(5, message.getPayloadBuffer().remaining());
+        Assert.assertTrue(message.getPayloadBuffer().isReadOnly());
+        Assert.assertEquals("hello", new String(message.getPayload()));
+        Assert.assertSame(message.getPayload(), message.getPayload());
+
+        ReceivedMessage whole = new ReceivedMessage("a", delivered, false);
+        Assert.assertSame(delivered, whole.getPayload());
+    }
+
+    @Test
+    public void testAwaitMatchesTestsEveryMessageOnce() throws InterruptedException {
+        // Given
+        ReceivedMessageStore store = new ReceivedMessageStore();
+        store.add(message("vehicles/1/status", "parked"));
+        store.add(message("vehicles/2/status", "driving"));
+        AtomicInteger tested = new AtomicInteger();
+
+        //When
+        new Thread(() -> {
+            store.add(message("vehicles/3/status", "parked"));
+            store.add(message("vehicles/4/status", "parked"));
+        }).start();
+        List<ReceivedMessage> matches = store.awaitMatches("vehicles/+/status", m -> {
+            tested.incrementAndGet();
+            return m.getPayloadAsString().equals("parked");
+        }, 3, 5000);
+
+        //Then
+        Assert.assertEquals(3, matches.size());
+        Assert.assertEquals(4, tested.get());
+        Assert.assertTrue(store.awaitMatches("vehicles/9/status", m -> true, 1, 50).isEmpty());
+    }
+
+    @Test
+    public void testQueriesAndWaitsSinceMark() throws InterruptedException {
+        // Given
+        ReceivedMessageStore store = new ReceivedMessageStore();
+        store.add(message("vehicles/1/status", "parked"));
+        store.add(message("vehicles/2/status", "parked"));
+        long mark = store.mark();
+
+        //When
+        store.add(message("vehicles/1/status", "driving"));
+        new Thread(() -> store.add(message("vehicles/2/status", "parked"))).start();
+
+        //Then
+        Assert.assertEquals(1, store.count("vehicles/1/status", mark));
+        Assert.assertEquals(2, store.count("vehicles/1/status"));
+        Assert.assertTrue(store.awaitCounts(Collections.singletonMap("vehicles/+/status", 2), mark, 5000));
+        Assert.assertFalse(store.awaitCounts(Collections.singletonMap("vehicles/+/status", 3), mark, 100));
+        Assert.assertEquals(2, store.getMessagesAfter(mark).size());
+        Assert.assertEquals("driving", store.getMessages("vehicles/+/status", mark).get(0).getPayloadAsString());
+        List<ReceivedMessage> parked = store.awaitMatches("vehicles/+/status", m -> m.getPayloadAsString().equals("parked"), 2, mark, 100);
+        Assert.assertEquals(1, parked.size());
+        Assert.assertEquals("vehicles/2/status", parked.get(0).getTopic());
+    }
+
+    @Test
+    public void testCompactKeepsCounts() {
+        // Given
+        ReceivedMessageStore store = new ReceivedMessageStore();
+        for (int i = 0; i < 3000; i++) {
+            store.add(message("topic/" + (i % 2), "" + i));
+        }
+        long mark = store.mark();
+        store.add(message("topic/0", "latest"));
+
+        //When
+        int compacted = store.compact(mark);
+
+        //Then
+        Assert.assertEquals(3000, compacted);
+        Assert.assertEquals(1501, store.count("topic/0"));
+        Assert.assertEquals(1, store.getMessages().size());
+        Assert.assertEquals(1, store.getRetainedMessageCount());
+        Assert.assertEquals(3000, store.getEvictedMessageCount());
+    }
+
+    @Test
+    public void testCompactWithGlobalRetention() {
+        // Given
+        ReceivedMessageStore store = new ReceivedMessageStore(RetentionPolicy.global().withMaxMessages(10));
+        for (int i = 0; i < 6; i++) {
+            store.add(message("topic/" + (i % 3), "" + i));
+        }
+        long mark = store.mark();
+        for (int i = 6; i < 10; i++) {
+            store.add(message("topic/" + (i % 3), "" + i));
+        }
+
+        //When
+        store.compact(mark);
+        for (int i = 10; i < 16; i++) {
+            store.add(message("topic/" + (i % 3), "" + i));
+        }
+
+        //Then
+        List<ReceivedMessage> retained = store.getMessages();
+        Assert.assertEquals(10, retained.size());
+        Assert.assertEquals("6", retained.get(0).getPayloadAsString());
+    }
+
+    static ReceivedMessage message(String topic, String payload) {
+        return new ReceivedMessage(topic, payload.getBytes(), false);
+    }
+}
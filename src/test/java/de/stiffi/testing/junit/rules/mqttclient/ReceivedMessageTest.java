@@ -0,0 +1,65 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ReceivedMessageTest {
+
+    @Test
+    public void testDecodedViewsAreCached() {
+        // Given
+        ReceivedMessage message = new ReceivedMessage("vehicles/1/telemetry", "{\"speed\":42}".getBytes(), false);
+        AtomicInteger decodes = new AtomicInteger();
+        PayloadCodec<Integer> speed = payload -> {
+            decodes.incrementAndGet();
+            String json = StandardCharsets.UTF_8.decode(payload).toString();
+            return Integer.valueOf(json.replaceAll("\\D", ""));
+        };
+        PayloadCodec<Integer> length = payload -> payload.remaining();
+
+        //When
+        int first = message.getPayloadAs(speed);
+        int size = message.getPayloadAs(length);
+        int second = message.getPayloadAs(speed);
+
+        //Then
+        Assert.assertEquals(42, first);
+        Assert.assertEquals(42, second);
+        Assert.assertEquals(12, size);
+        Assert.assertEquals(1, decodes.get());
+        Assert.assertSame(message.getPayloadAsString(), message.getPayloadAsString());
+        Assert.assertEquals("eyJzcGVlZCI6NDJ9", message.getPayloadAsBase64());
+        Assert.assertSame(message.getPayloadAsBase64(), message.getPayloadAsBase64());
+    }
+
+    @Test
+    public void testCodecFailure() {
+        // Given
+        ReceivedMessage message = new ReceivedMessage("vehicles/1/telemetry", "not a number".getBytes(), false);
+        AtomicInteger attempts = new AtomicInteger();
+        PayloadCodec<Integer> codec = payload -> {
+            if (attempts.incrementAndGet() == 1) {
+                return Integer.valueOf(StandardCharsets.UTF_8.decode(payload).toString());
+            }
+            return -1;
+        };
+
+        //When
+        IllegalArgumentException failure = null;
+        try {
+            message.getPayloadAs(codec);
+        } catch (IllegalArgumentException e) {
+            failure = e;
+        }
+
+        //Then
+        Assert.assertNotNull(failure);
+        Assert.assertTrue(failure.getCause() instanceof NumberFormatException);
+        //Failures aren't cached, the next call decodes again
+        Assert.assertEquals(Integer.valueOf(-1), message.getPayloadAs(codec));
+        Assert.assertEquals(2, attempts.get());
+    }
+}
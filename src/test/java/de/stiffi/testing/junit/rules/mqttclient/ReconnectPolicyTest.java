@@ -0,0 +1,24 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReconnectPolicyTest {
+
+    @Test
+    public void testJitteredBackoff() {
+        // Given
+        ReconnectPolicy policy = ReconnectPolicy.backoff(100, 5000).withJitter(0.5);
+
+        //When
+        long first = policy.getDelayMs(0);
+        long third = policy.getDelayMs(2);
+        long late = policy.getDelayMs(100);
+
+        //Then
+        Assert.assertTrue(first >= 50 && first <= 100);
+        Assert.assertTrue(third >= 200 && third <= 400);
+        Assert.assertTrue(late >= 2500 && late <= 5000);
+        Assert.assertEquals(5000, ReconnectPolicy.backoff(100, 5000).withJitter(0).getDelayMs(40));
+    }
+}
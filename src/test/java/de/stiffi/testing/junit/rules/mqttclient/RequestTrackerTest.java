@@ -0,0 +1,56 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public class RequestTrackerTest {
+
+    @Test
+    public void testInlineExtractorsShareOneRoute() {
+        // Given
+        RequestTracker tracker = new RequestTracker();
+        List<CompletableFuture<ReceivedMessage>> responses = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            responses.add(tracker.register("" + i, "devices/1/response/+", CorrelationExtractor.topicLevel(3), 10000));
+        }
+        Assert.assertEquals(1, tracker.getRouteCount());
+
+        //When
+        for (int i = 0; i < 500; i++) {
+            tracker.messageArrived(new ReceivedMessage("devices/1/response/" + i, "done".getBytes(), false));
+        }
+
+        //Then
+        Assert.assertEquals("devices/1/response/42", responses.get(42).join().getTopic());
+        Assert.assertEquals(0, tracker.getOutstanding());
+        Assert.assertEquals(0, tracker.getRouteCount());
+        tracker.shutdown();
+    }
+
+    @Test
+    public void testRoutesAreRemovedWhenRequestsEnd() {
+        // Given
+        RequestTracker tracker = new RequestTracker();
+        CompletableFuture<ReceivedMessage> answered = tracker.register("a", "responses/+", message -> message.getTopic().substring(10), 10000);
+        CompletableFuture<ReceivedMessage> timedOut = tracker.register("b", "responses/+", message -> message.getTopic().substring(10), 10);
+        Assert.assertEquals(2, tracker.getRouteCount());
+
+        //When
+        tracker.messageArrived(new ReceivedMessage("responses/a", "done".getBytes(), false));
+
+        //Then
+        Assert.assertTrue(answered.isDone());
+        try {
+            timedOut.join();
+            Assert.fail("Request should have timed out");
+        } catch (Exception e) {
+            Assert.assertEquals(1, tracker.getTimedOut());
+        }
+        Assert.assertEquals(0, tracker.getRouteCount());
+        tracker.shutdown();
+    }
+}
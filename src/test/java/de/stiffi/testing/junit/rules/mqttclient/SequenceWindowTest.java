@@ -0,0 +1,48 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class SequenceWindowTest {
+
+    @Test
+    public void testGapsDuplicatesAndReordering() {
+        // Given
+        SequenceWindow window = new SequenceWindow(64);
+
+        //When
+        for (long sequence : new long[]{1, 2, 4, 6, 3, 3, 7, 200, 100, 198}) {
+            window.record(sequence);
+        }
+
+        //Then
+        SequenceReport report = window.getReport();
+        Assert.assertEquals(10, report.getReceived());
+        Assert.assertEquals(1, report.getDuplicates());
+        Assert.assertEquals(2, report.getOutOfOrder());
+        Assert.assertEquals(1, report.getTooLate());
+        Assert.assertEquals(1 + 192 - 1, report.getGaps());
+        Assert.assertFalse(report.isIntact());
+    }
+
+    @Test
+    public void testTrackerPerPublisher() {
+        // Given
+        SequenceTracker tracker = new SequenceTracker(SequenceExtractor.payloadLong(0), 1024);
+
+        //When
+        for (long sequence = 1; sequence <= 5000; sequence++) {
+            tracker.record(new ReceivedMessage("vehicles/1/telemetry", ByteBuffer.allocate(8).putLong(sequence).array(), false));
+            tracker.record(new ReceivedMessage("vehicles/2/telemetry", ByteBuffer.allocate(8).putLong(sequence).array(), false));
+        }
+        tracker.record(new ReceivedMessage("vehicles/1/telemetry", "short".getBytes(), false));
+
+        //Then
+        SequenceReport report = tracker.getReport("vehicles/+/telemetry");
+        Assert.assertEquals(2, report.getStreams());
+        Assert.assertEquals(10000, report.getReceived());
+        Assert.assertTrue(report.isIntact());
+    }
+}
@@ -0,0 +1,65 @@
+package de.stiffi.testing.junit.rules.mqttclient;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TokenBucketTest {
+
+    private final AtomicLong nanos = new AtomicLong(1_000_000_000L);
+
+    @Test
+    public void testRefillsAtConfiguredRate() {
+        // Given
+        TokenBucket bucket = new TokenBucket(100, 1, 0, nanos::get);
+        Assert.assertFalse(bucket.tryAcquire());
+
+        //When
+        int acquired = 0;
+        for (int ms = 0; ms < 1000; ms++) {
+            nanos.addAndGet(1_000_000L);
+            while (bucket.tryAcquire()) {
+                acquired++;
+            }
+        }
+
+        //Then
+        Assert.assertEquals(100, acquired);
+    }
+
+    @Test
+    public void testInitialTokens() {
+        // Given
+        TokenBucket bucket = new TokenBucket(100, 5, 10, nanos::get);
+
+        //When
+        int acquired = 0;
+        while (bucket.tryAcquire()) {
+            acquired++;
+        }
+
+        //Then
+        Assert.assertEquals(5, acquired);
+    }
+
+    @Test
+    public void testBurstIsCapped() {
+        // Given
+        TokenBucket bucket = new TokenBucket(100, 5, 0, nanos::get);
+
+        //When
+        nanos.addAndGet(10_000_000_000L);
+        int acquired = 0;
+        while (bucket.tryAcquire()) {
+            acquired++;
+        }
+
+        //Then
+        Assert.assertEquals(5, acquired);
+        nanos.addAndGet(9_999_999L);
+        Assert.assertFalse(bucket.tryAcquire());
+        nanos.addAndGet(1L);
+        Assert.assertTrue(bucket.tryAcquire());
+    }
+}
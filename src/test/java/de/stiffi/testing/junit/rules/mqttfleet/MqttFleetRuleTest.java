@@ -0,0 +1,85 @@
+package de.stiffi.testing.junit.rules.mqttfleet;
+
+import de.stiffi.testing.junit.helpers.SocketHelper;
+import de.stiffi.testing.junit.rules.mqttbroker.MqttBrokerRule;
+import de.stiffi.testing.junit.rules.mqttclient.MqttClientRule;
+import org.junit.Assert;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MqttFleetRuleTest {
+
+    @ClassRule
+    public static MqttBrokerRule broker = new MqttBrokerRule();
+
+    @Test
+    public void testFleetPublishesAndReceives() throws Exception {
+        // Given
+        AtomicInteger commands = new AtomicInteger();
+        MqttFleetRule fleet = new MqttFleetRule("localhost", broker.getPort(), null, null)
+                .withDevices(200)
+                .withIoThreads(2)
+                .withConnectRate(0)
+                .withSubscription("vehicles/{{vin}}/commands", 1)
+                .withPublishSchedule(PublishSchedule.every(50, "vehicles/{{vin}}/telemetry", "{\"vin\":\"{{vin}}\",\"seq\":{{seq}}}")
+                        .withQos(1)
+                        .withMessagesPerDevice(5))
+                .withMessageHandler((vin, message) -> commands.incrementAndGet());
+        MqttClientRule backend = new MqttClientRule("localhost", false, broker.getPort(), null, null, null, null)
+                .doPrintOnMessageReceived(false);
+        backend.connect();
+        backend.subscribe("vehicles/+/telemetry");
+
+        try {
+            //When
+            fleet.connect();
+            backend.waitForMessage("vehicles/+/telemetry", 10000, 1000);
+            backend.publish("vehicles/SIMVIN00000000007/commands", "honk".getBytes(), 1);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (commands.get() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            //Then
+            FleetStats stats = fleet.getStats();
+            Assert.assertEquals(200, stats.getConnected());
+            Assert.assertEquals(1000, stats.getPublished());
+            Assert.assertEquals(1000, backend.getMessageCount("vehicles/+/telemetry"));
+            Assert.assertEquals("{\"vin\":\"SIMVIN00000000001\",\"seq\":1}",
+                    backend.getReceivedMessages("vehicles/SIMVIN00000000001/telemetry").get(0).getPayloadAsString());
+            Assert.assertEquals(1, commands.get());
+            Assert.assertEquals(1, stats.getReceived());
+        } finally {
+            fleet.disconnect();
+            backend.disconnect();
+        }
+    }
+
+    @Test
+    public void testConnectFailuresAreAggregated() throws Exception {
+        // Given
+        MqttFleetRule fleet = new MqttFleetRule("localhost", SocketHelper.findFreePort(), null, null)
+                .withDevices(20)
+                .withIoThreads(1)
+                .withConnectRate(0)
+                .withAllowedConnectFailures(20);
+
+        try {
+            //When
+            fleet.connect();
+
+            //Then
+            FleetStats stats = fleet.getStats();
+            Assert.assertEquals(0, stats.getConnected());
+            Assert.assertEquals(20, stats.getConnectFailures());
+            Map<String, Long> causes = stats.getCloseCauses();
+            Assert.assertEquals(causes.toString(), 1, causes.size());
+            Assert.assertEquals(Long.valueOf(20), causes.values().iterator().next());
+        } finally {
+            fleet.disconnect();
+        }
+    }
+}